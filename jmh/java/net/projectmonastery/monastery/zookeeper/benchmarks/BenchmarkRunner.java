@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks at increasing numbers of concurrent callers.
+ * <p>
+ * Usage: BenchmarkRunner [benchmark regex] [comma separated thread counts]<br>
+ * For example: <pre>mvn -P benchmarks test-compile exec:exec -Dbenchmarks.args="NodeRegistry 1,16"</pre>
+ * </p>
+ */
+public class BenchmarkRunner {
+    private static final String DEFAULT_THREADS = "1,2,4,8,16,32,64";
+
+    public static void main(String[] args) throws Exception {
+        String include = args.length > 0 ? args[0] : BenchmarkRunner.class.getPackage().getName() + ".*";
+        String threadCounts = args.length > 1 ? args[1] : DEFAULT_THREADS;
+
+        for (String threads: threadCounts.split(",")) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(Integer.parseInt(threads.trim()))
+                    .warmupIterations(3)
+                    .measurementIterations(5)
+                    .forks(1)
+                    .addProfiler(GCProfiler.class) // allocation per operation
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
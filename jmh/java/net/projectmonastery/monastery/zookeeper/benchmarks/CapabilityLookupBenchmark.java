@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import net.projectmonastery.monastery.api.core.Capability;
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.cando.NodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capability lookup, hit and miss. Run with the GC profiler (BenchmarkRunner does) to see the allocation rate
+ * per operation (gc.alloc.rate.norm), which should be zero for both.
+ * Lookups never reach Zookeeper, so the node is built once per trial, on a framework of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CapabilityLookupBenchmark {
+    private CuratorFramework curatorFramework;
+    private Node<String> node;
+
+    /**
+     * A capability interface no node implements
+     */
+    public interface Missing extends Capability {
+    }
+
+    @Setup(Level.Trial)
+    public void setUp(ZookeeperState zookeeper) throws Exception {
+        curatorFramework = CuratorFrameworkFactory.newClient(zookeeper.getConnectString(), new RetryNTimes(3, 100));
+        node = new ZookeeperNodeBuilder()
+                .withCuratorFramework(curatorFramework)
+                .withRootPath(ZookeeperState.ROOT_PATH)
+                .build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        curatorFramework.close();
+    }
+
+    @Benchmark
+    public CompletableFuture<NodeAnnouncement> hit() {
+        return node.getCapability(NodeAnnouncement.class);
+    }
+
+    @Benchmark
+    public CompletableFuture<Missing> miss() {
+        return node.getCapability(Missing.class);
+    }
+}
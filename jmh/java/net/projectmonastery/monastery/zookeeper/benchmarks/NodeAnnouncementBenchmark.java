@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.cando.NodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency distribution of building nodes and announcing them
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NodeAnnouncementBenchmark {
+
+    /**
+     * A node may only be announced once, so every invocation gets a freshly built node.
+     * The per-invocation setup cost is small compared to a Zookeeper round trip, which dominates announce().
+     */
+    @State(Scope.Thread)
+    public static class FreshNode {
+        private ZookeeperNodeAnnouncement announcement;
+
+        @Setup(Level.Invocation)
+        public void build(ZookeeperState zookeeper) throws Exception {
+            Node<String> node = newBuilder(zookeeper).build();
+            announcement = node.getCapability(ZookeeperNodeAnnouncement.class).get();
+        }
+    }
+
+    @Benchmark
+    public Node<String> build(ZookeeperState zookeeper) throws Exception {
+        return newBuilder(zookeeper).build();
+    }
+
+    @Benchmark
+    public NodeAnnouncement<String> announce(FreshNode node) throws Exception {
+        return node.announcement.announce().get(10, TimeUnit.SECONDS);
+    }
+
+    private static ZookeeperNodeBuilder newBuilder(ZookeeperState zookeeper) throws Exception {
+        return new ZookeeperNodeBuilder()
+                .withCuratorFramework(zookeeper.getCuratorFramework())
+                .withRootPath(ZookeeperState.ROOT_PATH);
+    }
+}
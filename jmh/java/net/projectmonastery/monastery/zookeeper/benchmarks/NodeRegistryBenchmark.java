@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency distribution of the node registry operations, in both registry modes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NodeRegistryBenchmark {
+    @Param({"BLOCKING", "NON_BLOCKING"})
+    public NodeRegistry.Mode mode;
+
+    private NodeRegistry registry;
+    private String existingNodeId;
+
+    @Setup(Level.Iteration)
+    public void setUp(ZookeeperState zookeeper) throws Exception {
+        registry = new NodeRegistry(zookeeper.getCuratorFramework(), ZookeeperState.ROOT_PATH).withMode(mode);
+        existingNodeId = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public String makeNewNode() throws Exception {
+        return registry.makeNewNode().get(10, TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public Boolean nodeExists() throws Exception {
+        return registry.nodeExists(existingNodeId).get(10, TimeUnit.SECONDS);
+    }
+}
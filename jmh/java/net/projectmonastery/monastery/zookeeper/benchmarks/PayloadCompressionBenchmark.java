@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import net.projectmonastery.monastery.zookeeper.data.PayloadCompression;
+import net.projectmonastery.monastery.zookeeper.data.ScalarJson;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The CPU cost of compressing and decompressing shared data payloads. The payloads are built from a fixed seed, so
+ * the bytes each one saves are the same on every run and need not be reported here.
+ * No Zookeeper server is involved.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PayloadCompressionBenchmark {
+    /**
+     * scalar: a small number, as JSON. text: 16 KB of repetitive text, like configuration or metadata.
+     * model: 1 MB of model metadata like text with random numbers. random: 16 KB of incompressible data
+     */
+    @Param({"scalar", "text", "model", "random"})
+    public String payload;
+
+    /**
+     * The Deflate level: 1 is the fastest, 6 the JDK default, 9 the smallest
+     */
+    @Param({"1", "6", "9"})
+    public int level;
+
+    private PayloadCompression compression;
+    private byte[] uncompressed;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        compression = new PayloadCompression(PayloadCompression.DEFAULT_THRESHOLD_BYTES, level);
+        uncompressed = makePayload(payload);
+        compressed = compression.compress(uncompressed);
+    }
+
+    @Benchmark
+    public byte[] compress() {
+        return compression.compress(uncompressed);
+    }
+
+    @Benchmark
+    public byte[] decompress() {
+        return PayloadCompression.decompress(compressed);
+    }
+
+    private static byte[] makePayload(String kind) {
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        switch (kind) {
+            case "scalar":
+                return ScalarJson.encode(123456789L);
+            case "text":
+                while (text.length() < 16 * 1024) {
+                    text.append("service.endpoint.timeout.millis=").append(random.nextInt(10_000)).append('\n');
+                }
+                return ScalarJson.encode(text.toString());
+            case "model":
+                while (text.length() < 1024 * 1024) {
+                    text.append("{\"layer\":").append(random.nextInt(200))
+                            .append(",\"weight\":").append(random.nextGaussian())
+                            .append(",\"bias\":").append(random.nextGaussian()).append("},");
+                }
+                return ScalarJson.encode(text.toString());
+            case "random":
+                byte[] bytes = new byte[16 * 1024];
+                random.nextBytes(bytes);
+                bytes[0] = '{';
+                return bytes;
+            default:
+                throw new IllegalArgumentException("unknown payload " + kind);
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.benchmarks;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A local Zookeeper server for the whole benchmark, and a fresh, connected framework for each iteration.
+ * Closing the framework at the end of an iteration drops all the ephemeral znodes it created,
+ * so iterations do not slow down as the registry grows.
+ */
+@State(Scope.Benchmark)
+public class ZookeeperState {
+    public static final String ROOT_PATH = "/benchmark";
+    private TestingServer server;
+    private CuratorFramework curatorFramework;
+
+    @Setup(Level.Trial)
+    public void startServer() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws Exception {
+        server.close();
+    }
+
+    @Setup(Level.Iteration)
+    public void connect() throws Exception {
+        curatorFramework = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 100));
+        curatorFramework.start();
+        if (!curatorFramework.blockUntilConnected(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("could not connect to the testing server");
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void disconnect() {
+        curatorFramework.close();
+    }
+
+    public CuratorFramework getCuratorFramework() {
+        return curatorFramework;
+    }
+
+    public String getConnectString() {
+        return server.getConnectString();
+    }
+}
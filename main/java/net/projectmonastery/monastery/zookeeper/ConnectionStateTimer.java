@@ -0,0 +1,50 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+
+/**
+ * Reports how long the connection stayed in each state to ZookeeperMetrics.
+ * Register it before starting the framework to also measure the time to the initial connection.
+ */
+public class ConnectionStateTimer implements ConnectionStateListener {
+    private final ZookeeperMetrics metrics;
+    private ConnectionState previous;
+    private long sinceNanos;
+
+    /**
+     * @param metrics where to report the transitions
+     * @param current the current connection state, or null if the framework is not started yet
+     */
+    public ConnectionStateTimer(ZookeeperMetrics metrics, ConnectionState current) {
+        assert metrics != null : "metrics may not be null";
+        this.metrics = metrics;
+        this.previous = current;
+        this.sinceNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized void stateChanged(CuratorFramework client, ConnectionState newState) {
+        long now = System.nanoTime();
+        metrics.recordConnectionStateChange(previous, newState, now - sinceNanos);
+        previous = newState;
+        sinceNanos = now;
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.apache.curator.framework.state.ConnectionState;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Keeps a latency histogram per operation type and per connection state transition, in memory.
+ * Read it periodically to publish percentiles to an external metrics system.
+ */
+public class InMemoryZookeeperMetrics implements ZookeeperMetrics {
+    private static final int STATES = ConnectionState.values().length;
+    private final Map<ZookeeperOperation, LatencyHistogram> operations = new EnumMap<>(ZookeeperOperation.class);
+    /**
+     * Indexed by [previous state ordinal, or STATES for none] * STATES + next state ordinal. Created on first use,
+     * as most transitions never happen.
+     */
+    private final AtomicReferenceArray<LatencyHistogram> transitions = new AtomicReferenceArray<>((STATES + 1) * STATES);
+    private final LatencyHistogram lossDetection = new LatencyHistogram();
+    private final LatencyHistogram recovery = new LatencyHistogram();
+
+    public InMemoryZookeeperMetrics() {
+        for (ZookeeperOperation operation: ZookeeperOperation.values()) {
+            operations.put(operation, new LatencyHistogram()); // never modified after this, so safe to share
+        }
+    }
+
+    @Override
+    public void recordOperation(ZookeeperOperation operation, long nanos, boolean success) {
+        operations.get(operation).record(nanos, success);
+    }
+
+    @Override
+    public void recordConnectionStateChange(ConnectionState previous, ConnectionState next, long nanos) {
+        int index = transitionIndex(previous, next);
+        LatencyHistogram histogram = transitions.get(index);
+        if (histogram == null) {
+            transitions.compareAndSet(index, null, new LatencyHistogram());
+            histogram = transitions.get(index);
+        }
+        histogram.record(nanos, true);
+    }
+
+    @Override
+    public void recordNodeLossDetected(long nanos) {
+        lossDetection.record(nanos, true);
+    }
+
+    @Override
+    public void recordNodeRecovered(long nanos) {
+        recovery.record(nanos, true);
+    }
+
+    /**
+     * @return the histogram of the time supervised nodes took to notice they were disconnected
+     */
+    public LatencyHistogram getLossDetectionHistogram() {
+        return lossDetection;
+    }
+
+    /**
+     * @return the histogram of the time supervised nodes took to join again after noticing they were disconnected
+     */
+    public LatencyHistogram getRecoveryHistogram() {
+        return recovery;
+    }
+
+    /**
+     * @param operation an operation type
+     * @return the histogram of the operation
+     */
+    public LatencyHistogram getHistogram(ZookeeperOperation operation) {
+        return operations.get(operation);
+    }
+
+    /**
+     * For example, (SUSPENDED, RECONNECTED) measures how long the connection was suspended before recovering,
+     * and (null, CONNECTED) how long the initial connection took.
+     * @param previous the state before the transition, or null for the first state after starting the framework
+     * @param next the state after the transition
+     * @return the histogram of the time spent in the previous state, empty if the transition never happened
+     */
+    public LatencyHistogram getTransitionHistogram(ConnectionState previous, ConnectionState next) {
+        LatencyHistogram histogram = transitions.get(transitionIndex(previous, next));
+        return histogram == null ? new LatencyHistogram() : histogram;
+    }
+
+    private static int transitionIndex(ConnectionState previous, ConnectionState next) {
+        int from = previous == null ? STATES : previous.ordinal();
+        return from * STATES + next.ordinal();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("Zookeeper operations:");
+        operations.forEach((operation, histogram) -> {
+            if (histogram.getCount() > 0) {
+                text.append("\n  ").append(operation).append(": ").append(histogram);
+            }
+        });
+        return text.toString();
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import net.projectmonastery.monastery.api.core.Capability;
+
+/**
+ * Marks a capability whose bind() and onAllCapabilitiesBound() neither look at other capabilities nor share
+ * unsynchronized state with them. When a node is built asynchronously (ZookeeperNodeBuilder.buildAsync()),
+ * independent capabilities are bound, and then resolved, concurrently with each other and with the rest.
+ * Capabilities without this marker are bound one by one, in the order they were added.
+ */
+public interface IndependentCapability extends Capability {
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * A thread-safe set of listeners, dispatched asynchronously.
+ * Each listener runs as its own task on the dispatch executor, so a slow listener delays nobody but itself,
+ * and a failing listener is logged without affecting the others. A listener that runs longer than the timeout is
+ * reported and no longer waited for (it is not interrupted).
+ * @param <T> the type of the event passed to the listeners
+ */
+public class ListenerRegistry<T> {
+    private static final Logger logger = LoggerFactory.getLogger(ListenerRegistry.class);
+    /**
+     * The default time to wait for a single listener
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 30000;
+    private final List<Consumer<T>> listeners = new CopyOnWriteArrayList<>();
+    private volatile Executor executor;
+    private volatile long timeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * @param executor the executor to run the listeners on. If null, the default Zookeeper I/O pool is used.
+     */
+    public ListenerRegistry(Executor executor) {
+        setExecutor(executor);
+    }
+
+    public void add(Consumer<T> listener) {
+        assert listener != null : "may not add a null listener";
+        listeners.add(listener);
+    }
+
+    public boolean remove(Consumer<T> listener) {
+        return listeners.remove(listener);
+    }
+
+    public int size() {
+        return listeners.size();
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor the executor to run the listeners on. If null, the default Zookeeper I/O pool is used.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor == null ? ZookeeperExecutors.defaultExecutor() : executor;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis how long to wait for each listener. Zero or less means wait indefinitely.
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Dispatches an event to all the listeners registered at the time of the call
+     * @param event the event
+     * @return a future completing when every listener completed, failed or timed out. It never completes exceptionally.
+     */
+    public CompletableFuture<Void> dispatch(T event) {
+        if (listeners.isEmpty()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Object[] snapshot = listeners.toArray(); // sized and iterated together, whatever is added or removed meanwhile
+        CompletableFuture<?>[] done = new CompletableFuture<?>[snapshot.length];
+        for (int i = 0; i < snapshot.length; i++) {
+            @SuppressWarnings("unchecked")
+            Consumer<T> listener = (Consumer<T>) snapshot[i];
+            done[i] = dispatch(listener, event);
+        }
+        return CompletableFuture.allOf(done);
+    }
+
+    private CompletableFuture<Void> dispatch(Consumer<T> listener, T event) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        try {
+            CompletableFuture.runAsync(() -> listener.accept(event), executor).whenComplete((nothing, throwable) -> {
+                if (throwable != null) {
+                    logger.error("Listener " + listener + " failed on " + event, throwable);
+                }
+                done.complete(null);
+            });
+        } catch (RejectedExecutionException e) {
+            logger.error("Could not dispatch " + event + " to listener " + listener, e);
+            done.complete(null);
+            return done;
+        }
+
+        long timeout = timeoutMillis;
+        if (timeout > 0 && !done.isDone()) {
+            ScheduledFuture<?> timer = ZookeeperExecutors.scheduler().schedule(() -> {
+                if (done.complete(null)) {
+                    logger.warn("Listener " + listener + " did not complete within " + timeout + " millis. No longer waiting for it.");
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+            done.whenComplete((nothing, throwable) -> timer.cancel(false));
+        }
+        return done;
+    }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.data.NodeMembershipCache;
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Tracks the health of an announced node and of its connection to Zookeeper, and brings the node back when it is
+ * disconnected (see the node supervisor in the architecture document).
+ * <p>
+ * The supervisor reacts to SUSPENDED and LOST connection states as they are reported, and also checks the connection
+ * on every tick, so a loss is noticed within one tick even if an event is missed. A lost node is moved to
+ * DISCONNECTED. Once the connection is back, the node returns to JOINED under the same ID if its znode survived
+ * (the session did not expire), or is re-announced under a new ID otherwise. Failed re-announcements are retried with
+ * jittered exponential backoff, capped at a maximal delay.
+ * </p>
+ * <p>
+ * Detection and recovery times are reported to the registry's ZookeeperMetrics. Applications can follow the node's
+ * state with addStateListener().
+ * </p>
+ */
+public class NodeSupervisor implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(NodeSupervisor.class);
+    public static final long DEFAULT_TICK_MILLIS = 1000;
+    public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+    public static final long DEFAULT_MAX_BACKOFF_MILLIS = 30000;
+    private final ZookeeperNode node;
+    private final ZookeeperNodeAnnouncement announcement;
+    private final NodeRegistry registry;
+    private final CuratorFramework curatorFramework;
+    private final Executor executor;
+    private final ListenerRegistry<NodeState> stateListeners;
+    private final ConnectionStateListener connectionStateListener = this::onConnectionStateChanged;
+    private long tickMillis = DEFAULT_TICK_MILLIS;
+    private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+    private long maxBackoffMillis = DEFAULT_MAX_BACKOFF_MILLIS;
+
+    // all of the following are guarded by this
+    private boolean started = false;
+    private boolean closed = false;
+    private ScheduledFuture<?> ticker;
+    private ScheduledFuture<?> pendingRetry;
+    /**
+     * The last time the node was seen JOINED over a live connection
+     */
+    private long lastHealthyNanos;
+    /**
+     * When the current loss was detected, or 0 if the node is not lost
+     */
+    private long lossDetectedNanos = 0;
+    /**
+     * True once the session is known to be gone, so the node's znode is gone too
+     */
+    private boolean sessionLost = false;
+    private boolean recovering = false;
+    private int failedAttempts = 0;
+    /**
+     * The last node ID the membership cache reported as registered. Until the cache reports a new ID (it may lag
+     * behind a registration, especially with a coalescing window), its absence from the cache proves nothing.
+     */
+    private String seenInCache;
+    private boolean confirming = false;
+
+    /**
+     * @param node the node to supervise. It must have a ZookeeperNodeAnnouncement capability.
+     * @throws IllegalArgumentException if the node has no ZookeeperNodeAnnouncement capability
+     */
+    public NodeSupervisor(ZookeeperNode node) {
+        assert node != null : "must provide a node to supervise";
+        this.node = node;
+        this.announcement = ZookeeperNodeAnnouncement.find(node).orElseThrow(() ->
+                new IllegalArgumentException("the supervised node must have a ZookeeperNodeAnnouncement capability"));
+        this.registry = node.getRegistry();
+        this.curatorFramework = node.getCuratorFramework();
+        this.executor = node.getExecutor();
+        this.stateListeners = new ListenerRegistry<>(executor);
+    }
+
+    /**
+     * @param tickMillis the interval between health checks, which bounds the time to detect a loss
+     * @return this supervisor
+     */
+    public synchronized NodeSupervisor withTickMillis(long tickMillis) {
+        assert tickMillis > 0 : "tick must be positive";
+        assert !started : "cannot change the tick after starting";
+        this.tickMillis = tickMillis;
+        return this;
+    }
+
+    /**
+     * @param initialBackoffMillis the delay before the first retry of a failed re-announcement
+     * @param maxBackoffMillis the cap on the delay between retries
+     * @return this supervisor
+     */
+    public synchronized NodeSupervisor withBackoff(long initialBackoffMillis, long maxBackoffMillis) {
+        assert initialBackoffMillis > 0 && maxBackoffMillis >= initialBackoffMillis : "invalid backoff";
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        return this;
+    }
+
+    /**
+     * @param listener called with the node's new state when the supervisor finds it DISCONNECTED, and when it is
+     *                 JOINED again
+     */
+    public void addStateListener(Consumer<NodeState> listener) {
+        stateListeners.add(listener);
+    }
+
+    public boolean removeStateListener(Consumer<NodeState> listener) {
+        return stateListeners.remove(listener);
+    }
+
+    /**
+     * Starts supervising. The node may be announced before or after starting, but the supervisor only acts once it
+     * has joined.
+     * @return this supervisor
+     */
+    public synchronized NodeSupervisor start() {
+        if (started) {
+            return this;
+        }
+        started = true;
+        lastHealthyNanos = System.nanoTime();
+        curatorFramework.getConnectionStateListenable().addListener(connectionStateListener, executor);
+        // a task that throws is never run again, so a rejected tick must not escape
+        ticker = ZookeeperExecutors.scheduler().scheduleAtFixedRate(() -> {
+            try {
+                executor.execute(this::tick);
+            } catch (RejectedExecutionException e) {
+                logger.warn("Skipped a health check of node " + node.getId().orElse(null) + ": " + e.getMessage());
+            }
+        }, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Stops supervising. The node itself is not affected.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        curatorFramework.getConnectionStateListenable().removeListener(connectionStateListener);
+        if (ticker != null) {
+            ticker.cancel(false);
+        }
+        if (pendingRetry != null) {
+            pendingRetry.cancel(false);
+        }
+    }
+
+    /**
+     * @return true if the node is currently known to be lost and not recovered yet
+     */
+    public synchronized boolean isRecovering() {
+        return lossDetectedNanos != 0;
+    }
+
+    private void onConnectionStateChanged(CuratorFramework client, ConnectionState state) {
+        switch (state) {
+            case LOST:
+                synchronized (this) {
+                    sessionLost = true;
+                }
+                detectLoss("connection " + state);
+                break;
+            case SUSPENDED:
+                detectLoss("connection " + state);
+                break;
+            case CONNECTED:
+            case RECONNECTED:
+                recover();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * The periodic health check. A safety net for missed events, and the driver of recovery if a reconnection was
+     * missed.
+     */
+    private void tick() {
+        boolean connected = curatorFramework.getZookeeperClient().isConnected();
+        if (!connected) {
+            detectLoss("connection down at tick");
+            return;
+        }
+        Optional<String> id = node.getId();
+        Optional<NodeMembershipCache> cache = registry.getMembershipCache();
+        if (node.getState() == NodeState.JOINED && id.isPresent() && cache.isPresent() && cache.get().isSynced()) {
+            if (cache.get().contains(id.get())) {
+                synchronized (this) {
+                    seenInCache = id.get();
+                }
+            }
+            else if (id.get().equals(getSeenInCache())) {
+                unregistered(id.get());
+            }
+            else {
+                confirmUnregistered(id.get());
+            }
+        }
+        synchronized (this) {
+            if (lossDetectedNanos == 0 && node.getState() == NodeState.JOINED) {
+                lastHealthyNanos = System.nanoTime();
+            }
+        }
+        recover(); // does nothing unless lost and not already recovering
+    }
+
+    private synchronized String getSeenInCache() {
+        return seenInCache;
+    }
+
+    /**
+     * Asks Zookeeper whether a node the membership cache did not report yet is really registered, and declares the
+     * loss only if it is not (and the node still has the same ID)
+     * @param id the node ID
+     */
+    private void confirmUnregistered(String id) {
+        long sessionId;
+        synchronized (this) {
+            if (confirming) {
+                return;
+            }
+            confirming = true;
+        }
+        try {
+            sessionId = curatorFramework.getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            logger.debug("Cannot confirm the registration of node " + id, e);
+            synchronized (this) {
+                confirming = false;
+            }
+            return;
+        }
+        registry.isNodeOwnedBy(id, sessionId).whenComplete((owned, throwable) -> {
+            synchronized (this) {
+                confirming = false;
+            }
+            if (throwable != null) {
+                logger.debug("Cannot confirm the registration of node " + id, throwable);
+            }
+            else if (!owned && node.getState() == NodeState.JOINED && id.equals(node.getId().orElse(null))) {
+                unregistered(id);
+            }
+        });
+    }
+
+    private void unregistered(String id) {
+        synchronized (this) {
+            sessionLost = true; // the znode is gone, whatever the reason
+        }
+        detectLoss("node " + id + " no longer registered");
+    }
+
+    private void detectLoss(String reason) {
+        synchronized (this) {
+            if (closed || lossDetectedNanos != 0 || node.getState() == NodeState.DISCONNECTED) {
+                return; // already lost, or never joined
+            }
+            long now = System.nanoTime();
+            lossDetectedNanos = now;
+            node.setState(NodeState.DISCONNECTED);
+            registry.getMetrics().recordNodeLossDetected(now - lastHealthyNanos);
+        }
+        logger.warn("Node " + node.getId().orElse(null) + " disconnected: " + reason);
+        stateListeners.dispatch(NodeState.DISCONNECTED);
+    }
+
+    private void recover() {
+        boolean keepId;
+        synchronized (this) {
+            if (closed || lossDetectedNanos == 0 || recovering || pendingRetry != null && !pendingRetry.isDone() ||
+                    !curatorFramework.getZookeeperClient().isConnected()) {
+                return;
+            }
+            recovering = true;
+            keepId = !sessionLost;
+        }
+
+        Optional<String> id = node.getId();
+        CompletableFuture<Boolean> stillRegistered = keepId && id.isPresent() ?
+                registry.nodeExists(id.get()) :
+                CompletableFuture.completedFuture(false);
+        stillRegistered.thenCompose(registered -> {
+            if (registered) {
+                logger.info("Node " + id.get() + " is still registered. Rejoining under the same ID.");
+                node.setState(NodeState.JOINED);
+                return CompletableFuture.completedFuture(null);
+            }
+            logger.info("Node " + id.orElse(null) + " is no longer registered. Re-announcing it.");
+            return announcement.reannounce();
+        }).whenComplete((nothing, throwable) -> {
+            if (throwable == null) {
+                recovered();
+            }
+            else {
+                retryLater(throwable);
+            }
+        });
+    }
+
+    private void recovered() {
+        synchronized (this) {
+            long now = System.nanoTime();
+            registry.getMetrics().recordNodeRecovered(now - lossDetectedNanos);
+            lossDetectedNanos = 0;
+            lastHealthyNanos = now;
+            sessionLost = false;
+            recovering = false;
+            failedAttempts = 0;
+        }
+        logger.info("Node " + node.getId().orElse(null) + " recovered");
+        stateListeners.dispatch(NodeState.JOINED);
+    }
+
+    private void retryLater(Throwable throwable) {
+        synchronized (this) {
+            recovering = false;
+            if (closed) {
+                return;
+            }
+            long delay = backoffMillis(failedAttempts++);
+            logger.warn("Failed to recover node (attempt " + failedAttempts + "). Retrying in " + delay + " millis: " +
+                    throwable.getMessage());
+            pendingRetry = ZookeeperExecutors.scheduler().schedule(() -> executor.execute(() -> {
+                synchronized (this) {
+                    pendingRetry = null;
+                }
+                recover();
+            }), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the capped exponential delay, plus a random part of up to the
+     * other half. The jitter spreads the retries of many nodes that lost their sessions together.
+     * @param failedAttempts the number of attempts that failed so far
+     * @return the delay before the next attempt
+     */
+    synchronized long backoffMillis(int failedAttempts) {
+        long ceiling = initialBackoffMillis;
+        for (int i = 0; i < failedAttempts && ceiling < maxBackoffMillis; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxBackoffMillis);
+        long half = ceiling / 2;
+        return half + ThreadLocalRandom.current().nextLong(ceiling - half + 1);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.apache.curator.utils.DefaultZookeeperFactory;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Creates the first Zookeeper client of a framework with a saved session's credentials, so it reattaches to that
+ * session. If the session already expired, Curator asks for a new client, and that and all later clients are
+ * created by the delegate with new sessions.
+ */
+class ResumingZookeeperFactory implements ZookeeperFactory {
+    private static final Logger logger = LoggerFactory.getLogger(ResumingZookeeperFactory.class);
+    private final ZookeeperFactory delegate;
+    private final ZookeeperSessionStore.SavedSession session;
+    private final AtomicBoolean resumeAttempted = new AtomicBoolean();
+
+    /**
+     * @param delegate the factory for new sessions. If null, Curator's default factory.
+     * @param session the session to resume
+     */
+    ResumingZookeeperFactory(ZookeeperFactory delegate, ZookeeperSessionStore.SavedSession session) {
+        this.delegate = delegate == null ? new DefaultZookeeperFactory() : delegate;
+        this.session = session;
+    }
+
+    @Override
+    public ZooKeeper newZooKeeper(String connectString, int sessionTimeout, Watcher watcher, boolean canBeReadOnly) throws Exception {
+        if (resumeAttempted.compareAndSet(false, true)) {
+            logger.info("Resuming " + session);
+            return new ZooKeeper(connectString, sessionTimeout, watcher, session.getSessionId(), session.getPassword(), canBeReadOnly);
+        }
+        return delegate.newZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly);
+    }
+}
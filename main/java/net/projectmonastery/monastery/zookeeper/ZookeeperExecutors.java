@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor strategies for all the asynchronous work done by the Zookeeper implementation.
+ * Curator calls block for a full Zookeeper round trip, so they must never run on the common ForkJoinPool.
+ */
+public final class ZookeeperExecutors {
+    /**
+     * The number of threads in the default I/O pool. There is only one Zookeeper connection per framework,
+     * so more threads than this mostly wait in line for the same socket.
+     */
+    public static final int DEFAULT_IO_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final long IDLE_THREAD_KEEP_ALIVE_SECONDS = 60;
+
+    private ZookeeperExecutors() {
+        // static utility
+    }
+
+    /**
+     * @return the process-wide default executor: a bounded pool of daemon threads sized for Zookeeper I/O
+     */
+    public static Executor defaultExecutor() {
+        return DefaultPoolHolder.POOL;
+    }
+
+    /**
+     * A process-wide timer for delayed work (coalescing windows, timeouts, backoff). Scheduled tasks must only hand
+     * work over to another executor, never do it on the timer thread.
+     * @return the shared scheduler
+     */
+    public static ScheduledExecutorService scheduler() {
+        return SchedulerHolder.SCHEDULER;
+    }
+
+    /**
+     * Creates a new bounded pool of daemon threads. The caller owns the pool and is responsible for shutting it down.
+     * @param threads the maximal number of threads in the pool
+     * @return a new executor service
+     */
+    public static ExecutorService newIoPool(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("the number of threads must be positive. Got " + threads);
+        }
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                IDLE_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new DaemonThreadFactory("monastery-zk-io"));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * @return true if the running JVM supports virtual threads (Java 21 or later)
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VirtualThreads.FACTORY_METHOD != null;
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     * Only available on JVMs that support virtual threads. This code is compiled for Java 8, so the executor is
+     * looked up reflectively.
+     * @return a new virtual thread per task executor
+     * @throws UnsupportedOperationException if the running JVM does not support virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor() {
+        if (!isVirtualThreadSupported()) {
+            throw new UnsupportedOperationException("virtual threads are not supported by this JVM (" +
+                    System.getProperty("java.version") + ")");
+        }
+        try {
+            return (ExecutorService) VirtualThreads.FACTORY_METHOD.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("failed to create a virtual thread executor", e);
+        }
+    }
+
+    /**
+     * Lazy holder for the default pool, so that merely loading this class does not start anything
+     */
+    private static class DefaultPoolHolder {
+        private static final ExecutorService POOL = newIoPool(DEFAULT_IO_THREADS);
+    }
+
+    /**
+     * Lazy holder for the shared scheduler
+     */
+    private static class SchedulerHolder {
+        private static final ScheduledExecutorService SCHEDULER = newScheduler();
+
+        private static ScheduledExecutorService newScheduler() {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1,
+                    new DaemonThreadFactory("monastery-zk-timer"));
+            scheduler.setRemoveOnCancelPolicy(true);
+            return scheduler;
+        }
+    }
+
+    /**
+     * Lazy holder for the reflective lookup of the virtual thread executor factory method
+     */
+    private static class VirtualThreads {
+        private static final Method FACTORY_METHOD = lookup();
+
+        private static Method lookup() {
+            try {
+                return java.util.concurrent.Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            } catch (NoSuchMethodException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger counter = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.apache.curator.framework.state.ConnectionState;
+
+/**
+ * A service provider interface for Zookeeper latency metrics.
+ * Implementations are called on the Zookeeper hot paths, from many threads at once, so they must be thread safe and
+ * cheap. Bridge to an external metrics system by implementing this interface, or by reading InMemoryZookeeperMetrics
+ * periodically.
+ */
+public interface ZookeeperMetrics {
+    /**
+     * Records nothing. The default.
+     */
+    ZookeeperMetrics NO_OP = new ZookeeperMetrics() {
+        @Override
+        public void recordOperation(ZookeeperOperation operation, long nanos, boolean success) {
+        }
+
+        @Override
+        public void recordConnectionStateChange(ConnectionState previous, ConnectionState next, long nanos) {
+        }
+    };
+
+    /**
+     * Records a completed Zookeeper operation.
+     * An operation succeeds if Zookeeper answered it. A missing node is a successful answer for an EXISTS, and a
+     * failure for every other operation.
+     * @param operation the operation type
+     * @param nanos the time from issuing the operation until its result was available
+     * @param success whether the operation succeeded
+     */
+    void recordOperation(ZookeeperOperation operation, long nanos, boolean success);
+
+    /**
+     * Records a connection state transition, as reported by the Curator ConnectionStateListener
+     * @param previous the state before the transition, or null if this is the first state after starting the framework
+     * @param next the new state
+     * @param nanos the time spent in the previous state (or, if there is none, since the framework was started)
+     */
+    void recordConnectionStateChange(ConnectionState previous, ConnectionState next, long nanos);
+
+    /**
+     * Records that a NodeSupervisor found its node disconnected
+     * @param nanos the time from the last moment the node was known to be connected until the loss was detected
+     */
+    default void recordNodeLossDetected(long nanos) {
+    }
+
+    /**
+     * Records that a NodeSupervisor brought its node back to JOINED
+     * @param nanos the time from detecting the loss until the node joined again
+     */
+    default void recordNodeRecovered(long nanos) {
+    }
+}
@@ -20,14 +20,21 @@ package net.projectmonastery.monastery.zookeeper;
 import net.projectmonastery.monastery.api.core.Capability;
 import net.projectmonastery.monastery.api.core.Node;
 import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.zookeeper.common.PathUtils;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
 
 /**
  * Created by Arnon Moscona on 6/17/2015.
@@ -37,26 +44,75 @@ public class ZookeeperNode implements Node<String> {
     private final CuratorFramework curatorFramework;
     private final ArrayList<Capability> capabilities;
     private final String connectionString;
-    private String id;
+    private final Executor executor;
+    private final NodeRegistry registry;
+    /**
+     * Maps every class and interface a capability is assignable to onto an already completed future of the first
+     * such capability. Misses are cached too, as failed futures. Replaced as a whole when the capabilities change.
+     */
+    private volatile Map<Class<?>, CompletableFuture<?>> capabilityIndex;
+    private volatile String id;
     private String rootPath;
-    private NodeState state = NodeState.DISCONNECTED;
+    private volatile NodeState state = NodeState.DISCONNECTED;
 
     public ZookeeperNode(CuratorFramework curatorFramework, String connectionString, List<Capability> capabilities, String rootPath) {
+        this(curatorFramework, connectionString, capabilities, rootPath, null);
+    }
+
+    /**
+     * @param curatorFramework a started Curator framework
+     * @param connectionString the connection string
+     * @param capabilities the capabilities to bind to this node
+     * @param rootPath the root znode path of the cluster
+     * @param executor the executor for all asynchronous work done on behalf of this node.
+     *                 If null, the default Zookeeper I/O pool is used.
+     */
+    public ZookeeperNode(CuratorFramework curatorFramework, String connectionString, List<Capability> capabilities, String rootPath, Executor executor) {
+        this(curatorFramework, connectionString, capabilities,
+                new NodeRegistry(curatorFramework, validRootPath(rootPath), executor));
+    }
+
+    /**
+     * @param curatorFramework a started Curator framework
+     * @param connectionString the connection string
+     * @param capabilities the capabilities to bind to this node
+     * @param registry the node registry to announce this node with. The node uses the registry's root path and executor.
+     */
+    public ZookeeperNode(CuratorFramework curatorFramework, String connectionString, List<Capability> capabilities, NodeRegistry registry) {
+        this(curatorFramework, connectionString, capabilities, registry, true);
+    }
+
+    /**
+     * Used by the builder to bind the capabilities asynchronously, with bindAllCapabilitiesAsync()
+     * @param bindNow whether to bind and resolve the capabilities in the constructor
+     */
+    ZookeeperNode(CuratorFramework curatorFramework, String connectionString, List<Capability> capabilities, NodeRegistry registry, boolean bindNow) {
         assert curatorFramework != null : "must provide a CuratorFramework";
         assert connectionString != null : "must have a connection string";
         assert capabilities != null : "must provide a list of capabilities, even if empty";
-        PathUtils.validatePath(rootPath);
+        assert registry != null : "must provide a node registry";
+        PathUtils.validatePath(registry.getRootPath());
         assert curatorFramework.getState().equals(CuratorFrameworkState.STARTED) : "cannot create node with a framework that is not started";
 
         this.curatorFramework = curatorFramework;
         this.capabilities = new ArrayList<>(capabilities);
-        this.rootPath = rootPath;
+        this.registry = registry;
+        this.rootPath = registry.getRootPath();
+        this.executor = registry.getExecutor();
 //        this.connectionString = connectionString;
         this.connectionString = curatorFramework.getZookeeperClient().getCurrentConnectionString();
         state = NodeState.DISCONNECTED;
-        bindAllCapabilities();
-        resolveCapabilityDependencies();
-        validateCapabilityState();
+        capabilityIndex = indexCapabilities(this.capabilities);
+        if (bindNow) {
+            bindAllCapabilities();
+            resolveCapabilityDependencies();
+            validateCapabilityState();
+        }
+    }
+
+    private static String validRootPath(String rootPath) {
+        PathUtils.validatePath(rootPath);
+        return rootPath;
     }
 
     /**
@@ -73,6 +129,38 @@ public class ZookeeperNode implements Node<String> {
         capabilities.forEach(Capability::onAllCapabilitiesBound);
     }
 
+    /**
+     * Binds all capabilities, then resolves their dependencies, on the node's executor.
+     * Each IndependentCapability is bound (and later resolved) as a task of its own. The rest are bound one by one,
+     * in order, in a single task, just as the constructor would.
+     * @return a future of this node, completing once all capabilities are ready
+     */
+    CompletableFuture<ZookeeperNode> bindAllCapabilitiesAsync() {
+        return forAllCapabilitiesAsync(capability -> capability.bind(this))
+                .thenCompose(nothing -> forAllCapabilitiesAsync(Capability::onAllCapabilitiesBound))
+                .thenApply(nothing -> {
+                    validateCapabilityState();
+                    return this;
+                });
+    }
+
+    private CompletableFuture<Void> forAllCapabilitiesAsync(Consumer<Capability> step) {
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        List<Capability> dependent = new ArrayList<>();
+        for (Capability capability: capabilities) {
+            if (capability instanceof IndependentCapability) {
+                tasks.add(CompletableFuture.runAsync(() -> step.accept(capability), executor));
+            }
+            else {
+                dependent.add(capability);
+            }
+        }
+        if (!dependent.isEmpty()) {
+            tasks.add(CompletableFuture.runAsync(() -> dependent.forEach(step), executor));
+        }
+        return CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[tasks.size()]));
+    }
+
     private void validateCapabilityState() {
         capabilities.forEach(capability -> {
             String name = capability.getClass().getSimpleName();
@@ -85,19 +173,61 @@ public class ZookeeperNode implements Node<String> {
         return Optional.ofNullable(id);
     }
 
+    /**
+     * Looks up a capability by class or interface without scanning the capabilities and, after the first lookup of a
+     * missing class, without allocating.
+     * Note that the returned future is shared between callers. It is already complete, and must not be obtruded.
+     */
     @Override
+    @SuppressWarnings("unchecked")
     public <T extends Capability> CompletableFuture<T> getCapability(Class<T> capabilityClass) {
         // in this case we do no network operations and the lookup is fast, so no need to throw this on a background thread...
+        Map<Class<?>, CompletableFuture<?>> index = capabilityIndex;
+        CompletableFuture<?> future = index.get(capabilityClass);
+        if (future == null) {
+            future = index.computeIfAbsent(capabilityClass, ZookeeperNode::missingCapability);
+        }
+        return (CompletableFuture<T>) future;
+    }
 
-        CompletableFuture<T> future = new CompletableFuture<>(); // we cannot use supplyAsync because we want to complete exceptionally
-
+    /**
+     * Builds the lookup index. Where several capabilities match a type, the first in the list wins.
+     * @param capabilities the capabilities, in order
+     * @return a new index
+     */
+    private static Map<Class<?>, CompletableFuture<?>> indexCapabilities(List<Capability> capabilities) {
+        Map<Class<?>, CompletableFuture<?>> index = new ConcurrentHashMap<>();
         for (Capability capability: capabilities) {
-            if (capabilityClass.isAssignableFrom(capability.getClass())) {
-                future.complete(capabilityClass.cast(capability));
-                return future;
+            CompletableFuture<Capability> found = CompletableFuture.completedFuture(capability);
+            for (Class<?> type: assignableTypes(capability.getClass())) {
+                index.putIfAbsent(type, found);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @param type a class
+     * @return the class, all its superclasses, and all the interfaces any of them implement
+     */
+    private static Set<Class<?>> assignableTypes(Class<?> type) {
+        Set<Class<?>> types = new LinkedHashSet<>();
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            addWithSuperInterfaces(current, types);
+        }
+        return types;
+    }
+
+    private static void addWithSuperInterfaces(Class<?> type, Set<Class<?>> types) {
+        if (types.add(type)) {
+            for (Class<?> implemented: type.getInterfaces()) {
+                addWithSuperInterfaces(implemented, types);
             }
         }
+    }
 
+    private static CompletableFuture<?> missingCapability(Class<?> capabilityClass) {
+        CompletableFuture<?> future = new CompletableFuture<>(); // we cannot use supplyAsync because we want to complete exceptionally
         future.completeExceptionally(new Exception("cannot find a capability matching " + capabilityClass.getName()));
         return future;
     }
@@ -127,6 +257,21 @@ public class ZookeeperNode implements Node<String> {
         newCapabilities.addAll(capabilities);
         capabilities.clear();
         capabilities.addAll(newCapabilities);
+        capabilityIndex = indexCapabilities(capabilities);
+    }
+
+    /**
+     * @return the executor used for all asynchronous work done on behalf of this node
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @return the node registry this node is announced with
+     */
+    public NodeRegistry getRegistry() {
+        return registry;
     }
 
     public String getRootPath() {
@@ -142,6 +287,13 @@ public class ZookeeperNode implements Node<String> {
         id = newId;
     }
 
+    /**
+     * To be used only by Monastery implementation classes, to re-announce a node whose registration was lost
+     */
+    public void resetId() {
+        id = null;
+    }
+
     /**
      * To be used only by Monastery implementation classes
      * @param state the new state
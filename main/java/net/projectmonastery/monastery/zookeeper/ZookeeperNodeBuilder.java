@@ -21,18 +21,27 @@ import net.projectmonastery.monastery.api.core.Capability;
 import net.projectmonastery.monastery.api.core.Node;
 import net.projectmonastery.monastery.api.core.NodeBuilder;
 import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.curator.framework.state.ConnectionState;
 import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.ZooKeeper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.apache.zookeeper.common.PathUtils;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -61,6 +70,22 @@ public class ZookeeperNodeBuilder implements NodeBuilder<String> {
     private String connectionString;
     private String rootPath = DEFAULT_ROOT_PATH;
     private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT_MILLIS;
+    /**
+     * The executor for all asynchronous Zookeeper work. Null means the default bounded Zookeeper I/O pool.
+     */
+    private Executor executor;
+    /**
+     * The executor, if this builder created it (withIoThreads(), withVirtualThreads()) and nothing was built with it
+     * yet. Shut down if replaced before that.
+     */
+    private ExecutorService ownedExecutor;
+    private NodeRegistry.Mode registryMode = NodeRegistry.Mode.BLOCKING;
+    private boolean membershipCache = false;
+    private ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    /**
+     * If set, the session is saved here and resumed on the next build
+     */
+    private ZookeeperSessionStore sessionStore;
 
     public ZookeeperNodeBuilder() {
         capabilities = new ArrayList<>();
@@ -88,17 +113,252 @@ public class ZookeeperNodeBuilder implements NodeBuilder<String> {
     public Node<String> build() throws Exception {
         validateConflicts();
         logger.debug("passed conflict validation");
-        CuratorFramework cf = appCuratorFramework;
-        if (cf == null) {
+        CuratorFramework cf = resolveFramework();
+        ownedExecutor = null; // the built nodes keep using it
+        ZookeeperNode node = new ZookeeperNode(cf, connectionString, capabilities, connectAndMakeRegistry(cf));
+        if (sessionStore != null) {
+            resumeSession(node).get();
+        }
+        return node;
+    }
+
+    /**
+     * @return the given framework, or a new one made by the given framework builder
+     */
+    private CuratorFramework resolveFramework() throws Exception {
+        if (appCuratorFramework != null) {
+            if (sessionStore != null) {
+                throw new Exception("Session resume needs a framework builder, so that the Zookeeper client is " +
+                        "created with the saved session. Use withCuratorFrameworkBuilder()");
+            }
+            return appCuratorFramework;
+        }
+        if (frameBuilder == null) {
             throw new Exception("No CuratorFramework provided, and not enough information to create a default.");
         }
+        Optional<ZookeeperSessionStore.SavedSession> saved = sessionStore != null ?
+                loadSavedSession() :
+                Optional.empty();
+        if (!saved.isPresent()) {
+            CuratorFramework cf = frameBuilder.build();
+            initFieldsFromFramework(cf);
+            return cf;
+        }
+        // the builder belongs to the caller, so the resuming factory is only installed for the duration of this build
+        ZookeeperFactory factory = frameBuilder.getZookeeperFactory();
+        frameBuilder.zookeeperFactory(new ResumingZookeeperFactory(factory, saved.get()));
+        try {
+            CuratorFramework cf = frameBuilder.build();
+            initFieldsFromFramework(cf);
+            return cf;
+        }
+        finally {
+            frameBuilder.zookeeperFactory(factory);
+        }
+    }
+
+    private Optional<ZookeeperSessionStore.SavedSession> loadSavedSession() {
+        return sessionStore.load().filter(saved -> saved.getRootPath().equals(rootPath));
+    }
+
+    /**
+     * Keeps the node's session saved whenever it joins, and if the framework reattached to the saved session and the
+     * saved node is still registered by it, has the node adopt that registration instead of announcing anew.
+     * @param node a node whose framework is connected
+     * @return a future completing once the node resumed, or it is known that it cannot. Never fails.
+     */
+    private CompletableFuture<Void> resumeSession(ZookeeperNode node) {
+        Optional<ZookeeperNodeAnnouncement> found = ZookeeperNodeAnnouncement.find(node);
+        if (!found.isPresent()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ZookeeperNodeAnnouncement announcement = found.get();
+        ZookeeperSessionStore store = sessionStore;
+        String root = rootPath;
+        announcement.addJoinListener(joined -> saveSession(store, node, root));
+
+        Optional<ZookeeperSessionStore.SavedSession> saved = loadSavedSession();
+        if (!saved.isPresent()) {
+            return CompletableFuture.completedFuture(null);
+        }
+        long sessionId;
+        try {
+            sessionId = node.getCuratorFramework().getZookeeperClient().getZooKeeper().getSessionId();
+        } catch (Exception e) {
+            logger.warn("Cannot resume " + saved.get() + ": " + e);
+            return CompletableFuture.completedFuture(null);
+        }
+        if (sessionId != saved.get().getSessionId()) {
+            logger.info("Could not resume " + saved.get() + ". It probably expired. The node will be announced anew.");
+            return CompletableFuture.completedFuture(null);
+        }
+        String nodeId = saved.get().getNodeId();
+        return node.getRegistry().isNodeOwnedBy(nodeId, sessionId).handle((owned, throwable) -> {
+            if (throwable != null) {
+                logger.warn("Cannot verify the registration of node " + nodeId + ". The node will be announced anew.", throwable);
+            }
+            else if (owned) {
+                logger.info("Resumed " + saved.get());
+                announcement.resume(nodeId);
+            }
+            else {
+                logger.info("Resumed the session, but node " + nodeId + " is no longer registered by it. The node will be announced anew.");
+            }
+            return null;
+        });
+    }
+
+    private static void saveSession(ZookeeperSessionStore store, ZookeeperNode node, String rootPath) {
+        try {
+            ZooKeeper zooKeeper = node.getCuratorFramework().getZookeeperClient().getZooKeeper();
+            store.save(new ZookeeperSessionStore.SavedSession(zooKeeper.getSessionId(), zooKeeper.getSessionPasswd(),
+                    node.getId().get(), rootPath));
+        } catch (Exception e) {
+            logger.warn("Failed to save the session of node " + node.getId().orElse(null) + " to " + store.getFile(), e);
+        }
+    }
+
+    /**
+     * Builds a factory of many nodes that share one framework (and so one Zookeeper session), one node registry
+     * (and so one membership watch) and one executor, all configured by this builder.
+     * Capabilities are bound to a single node, so they are given to ZookeeperNodeFactory.newNode() rather than
+     * added to this builder.
+     * With a framework builder, the factory creates the framework, owns it, and closes it once the factory is closed
+     * and all its nodes are released. A framework given with withCuratorFramework() remains the caller's.
+     * Likewise, the factory owns a pool made by withIoThreads() or withVirtualThreads(), and shuts it down on
+     * termination. An executor given with withExecutor() remains the caller's.
+     * @return a new factory
+     */
+    public ZookeeperNodeFactory buildFactory() throws Exception {
+        validateConflicts();
+        if (capabilities.size() > 1) {
+            throw new Exception("Capabilities are bound to a single node. Pass them to ZookeeperNodeFactory.newNode()");
+        }
+        if (sessionStore != null) {
+            throw new Exception("Session resume keeps the ID of a single node, so it does not apply to a node factory");
+        }
+        boolean ownsFramework = appCuratorFramework == null;
+        CuratorFramework cf = resolveFramework();
+        try {
+            ZookeeperNodeFactory factory = new ZookeeperNodeFactory(cf, connectAndMakeRegistry(cf), ownsFramework,
+                    ownedExecutor);
+            ownedExecutor = null;
+            return factory;
+        } catch (Exception e) {
+            if (ownsFramework) {
+                cf.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Builds the node without blocking the calling thread. Connecting is driven by the framework's connection state
+     * events, and the capabilities are then bound on the node's executor, independent capabilities
+     * (see IndependentCapability) in parallel.
+     * @return a future of the node, completing exceptionally if the connection times out or binding fails.
+     * A framework made by the framework builder is closed on failure.
+     */
+    public CompletableFuture<Node<String>> buildAsync() {
+        CuratorFramework cf;
+        boolean ownsFramework = appCuratorFramework == null;
+        try {
+            validateConflicts();
+            cf = resolveFramework();
+            ownedExecutor = null; // the built node keeps using it
+        } catch (Exception e) {
+            CompletableFuture<Node<String>> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+
+        boolean started = cf.getState().equals(CuratorFrameworkState.STARTED);
+        addConnectionStateTimer(cf, started);
+        return connectAsync(cf, connectionTimeout)
+                .thenComposeAsync(nothing -> new ZookeeperNode(cf, connectionString, capabilities, makeRegistry(cf), false)
+                        .bindAllCapabilitiesAsync(), getExecutor())
+                .thenCompose(node -> sessionStore == null ?
+                        CompletableFuture.completedFuture(node) :
+                        resumeSession(node).thenApply(nothing -> node))
+                .<Node<String>>thenApply(node -> node)
+                .whenComplete((node, throwable) -> {
+                    if (throwable != null && ownsFramework) {
+                        cf.close(); // or its client keeps retrying to connect
+                    }
+                });
+    }
+
+    /**
+     * Starts the framework if needed, and completes once it is connected
+     * @param timeoutMillis how long to wait for the connection. Zero or less means indefinitely.
+     * @return a future completing once connected, or exceptionally on timeout
+     */
+    private CompletableFuture<Void> connectAsync(CuratorFramework cf, int timeoutMillis) {
+        CompletableFuture<Void> connected = new CompletableFuture<>();
+        AtomicReference<ConnectionState> lastConnectionState = new AtomicReference<>();
+        ConnectionStateListener listener = (curatorFramework, connectionState) -> {
+            lastConnectionState.set(connectionState);
+            if (connectionState.isConnected()) {
+                connected.complete(null);
+            }
+        };
+        cf.getConnectionStateListenable().addListener(listener);
+        connected.whenComplete((nothing, throwable) -> cf.getConnectionStateListenable().removeListener(listener));
+
+        try {
+            if (!cf.getState().equals(CuratorFrameworkState.STARTED)) {
+                logger.info("Connecting asynchronously with timeout " + timeoutMillis + " millis");
+                cf.start();
+            }
+        } catch (RuntimeException e) {
+            connected.completeExceptionally(e);
+            return connected;
+        }
+        if (cf.getZookeeperClient().isConnected()) { // already connected, or connected before the listener was added
+            connected.complete(null);
+        }
+
+        if (timeoutMillis > 0 && !connected.isDone()) {
+            ScheduledFuture<?> timer = ZookeeperExecutors.scheduler().schedule(() ->
+                    connected.completeExceptionally(new Exception("Failed to connect to Zookeeper within " +
+                            timeoutMillis + " millis. Framework state: " + cf.getState() +
+                            " connection state: " + lastConnectionState.get())),
+                    timeoutMillis, TimeUnit.MILLISECONDS);
+            connected.whenComplete((nothing, throwable) -> timer.cancel(false));
+        }
+        return connected;
+    }
+
+    /**
+     * Starts the framework if needed, and makes a node registry over it as configured
+     */
+    private NodeRegistry connectAndMakeRegistry(CuratorFramework cf) throws Exception {
         logger.debug("checking framework state");
         CuratorFrameworkState state = cf.getState();
         logger.debug("Got state: " + state);
-        if (!state.equals(CuratorFrameworkState.STARTED)) {
+        boolean started = state.equals(CuratorFrameworkState.STARTED);
+        addConnectionStateTimer(cf, started);
+        if (!started) {
             startFramework(cf, connectionTimeout);
         }
-        return new ZookeeperNode(cf, connectionString, capabilities, rootPath);
+        return makeRegistry(cf);
+    }
+
+    private void addConnectionStateTimer(CuratorFramework cf, boolean started) {
+        if (metrics != ZookeeperMetrics.NO_OP) {
+            ConnectionState current = started && cf.getZookeeperClient().isConnected() ? ConnectionState.CONNECTED : null;
+            cf.getConnectionStateListenable().addListener(new ConnectionStateTimer(metrics, current));
+        }
+    }
+
+    private NodeRegistry makeRegistry(CuratorFramework cf) {
+        NodeRegistry registry = new NodeRegistry(cf, rootPath, getExecutor())
+                .withMode(registryMode)
+                .withMetrics(metrics);
+        if (membershipCache) {
+            registry.withMembershipCache();
+        }
+        return registry;
     }
 
     private void startFramework(CuratorFramework cf, int timeoutMillis) throws Exception {
@@ -182,4 +442,122 @@ public class ZookeeperNodeBuilder implements NodeBuilder<String> {
         connectionTimeout = timeout;
         return this;
     }
+
+    /**
+     * Use a caller-supplied executor for all asynchronous Zookeeper work of the built nodes.
+     * The caller retains ownership of the executor.
+     * @param executor the executor to use
+     */
+    public ZookeeperNodeBuilder withExecutor(Executor executor) throws Exception {
+        if (executor == null) {
+            throw new Exception("Null executor not allowed");
+        }
+        useExecutor(executor, null);
+        return this;
+    }
+
+    /**
+     * Use a new dedicated bounded pool for the built nodes, instead of the shared default pool.
+     * A factory built with buildFactory() owns the pool and shuts it down on termination. Nodes built with build()
+     * or buildAsync() have no end of life, so their pool is never shut down: its threads are daemon threads and
+     * exit when idle. To shut the pool down explicitly, pass your own with withExecutor() instead.
+     * @param threads the number of threads in the pool
+     */
+    public ZookeeperNodeBuilder withIoThreads(int threads) {
+        ExecutorService pool = ZookeeperExecutors.newIoPool(threads);
+        useExecutor(pool, pool);
+        return this;
+    }
+
+    /**
+     * Run each asynchronous Zookeeper task on its own virtual thread.
+     * Only available on JVMs that support virtual threads. Owned like a pool made by withIoThreads().
+     */
+    public ZookeeperNodeBuilder withVirtualThreads() throws Exception {
+        if (!ZookeeperExecutors.isVirtualThreadSupported()) {
+            throw new Exception("Virtual threads are not supported by this JVM (" +
+                    System.getProperty("java.version") + ")");
+        }
+        ExecutorService virtualThreads = ZookeeperExecutors.newVirtualThreadPerTaskExecutor();
+        useExecutor(virtualThreads, virtualThreads);
+        return this;
+    }
+
+    /**
+     * @param executor the executor for the built nodes
+     * @param owned the same executor if this builder created it, otherwise null
+     */
+    private void useExecutor(Executor executor, ExecutorService owned) {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown(); // nothing was built with it yet, or it would no longer be owned
+        }
+        this.executor = executor;
+        ownedExecutor = owned;
+    }
+
+    /**
+     * Selects how the node registry talks to Zookeeper. With NON_BLOCKING, registry operations are issued as Curator
+     * background calls and no thread waits for a round trip.
+     * @param mode the registry mode
+     */
+    public ZookeeperNodeBuilder withRegistryMode(NodeRegistry.Mode mode) throws Exception {
+        if (mode == null) {
+            throw new Exception("Null registry mode not allowed");
+        }
+        registryMode = mode;
+        return this;
+    }
+
+    /**
+     * Keep a watched in-memory view of the registered nodes, so that node existence checks and node listing
+     * are answered from memory
+     */
+    public ZookeeperNodeBuilder withMembershipCache() {
+        membershipCache = true;
+        return this;
+    }
+
+    /**
+     * Record the latency of every Zookeeper operation, and the time spent in each connection state, of the built nodes
+     * @param metrics where to record. InMemoryZookeeperMetrics keeps percentiles in memory.
+     */
+    public ZookeeperNodeBuilder withMetrics(ZookeeperMetrics metrics) throws Exception {
+        if (metrics == null) {
+            throw new Exception("Null metrics not allowed");
+        }
+        this.metrics = metrics;
+        return this;
+    }
+
+    public ZookeeperMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Opt in to resuming the Zookeeper session across fast process restarts, so that the node keeps its ID.
+     * The session credentials and the node ID are saved to the given file (readable by its owner only) whenever the
+     * node joins. On the next build, the Zookeeper client reattaches to the saved session, and if the session did not
+     * time out yet and still owns the node's znode, the node is JOINED under its old ID: announce() then completes
+     * without registering again. Otherwise the node is announced as usual.
+     * <p>
+     * Requires a framework builder (withCuratorFrameworkBuilder()), as the Zookeeper client must be created with the
+     * saved credentials. Note that closing the framework ends the session, so only a process that exits without
+     * closing it can be resumed.
+     * </p>
+     * @param sessionFile the file to keep the session in. Its directory must exist.
+     */
+    public ZookeeperNodeBuilder withSessionResume(Path sessionFile) throws Exception {
+        if (sessionFile == null) {
+            throw new Exception("Null session file not allowed");
+        }
+        sessionStore = new ZookeeperSessionStore(sessionFile);
+        return this;
+    }
+
+    /**
+     * @return the executor the built nodes will use
+     */
+    public Executor getExecutor() {
+        return executor == null ? ZookeeperExecutors.defaultExecutor() : executor;
+    }
 }
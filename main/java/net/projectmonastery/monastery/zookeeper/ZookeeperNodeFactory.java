@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import net.projectmonastery.monastery.api.core.Capability;
+import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes many nodes over a single Curator framework, so that all of them share one Zookeeper session, one node
+ * registry (and so at most one membership watch) and one executor. Build it with ZookeeperNodeBuilder.buildFactory().
+ * <p>
+ * Shutdown is reference counted: the factory holds one reference, and every node it made holds one until it is
+ * released. Once the factory is closed and the last node released, the registry is closed, and so are the framework
+ * and the executor if the factory owns them.
+ * </p>
+ * <p>
+ * Since the nodes share a session, a node's ephemeral znode does not go away on its own when the node is no longer
+ * used. Release nodes explicitly to have them leave the cluster.
+ * </p>
+ */
+public class ZookeeperNodeFactory implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ZookeeperNodeFactory.class);
+    private final CuratorFramework curatorFramework;
+    private final NodeRegistry registry;
+    private final boolean ownsFramework;
+    private final ExecutorService ownedExecutor;
+    private final Set<ZookeeperNode> nodes = ConcurrentHashMap.newKeySet();
+    /**
+     * One reference for the factory itself, plus one for every node not yet released
+     */
+    private final AtomicInteger references = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private volatile boolean terminated = false;
+
+    /**
+     * @param curatorFramework a started framework
+     * @param registry the registry shared by all the nodes, using the same framework
+     * @param ownsFramework whether to close the framework on termination
+     */
+    public ZookeeperNodeFactory(CuratorFramework curatorFramework, NodeRegistry registry, boolean ownsFramework) {
+        this(curatorFramework, registry, ownsFramework, null);
+    }
+
+    /**
+     * @param curatorFramework a started framework
+     * @param registry the registry shared by all the nodes, using the same framework
+     * @param ownsFramework whether to close the framework on termination
+     * @param ownedExecutor the registry's executor, to shut down on termination, or null if it is not the factory's
+     */
+    public ZookeeperNodeFactory(CuratorFramework curatorFramework, NodeRegistry registry, boolean ownsFramework,
+                                ExecutorService ownedExecutor) {
+        assert curatorFramework != null : "must provide a CuratorFramework";
+        assert registry != null : "must provide a node registry";
+        assert registry.getCuratorFramework() == curatorFramework : "the registry must use the same framework";
+        this.curatorFramework = curatorFramework;
+        this.registry = registry;
+        this.ownsFramework = ownsFramework;
+        this.ownedExecutor = ownedExecutor;
+    }
+
+    /**
+     * Makes a new node. A ZookeeperNodeAnnouncement capability is added first, unless one is given.
+     * @param capabilities the capabilities of the new node. Capabilities are bound to a single node, so every node
+     *                     needs its own instances.
+     * @return the new node, not yet announced
+     * @throws Exception if the factory is closed, or a capability is null
+     */
+    public ZookeeperNode newNode(Capability... capabilities) throws Exception {
+        return newNode(Arrays.asList(capabilities));
+    }
+
+    /**
+     * @see #newNode(Capability...)
+     */
+    public ZookeeperNode newNode(List<Capability> capabilities) throws Exception {
+        if (capabilities.contains(null)) {
+            throw new Exception("Null capabilities not allowed");
+        }
+        acquire();
+        try {
+            List<Capability> all = new ArrayList<>(capabilities.size() + 1);
+            if (capabilities.stream().noneMatch(capability -> capability instanceof ZookeeperNodeAnnouncement)) {
+                all.add(new ZookeeperNodeAnnouncement());
+            }
+            all.addAll(capabilities);
+            ZookeeperNode node = new ZookeeperNode(curatorFramework,
+                    curatorFramework.getZookeeperClient().getCurrentConnectionString(), all, registry);
+            nodes.add(node);
+            return node;
+        } catch (Throwable t) {
+            releaseReference();
+            throw t;
+        }
+    }
+
+    /**
+     * Announces several nodes of this factory in as few round trips as possible
+     * @param nodes nodes made by this factory, not announced yet
+     * @return the new node IDs, in the order of the given nodes (as a future)
+     */
+    public CompletableFuture<List<String>> announceAll(List<ZookeeperNode> nodes) {
+        assert this.nodes.containsAll(nodes) : "can only announce nodes made by this factory and not released";
+        return ZookeeperNodeAnnouncement.announceAll(nodes);
+    }
+
+    /**
+     * Releases a node: unregisters it if it was announced, closes its closeable capabilities (which unsubscribes them
+     * from the shared registry), and drops its reference to the framework.
+     * Releasing a node again, or a node not made by this factory, has no effect.
+     * @param node the node
+     * @return a future completing once the node left (failures to unregister are logged, not reported)
+     */
+    public CompletableFuture<Void> release(ZookeeperNode node) {
+        if (!nodes.remove(node)) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> left = node.getId().isPresent() ?
+                registry.removeNode(node.getId().get()) :
+                CompletableFuture.completedFuture(null);
+        return left.handle((nothing, throwable) -> {
+            if (throwable != null) {
+                logger.warn("Failed to unregister node " + node.getId().orElse(null), throwable);
+            }
+            node.setState(NodeState.DISCONNECTED);
+            closeCapabilities(node);
+            releaseReference();
+            return null;
+        });
+    }
+
+    private static void closeCapabilities(ZookeeperNode node) {
+        for (Capability capability: node.getCapabilities()) {
+            if (capability instanceof AutoCloseable) {
+                try {
+                    ((AutoCloseable) capability).close();
+                } catch (Exception e) {
+                    logger.warn("Failed to close " + capability.getClass().getSimpleName() + " of released node " +
+                            node.getId().orElse(null), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes the factory for new nodes. The shared resources are released once all the nodes are released too.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            releaseReference();
+        }
+    }
+
+    /**
+     * @return the number of nodes made and not released yet
+     */
+    public int getNodeCount() {
+        return nodes.size();
+    }
+
+    /**
+     * @return true if the factory was closed and all its nodes released, so the shared resources were released
+     */
+    public boolean isTerminated() {
+        return terminated;
+    }
+
+    public CuratorFramework getCuratorFramework() {
+        return curatorFramework;
+    }
+
+    public NodeRegistry getRegistry() {
+        return registry;
+    }
+
+    private void acquire() throws Exception {
+        while (true) {
+            int current = references.get();
+            if (current == 0 || closed.get()) {
+                throw new Exception("The node factory is closed");
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void releaseReference() {
+        if (references.decrementAndGet() == 0) {
+            logger.debug("Last reference released. Terminating the node factory.");
+            registry.close();
+            if (ownsFramework) {
+                curatorFramework.close();
+            }
+            if (ownedExecutor != null) {
+                ownedExecutor.shutdown();
+            }
+            terminated = true;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+/**
+ * The Zookeeper operation types measured by ZookeeperMetrics
+ */
+public enum ZookeeperOperation {
+    EXISTS,
+    CREATE,
+    GET_CHILDREN,
+    GET_DATA,
+    SET_DATA,
+    DELETE,
+    /**
+     * A transaction (multi request), counted as one operation regardless of how many operations it contains
+     */
+    MULTI
+}
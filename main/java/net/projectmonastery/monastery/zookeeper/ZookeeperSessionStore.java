@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Persists a node's Zookeeper session credentials and node ID in a local properties file, so that a restarted process
+ * can reattach to the session before it times out, and keep the node ID (see ZookeeperNodeBuilder.withSessionResume()).
+ * <p>
+ * The session password lets anyone holding it take over the session, so the file is readable and writable by its
+ * owner only, and is replaced atomically.
+ * </p>
+ */
+public class ZookeeperSessionStore {
+    private static final Logger logger = LoggerFactory.getLogger(ZookeeperSessionStore.class);
+    private static final String SESSION_ID = "sessionId";
+    private static final String PASSWORD = "password";
+    private static final String NODE_ID = "nodeId";
+    private static final String ROOT_PATH = "rootPath";
+    private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+    private final Path file;
+
+    /**
+     * @param file the file to keep the session in. Its directory must exist.
+     */
+    public ZookeeperSessionStore(Path file) {
+        assert file != null : "must provide a file";
+        this.file = file;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * @return the saved session, if there is a readable one
+     */
+    public Optional<SavedSession> load() {
+        if (!Files.isRegularFile(file)) {
+            return Optional.empty();
+        }
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+            return Optional.of(new SavedSession(
+                    Long.parseUnsignedLong(properties.getProperty(SESSION_ID), 16),
+                    Base64.getDecoder().decode(properties.getProperty(PASSWORD)),
+                    properties.getProperty(NODE_ID),
+                    properties.getProperty(ROOT_PATH)));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Ignoring unreadable saved session " + file + ": " + e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @param session the session to save, replacing any saved one
+     * @throws IOException if the file cannot be written
+     */
+    public void save(SavedSession session) throws IOException {
+        Properties properties = new Properties();
+        properties.setProperty(SESSION_ID, Long.toHexString(session.getSessionId()));
+        properties.setProperty(PASSWORD, Base64.getEncoder().encodeToString(session.getPassword()));
+        properties.setProperty(NODE_ID, session.getNodeId());
+        properties.setProperty(ROOT_PATH, session.getRootPath());
+
+        Path directory = file.toAbsolutePath().getParent();
+        Path temp = Files.createTempFile(directory, file.getFileName().toString(), ".tmp", ownerOnly());
+        try {
+            if (!isPosix()) {
+                temp.toFile().setReadable(false, false);
+                temp.toFile().setReadable(true, true);
+                temp.toFile().setWritable(false, false);
+                temp.toFile().setWritable(true, true);
+            }
+            try (OutputStream out = Files.newOutputStream(temp)) {
+                properties.store(out, "Zookeeper session of a Monastery node. Secret: readable by its owner only.");
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Deletes the saved session, if any
+     */
+    public void clear() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            logger.warn("Failed to delete saved session " + file + ": " + e);
+        }
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    private static FileAttribute<?>[] ownerOnly() {
+        return isPosix() ? new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(OWNER_ONLY)} : new FileAttribute<?>[0];
+    }
+
+    /**
+     * The credentials of a Zookeeper session, and the node registered by it
+     */
+    public static class SavedSession {
+        private final long sessionId;
+        private final byte[] password;
+        private final String nodeId;
+        private final String rootPath;
+
+        public SavedSession(long sessionId, byte[] password, String nodeId, String rootPath) {
+            assert password != null && nodeId != null && rootPath != null : "all session fields are required";
+            this.sessionId = sessionId;
+            this.password = password.clone();
+            this.nodeId = nodeId;
+            this.rootPath = rootPath;
+        }
+
+        public long getSessionId() {
+            return sessionId;
+        }
+
+        public byte[] getPassword() {
+            return password.clone();
+        }
+
+        public String getNodeId() {
+            return nodeId;
+        }
+
+        public String getRootPath() {
+            return rootPath;
+        }
+
+        @Override
+        public String toString() {
+            return "session 0x" + Long.toHexString(sessionId) + " of node " + nodeId + " under " + rootPath;
+        }
+    }
+}
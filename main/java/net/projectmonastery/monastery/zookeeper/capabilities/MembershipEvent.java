@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+/**
+ * A change in the membership of the cluster, as seen by the local node
+ */
+public abstract class MembershipEvent {
+    private final String nodeId;
+    private final int cversion;
+
+    protected MembershipEvent(String nodeId, int cversion) {
+        this.nodeId = nodeId;
+        this.cversion = cversion;
+    }
+
+    /**
+     * @return the ID of the node that joined or left
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the cversion of the nodes root znode at which the change was observed
+     */
+    public int getCversion() {
+        return cversion;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "{" + nodeId + "}";
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.DataPathStrategy;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.IdBlockAllocator;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A capability for generating cluster unique IDs at a high rate.
+ * Each address names an independent ID sequence, kept in a persistent znode at its data path. Each node leases blocks
+ * of IDs from it and hands them out locally (see IdBlockAllocator), so most IDs cost no Zookeeper call, unlike
+ * sequential znodes, which cost a write per ID.
+ */
+public class ZookeeperIdAllocators implements IndependentCapability {
+    private final ConcurrentHashMap<DataAddress, IdBlockAllocator> allocators = new ConcurrentHashMap<>();
+    private DataPathStrategy givenPaths;
+    private int minBlockSize = IdBlockAllocator.DEFAULT_MIN_BLOCK_SIZE;
+    private int maxBlockSize = IdBlockAllocator.DEFAULT_MAX_BLOCK_SIZE;
+    private long targetLeaseIntervalMillis = IdBlockAllocator.DEFAULT_TARGET_LEASE_INTERVAL_MILLIS;
+    private DataPathStrategy paths;
+    private ZookeeperNode parentNode;
+
+    public ZookeeperIdAllocators() {
+    }
+
+    /**
+     * @param paths the strategy to place the sequences with. By default, hashed paths under the node's root path
+     * @return this capability
+     */
+    public ZookeeperIdAllocators withPathStrategy(DataPathStrategy paths) {
+        assert paths != null : "path strategy may not be null";
+        givenPaths = paths;
+        return this;
+    }
+
+    /**
+     * @param min the smallest block to lease. Must be set before binding
+     * @param max the largest block to lease. Must be set before binding
+     * @return this capability
+     */
+    public ZookeeperIdAllocators withBlockSizeLimits(int min, int max) {
+        assert min > 0 && min <= max : "must have 0 < min <= max";
+        assert paths == null : "block size limits must be set before binding";
+        minBlockSize = min;
+        maxBlockSize = max;
+        return this;
+    }
+
+    /**
+     * @param millis about how long a block should last at the observed consumption rate. Must be set before binding
+     * @return this capability
+     */
+    public ZookeeperIdAllocators withTargetLeaseIntervalMillis(long millis) {
+        assert millis > 0 : "target lease interval must be positive";
+        assert paths == null : "target lease interval must be set before binding";
+        targetLeaseIntervalMillis = millis;
+        return this;
+    }
+
+    @Override
+    public void bind(Node<?> node) {
+        assert node != null: "may not create this capability without a node";
+        assert ZookeeperNode.class.isAssignableFrom(node.getClass()) : "bound node must be a ZookeeperNode";
+        allocators.clear();
+        parentNode = (ZookeeperNode) node;
+        paths = givenPaths != null ? givenPaths : new HashedDataPaths(parentNode.getRootPath());
+    }
+
+    @Override
+    public boolean isReady() {
+        return paths != null;
+    }
+
+    /**
+     * While the block leased by this node lasts, the returned future is already complete
+     * @param address the sequence address
+     * @return a future of an ID of the sequence that no other call, on any node, gets
+     */
+    public CompletableFuture<Long> nextId(DataAddress address) {
+        return getAllocator(address).nextId();
+    }
+
+    /**
+     * @param address the sequence address
+     * @return the allocator of the sequence, created on first access
+     */
+    public IdBlockAllocator getAllocator(DataAddress address) {
+        assert paths != null : "capability is not bound";
+        IdBlockAllocator allocator = allocators.get(address);
+        if (allocator == null) {
+            allocator = allocators.computeIfAbsent(address, this::newAllocator);
+        }
+        return allocator;
+    }
+
+    /**
+     * @return the number of sequences accessed by this node
+     */
+    public int getAllocatorCount() {
+        return allocators.size();
+    }
+
+    private IdBlockAllocator newAllocator(DataAddress address) {
+        return new IdBlockAllocator(parentNode.getCuratorFramework(), paths.pathOf(address), parentNode.getExecutor())
+                .withBlockSizeLimits(minBlockSize, maxBlockSize)
+                .withTargetLeaseIntervalMillis(targetLeaseIntervalMillis)
+                .withMetrics(parentNode.getRegistry().getMetrics());
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.data.MembershipDelta;
+import net.projectmonastery.monastery.zookeeper.data.NodeMembershipCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A capability that reports peers joining and leaving the cluster.
+ * It uses the membership cache of the node's registry (enabling it if needed), so all the capabilities
+ * sharing a registry share a single children watch.
+ * <p>
+ * Each change is delivered as an ordered sequence of events: first the NodeLeft events, then the NodeJoined events,
+ * each in order of node ID (which is the order of registration). Events describe changes to the view, observed
+ * after the capability was bound. The initial load of the view is never reported, whether the capability was bound
+ * before or after it, so the nodes already registered (including this capability's own node, if announced) produce
+ * no events. Use getMembers() for the current view.
+ * </p>
+ */
+public class ZookeeperMembershipChanges implements IndependentCapability, Closeable {
+    private Logger logger = LoggerFactory.getLogger(ZookeeperMembershipChanges.class);
+    private final long coalescingWindowMillis;
+    private final List<Consumer<MembershipEvent>> listeners = new CopyOnWriteArrayList<>();
+    private final Consumer<MembershipDelta> deltaListener = this::onDelta;
+    private ZookeeperNode parentNode;
+    private NodeMembershipCache cache;
+
+    public ZookeeperMembershipChanges() {
+        this(0);
+    }
+
+    /**
+     * @param coalescingWindowMillis changes arriving within this window are reported together.
+     *                               Note that the window is a property of the registry's shared membership cache.
+     */
+    public ZookeeperMembershipChanges(long coalescingWindowMillis) {
+        assert coalescingWindowMillis >= 0 : "coalescing window may not be negative";
+        this.coalescingWindowMillis = coalescingWindowMillis;
+    }
+
+    @Override
+    public void bind(Node<?> node) {
+        assert node != null: "may not create this capability without a node";
+        assert ZookeeperNode.class.isAssignableFrom(node.getClass()) : "bound node must be a ZookeeperNode";
+        if (cache != null) {
+            cache.removeDeltaListener(deltaListener);
+        }
+        parentNode = (ZookeeperNode) node;
+        cache = parentNode.getRegistry().withMembershipCache().getMembershipCache().get();
+        if (coalescingWindowMillis > 0) {
+            cache.withCoalescingWindowMillis(coalescingWindowMillis);
+        }
+        cache.addDeltaListener(deltaListener);
+    }
+
+    @Override
+    public boolean isReady() {
+        return cache != null;
+    }
+
+    /**
+     * @param listener a listener to receive membership events, in order
+     * @return this capability
+     */
+    public ZookeeperMembershipChanges addMembershipListener(Consumer<MembershipEvent> listener) {
+        listeners.add(listener);
+        return this;
+    }
+
+    public ZookeeperMembershipChanges removeMembershipListener(Consumer<MembershipEvent> listener) {
+        listeners.remove(listener);
+        return this;
+    }
+
+    /**
+     * @return the IDs of the nodes currently in the cluster, in order of registration
+     */
+    public List<String> getMembers() {
+        assert cache != null : "cannot call getMembers() before binding a node";
+        return cache.getMembers();
+    }
+
+    /**
+     * Stops reporting changes. The registry's membership cache is shared, so it is left running.
+     */
+    @Override
+    public void close() {
+        if (cache != null) {
+            cache.removeDeltaListener(deltaListener);
+            cache = null;
+        }
+    }
+
+    private void onDelta(MembershipDelta delta) {
+        if (delta.isInitialLoad()) {
+            return; // not a change. Reporting it would depend on whether we bound before or after the load
+        }
+        for (String id: delta.getLeft()) {
+            dispatch(new NodeLeft(id, delta.getCversion()));
+        }
+        for (String id: delta.getJoined()) {
+            dispatch(new NodeJoined(id, delta.getCversion()));
+        }
+    }
+
+    private void dispatch(MembershipEvent event) {
+        for (Consumer<MembershipEvent> listener: listeners) {
+            try {
+                listener.accept(event);
+            } catch (RuntimeException e) {
+                logger.error("Membership listener failed on " + event, e);
+            }
+        }
+    }
+}
@@ -20,6 +20,9 @@ package net.projectmonastery.monastery.zookeeper.capabilities;
 import net.projectmonastery.monastery.api.core.Node;
 import net.projectmonastery.monastery.cando.NodeAnnouncement;
 import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ListenerRegistry;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
 import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
 import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
 import org.apache.curator.framework.CuratorFramework;
@@ -27,23 +30,49 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.function.Consumer;
 
 /**
  * Created by Arnon Moscona on 7/13/2015.
  * A node announcement capability for the Zookeeper implementation
  */
-public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String> {
+public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String>, IndependentCapability {
     private Logger logger = LoggerFactory.getLogger(ZookeeperNodeAnnouncement.class);
     private CuratorFramework curatorFramework;
     private ZookeeperNode parentNode;
     private NodeRegistry registry;
-    private ArrayList<Consumer<Node<String>>> joinListeners;
+    private final ListenerRegistry<Node<String>> joinListeners;
+    /**
+     * True if the listener executor was chosen explicitly, rather than taken from the bound node
+     */
+    private boolean listenerExecutorGiven = false;
+    private Completion completion = Completion.AFTER_LISTENERS;
+    /**
+     * True if the node adopted a registration that survived a restart, and announce() was not called since
+     */
+    private volatile boolean resumed = false;
+
+    /**
+     * When the announcement future completes relative to the join listeners
+     */
+    public enum Completion {
+        /**
+         * Complete after all join listeners completed (or failed, or timed out). Callers of announce() can rely on
+         * whatever the listeners do, such as warm-up.
+         */
+        AFTER_LISTENERS,
+        /**
+         * Complete as soon as the node joined. The listeners run concurrently with whatever the caller does next.
+         */
+        BEFORE_LISTENERS
+    }
 
     public ZookeeperNodeAnnouncement() {
-        joinListeners = new ArrayList<>();
+        joinListeners = new ListenerRegistry<>(null);
     }
 
     public ZookeeperNodeAnnouncement(ZookeeperNode node) {
@@ -53,11 +82,53 @@ public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String> {
 
     /**
      * Extra method to ease mocking
-     * @return a new node registry
+     * @return the node registry of the bound node, or a new node registry if the node does not have one
      */
     NodeRegistry makeRegistry() {
         assert parentNode!= null : "makeRegistry may not be called before the node is bound";
-        return new NodeRegistry(curatorFramework, parentNode.getRootPath());
+        NodeRegistry nodeRegistry = parentNode.getRegistry();
+        if (nodeRegistry != null) {
+            return nodeRegistry;
+        }
+        return new NodeRegistry(curatorFramework, parentNode.getRootPath(), getExecutor());
+    }
+
+    /**
+     * @return the executor of the bound node, or the default Zookeeper executor if the node provides none
+     */
+    private Executor getExecutor() {
+        Executor executor = parentNode == null ? null : parentNode.getExecutor();
+        return executor == null ? ZookeeperExecutors.defaultExecutor() : executor;
+    }
+
+    /**
+     * @param executor the executor to run join listeners on. By default the bound node's executor is used.
+     * @return this capability
+     */
+    public ZookeeperNodeAnnouncement withListenerExecutor(Executor executor) {
+        assert executor != null : "listener executor may not be null";
+        joinListeners.setExecutor(executor);
+        listenerExecutorGiven = true;
+        return this;
+    }
+
+    /**
+     * @param timeoutMillis how long the announcement waits for each join listener. Zero or less means indefinitely.
+     * @return this capability
+     */
+    public ZookeeperNodeAnnouncement withListenerTimeoutMillis(long timeoutMillis) {
+        joinListeners.setTimeoutMillis(timeoutMillis);
+        return this;
+    }
+
+    /**
+     * @param completion when the announcement completes relative to the join listeners
+     * @return this capability
+     */
+    public ZookeeperNodeAnnouncement withCompletion(Completion completion) {
+        assert completion != null : "completion may not be null";
+        this.completion = completion;
+        return this;
     }
 
     public void setState(NodeState state) {
@@ -69,35 +140,158 @@ public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String> {
         return parentNode.getState();
     }
 
+    /**
+     * If the node resumed a registration that survived a process restart, the first call completes without
+     * registering again, keeping the node ID. The join listeners fire as usual.
+     */
     @Override
     public CompletableFuture<NodeAnnouncement<String>> announce() {
+        CompletableFuture<NodeAnnouncement<String>> future = new CompletableFuture<>(); // this is what we will return
+        if (resumed && parentNode.getState().equals(NodeState.JOINED)) {
+            resumed = false;
+            logger.info("Node " + getId().orElse(null) + " resumed its registration. Not announcing it again.");
+            notifyJoined(future);
+            return future;
+        }
         assert parentNode.getState().equals(NodeState.DISCONNECTED) : "may not announce a node unless it is in a DISCONNECTED state";
 
-        CompletableFuture<NodeAnnouncement<String>> future = new CompletableFuture<>(); // this is what we will return
-        CompletableFuture.runAsync(() -> { // this task will complete the future
-            registry.makeNewNode().handle((id, throwable) -> {
-                if (throwable != null) {
-                    logger.error("Trouble completing the future: " + throwable.getMessage(), throwable);
-                    future.completeExceptionally(throwable);
-                    return null;
-                }
-                else {
-                    ZookeeperNodeAnnouncement.this.setId(id);
-                    ZookeeperNodeAnnouncement.this.setState(NodeState.ANNOUNCED); // this is done only for the benefit of listeners
-                    ZookeeperNodeAnnouncement.this.setState(NodeState.JOINED);
-                    ZookeeperNodeAnnouncement.this.invokeJoinListeners();
-
-                    logger.debug("Completing the announcement process");
-                    future.complete(ZookeeperNodeAnnouncement.this);
-                    logger.debug("Completed announcement");
-                    return id;
-                }
-            });
+        // the registry is already asynchronous, so we just chain on it rather than occupy another thread
+        registry.makeNewNode().handle((id, throwable) -> {
+            if (throwable != null) {
+                logger.error("Trouble completing the future: " + throwable.getMessage(), throwable);
+                future.completeExceptionally(throwable);
+                return null;
+            }
+            else {
+                completeAnnouncement(id, future);
+                return id;
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Adopts a registration that survived a process restart, because the node reattached to the Zookeeper session that
+     * owns it (see ZookeeperNodeBuilder.withSessionResume()). The node is JOINED right away, under its old ID.
+     * @param id the ID of the still registered node
+     */
+    public void resume(String id) {
+        assert parentNode.getState().equals(NodeState.DISCONNECTED) : "may not resume a node unless it is in a DISCONNECTED state";
+        setId(id);
+        setState(NodeState.ANNOUNCED);
+        setState(NodeState.JOINED);
+        resumed = true;
+    }
+
+    /**
+     * Announces the node again, under a new ID, after its registration was lost (for example when its session
+     * expired). The previous ID is dropped, and the join listeners fire again with the new one.
+     * If the previous znode is still there, it is deleted first, so the node is never registered twice. If that fails,
+     * the node keeps its previous ID and the returned future completes exceptionally.
+     * @return the announcement (as a future)
+     */
+    public CompletableFuture<NodeAnnouncement<String>> reannounce() {
+        assert parentNode.getState().equals(NodeState.DISCONNECTED) : "may not re-announce a node unless it is in a DISCONNECTED state";
+        Optional<String> previousId = getId();
+        CompletableFuture<Void> removed = previousId.isPresent() ?
+                registry.removeNode(previousId.get()) :
+                CompletableFuture.completedFuture(null);
+        return removed.thenCompose(nothing -> {
+            parentNode.resetId();
+            resumed = false;
+            return announce();
         });
+    }
+
+    /**
+     * Finishes the announcement once the node is registered: assigns the ID, moves to JOINED and fires the listeners
+     * @param id the registered node ID
+     * @param future the announcement future to complete
+     */
+    private void completeAnnouncement(String id, CompletableFuture<NodeAnnouncement<String>> future) {
+        setId(id);
+        setState(NodeState.ANNOUNCED); // this is done only for the benefit of listeners
+        setState(NodeState.JOINED);
+        notifyJoined(future);
+    }
+
+    /**
+     * Fires the join listeners, and completes the announcement before or after them, as configured
+     */
+    private void notifyJoined(CompletableFuture<NodeAnnouncement<String>> future) {
+        CompletableFuture<Void> listenersDone = joinListeners.dispatch(parentNode);
+
+        logger.debug("Completing the announcement process");
+        if (completion == Completion.BEFORE_LISTENERS) {
+            future.complete(this);
+        }
+        else {
+            listenersDone.whenComplete((nothing, throwable) -> future.complete(this));
+        }
+    }
 
+    /**
+     * Announces several nodes at once, registering all of them in as few Zookeeper transactions as possible.
+     * All nodes must be bound to the same Curator framework and root path (their registry is shared).
+     * Each node's join listeners are fired once its ID is assigned.
+     * @param nodes the nodes to announce. All must be DISCONNECTED and have a ZookeeperNodeAnnouncement capability
+     * @return the new node IDs, in the order of the given nodes (as a future)
+     */
+    public static CompletableFuture<List<String>> announceAll(List<? extends Node<String>> nodes) {
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        if (nodes.isEmpty()) {
+            future.complete(new ArrayList<>());
+            return future;
+        }
+
+        List<ZookeeperNodeAnnouncement> announcements = new ArrayList<>(nodes.size());
+        for (Node<String> node: nodes) {
+            Optional<ZookeeperNodeAnnouncement> found = find(node);
+            if (!found.isPresent()) {
+                future.completeExceptionally(new Exception("node has no ZookeeperNodeAnnouncement capability: " + node));
+                return future;
+            }
+            ZookeeperNodeAnnouncement announcement = found.get();
+            assert announcement.getState().equals(NodeState.DISCONNECTED) : "may not announce a node unless it is in a DISCONNECTED state";
+            announcements.add(announcement);
+        }
+        NodeRegistry registry = announcements.get(0).registry;
+        assert announcements.stream().allMatch(a -> a.curatorFramework == registry.getCuratorFramework() &&
+                a.parentNode.getRootPath().equals(registry.getRootPath())) : "all nodes must share the framework and root path";
+
+        registry.makeNewNodes(announcements.size()).whenComplete((ids, throwable) -> {
+            if (throwable != null) {
+                LoggerFactory.getLogger(ZookeeperNodeAnnouncement.class)
+                        .error("Trouble announcing " + nodes.size() + " nodes: " + throwable.getMessage(), throwable);
+                future.completeExceptionally(throwable);
+                return;
+            }
+            CompletableFuture<?>[] completed = new CompletableFuture<?>[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                CompletableFuture<NodeAnnouncement<String>> announced = new CompletableFuture<>();
+                announcements.get(i).completeAnnouncement(ids.get(i), announced);
+                completed[i] = announced;
+            }
+            CompletableFuture.allOf(completed).whenComplete((nothing, ignored) -> future.complete(ids));
+        });
         return future;
     }
 
+    /**
+     * Looks up the announcement capability of a node without blocking. Unlike getCapability().getNow(), a missing
+     * capability is not an exception.
+     * @param node a node
+     * @return the node's ZookeeperNodeAnnouncement capability, if it has one
+     */
+    public static Optional<ZookeeperNodeAnnouncement> find(Node<?> node) {
+        CompletableFuture<ZookeeperNodeAnnouncement> found = node.getCapability(ZookeeperNodeAnnouncement.class);
+        if (!found.isDone() || found.isCompletedExceptionally()) {
+            return Optional.empty();
+        }
+        return Optional.ofNullable(found.getNow(null));
+    }
+
     @Override
     public Optional<String> getId() {
         assert parentNode != null : "cannot call getId() before binding a node";
@@ -114,17 +308,18 @@ public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String> {
         return Optional.ofNullable(parentNode);
     }
 
+    /**
+     * Join listeners may be added at any time, from any thread. Each runs as its own task on the listener executor,
+     * and failures are logged without affecting the announcement or other listeners.
+     */
     @Override
     public NodeAnnouncement<String> addJoinListener(Consumer<Node<String>> consumer) {
         joinListeners.add(consumer);
         return this;
     }
 
-    private void invokeJoinListeners() {
-        if (joinListeners == null || joinListeners.size() == 0) {
-            return;
-        }
-        joinListeners.forEach(listener -> listener.accept(parentNode));
+    public boolean removeJoinListener(Consumer<Node<String>> consumer) {
+        return joinListeners.remove(consumer);
     }
 
     @Override
@@ -135,5 +330,8 @@ public class ZookeeperNodeAnnouncement implements NodeAnnouncement<String> {
         curatorFramework = parentNode.getCuratorFramework();
         assert curatorFramework != null: "node has a null curator framework";
         registry = makeRegistry();
+        if (!listenerExecutorGiven) {
+            joinListeners.setExecutor(getExecutor());
+        }
     }
 }
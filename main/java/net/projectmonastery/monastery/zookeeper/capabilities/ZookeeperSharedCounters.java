@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.DataPathStrategy;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.ShardedCounter;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A capability for cluster wide counters that many nodes add to constantly, such as request or event counts.
+ * Each counter is striped over shard znodes under its address, and each node batches its additions locally before
+ * writing them (see ShardedCounter), so nodes rarely contend for the same version.
+ * <p>
+ * Counters are persistent, whatever the lifespan of their address. All the nodes must use the same number of shards.
+ * </p>
+ */
+public class ZookeeperSharedCounters implements IndependentCapability, Closeable {
+    private final ConcurrentHashMap<DataAddress, ShardedCounter> counters = new ConcurrentHashMap<>();
+    private DataPathStrategy givenPaths;
+    private int shards = ShardedCounter.DEFAULT_SHARDS;
+    private long flushIntervalMillis = ShardedCounter.DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private DataPathStrategy paths;
+    private ZookeeperNode parentNode;
+
+    public ZookeeperSharedCounters() {
+    }
+
+    /**
+     * @param paths the strategy to place the counters with. By default, hashed paths under the node's root path
+     * @return this capability
+     */
+    public ZookeeperSharedCounters withPathStrategy(DataPathStrategy paths) {
+        assert paths != null : "path strategy may not be null";
+        givenPaths = paths;
+        return this;
+    }
+
+    /**
+     * More shards mean fewer conflicts between writers, but more znodes to sum on reads
+     * @param shards the number of shards of each counter. Must be set before binding
+     * @return this capability
+     */
+    public ZookeeperSharedCounters withShards(int shards) {
+        assert shards > 0 : "must have at least one shard";
+        assert paths == null : "shards must be set before binding";
+        this.shards = shards;
+        return this;
+    }
+
+    /**
+     * @param millis how long each counter accumulates local additions before writing them. Must be set before binding
+     * @return this capability
+     */
+    public ZookeeperSharedCounters withFlushIntervalMillis(long millis) {
+        assert millis >= 0 : "flush interval may not be negative";
+        assert paths == null : "flush interval must be set before binding";
+        flushIntervalMillis = millis;
+        return this;
+    }
+
+    @Override
+    public void bind(Node<?> node) {
+        assert node != null: "may not create this capability without a node";
+        assert ZookeeperNode.class.isAssignableFrom(node.getClass()) : "bound node must be a ZookeeperNode";
+        close();
+        parentNode = (ZookeeperNode) node;
+        paths = givenPaths != null ? givenPaths : new HashedDataPaths(parentNode.getRootPath());
+    }
+
+    @Override
+    public boolean isReady() {
+        return paths != null;
+    }
+
+    /**
+     * Adds locally. The addition is written with the counter's next flush.
+     * @param address the counter address
+     * @param delta the amount to add (may be negative)
+     */
+    public void add(DataAddress address, long delta) {
+        getCounter(address).add(delta);
+    }
+
+    public void increment(DataAddress address) {
+        getCounter(address).increment();
+    }
+
+    /**
+     * @param address the counter address
+     * @return a future of the value, read from Zookeeper. Does not include local additions not yet written
+     */
+    public CompletableFuture<Long> get(DataAddress address) {
+        return getCounter(address).get();
+    }
+
+    /**
+     * @param address the counter address
+     * @return a future of the value, from a local view kept fresh by watches
+     */
+    public CompletableFuture<Long> getCached(DataAddress address) {
+        return getCounter(address).getCached();
+    }
+
+    /**
+     * Writes the local additions to all the counters now
+     * @return a future completing once all the additions made so far are written
+     */
+    public CompletableFuture<Void> flush() {
+        List<CompletableFuture<Void>> flushed = new ArrayList<>();
+        counters.values().forEach(counter -> flushed.add(counter.flush()));
+        return CompletableFuture.allOf(flushed.toArray(new CompletableFuture<?>[flushed.size()]));
+    }
+
+    /**
+     * @param address the counter address
+     * @return the counter, created on first access
+     */
+    public ShardedCounter getCounter(DataAddress address) {
+        assert paths != null : "capability is not bound";
+        ShardedCounter counter = counters.get(address);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(address, this::newCounter);
+        }
+        return counter;
+    }
+
+    /**
+     * @return the number of counters accessed by this node
+     */
+    public int getCounterCount() {
+        return counters.size();
+    }
+
+    /**
+     * Writes the local additions, and stops watching the counters
+     */
+    @Override
+    public void close() {
+        counters.values().forEach(ShardedCounter::close);
+        counters.clear();
+    }
+
+    private ShardedCounter newCounter(DataAddress address) {
+        return new ShardedCounter(parentNode.getCuratorFramework(), paths.pathOf(address), shards,
+                parentNode.getExecutor())
+                .withFlushIntervalMillis(flushIntervalMillis)
+                .withMetrics(parentNode.getRegistry().getMetrics());
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.data.CoalescingWriter;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.DataPathStrategy;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.JsonValueCodec;
+import net.projectmonastery.monastery.zookeeper.data.PayloadCompression;
+import net.projectmonastery.monastery.zookeeper.data.ScalarStore;
+import net.projectmonastery.monastery.zookeeper.data.ValueCodec;
+import net.projectmonastery.monastery.zookeeper.data.Versioned;
+import org.apache.zookeeper.CreateMode;
+
+import java.io.Closeable;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A capability for sharing scalar values (strings, numbers, booleans and characters) across the cluster.
+ * Each value lives in its own znode, at a path given by the path strategy (by default the hash of its address under
+ * <code>&lt;root&gt;/data</code>), as JSON.
+ * <p>
+ * Reads are served from a local cache kept fresh by watches, so repeated reads of a value that does not change cost
+ * no Zookeeper calls. Writes go to Zookeeper, and compareAndSet() supports lock free read-modify-write loops using
+ * the version returned by getVersioned().
+ * </p>
+ */
+public class ZookeeperSharedData implements IndependentCapability, Closeable {
+    private DataPathStrategy givenPaths;
+    private PayloadCompression compression = PayloadCompression.NONE;
+    private ValueCodec codec = JsonValueCodec.INSTANCE;
+    private long writeCoalescingMillis = 0;
+    private CoalescingWriter coalescingWriter;
+    private DataPathStrategy paths;
+    private ScalarStore scalars;
+    private ZookeeperNode parentNode;
+
+    public ZookeeperSharedData() {
+    }
+
+    /**
+     * @param paths the strategy to place the data with. By default, hashed paths under the node's root path
+     * @return this capability
+     */
+    public ZookeeperSharedData withPathStrategy(DataPathStrategy paths) {
+        assert paths != null : "path strategy may not be null";
+        givenPaths = paths;
+        return this;
+    }
+
+    /**
+     * @param compression how to compress the values written. By default, they are not compressed
+     * @return this capability
+     */
+    public ZookeeperSharedData withCompression(PayloadCompression compression) {
+        assert compression != null : "compression may not be null. Use PayloadCompression.NONE";
+        this.compression = compression;
+        if (scalars != null) {
+            scalars.withCompression(compression);
+        }
+        return this;
+    }
+
+    /**
+     * Values are read with whichever registered codec wrote them, so this can differ between nodes
+     * @param codec how to encode the values written. By default, as JSON, which is easy to browse.
+     *              BinaryValueCodec is more compact and faster to encode and decode
+     * @return this capability
+     */
+    public ZookeeperSharedData withCodec(ValueCodec codec) {
+        assert codec != null : "must provide a codec";
+        this.codec = codec;
+        if (scalars != null) {
+            scalars.withCodec(codec);
+        }
+        return this;
+    }
+
+    /**
+     * Opts in to write coalescing: set() buffers the value, and only the latest value of each address is written once
+     * per interval (or on flush()). Must be called before binding.
+     * Note that until a value is written, get() still returns the value before it.
+     * @param millis the interval. Zero (the default) means every set() is written right away
+     * @return this capability
+     */
+    public ZookeeperSharedData withWriteCoalescingMillis(long millis) {
+        assert millis >= 0 : "coalescing interval may not be negative";
+        assert scalars == null : "write coalescing must be set before binding";
+        writeCoalescingMillis = millis;
+        return this;
+    }
+
+    public long getWriteCoalescingMillis() {
+        return writeCoalescingMillis;
+    }
+
+    @Override
+    public void bind(Node<?> node) {
+        assert node != null: "may not create this capability without a node";
+        assert ZookeeperNode.class.isAssignableFrom(node.getClass()) : "bound node must be a ZookeeperNode";
+        close();
+        parentNode = (ZookeeperNode) node;
+        paths = givenPaths != null ? givenPaths : new HashedDataPaths(parentNode.getRootPath());
+        scalars = new ScalarStore(parentNode.getCuratorFramework(), parentNode.getExecutor())
+                .withMetrics(parentNode.getRegistry().getMetrics())
+                .withCompression(compression)
+                .withCodec(codec);
+        coalescingWriter = writeCoalescingMillis > 0 ?
+                new CoalescingWriter(scalars, writeCoalescingMillis, parentNode.getExecutor()) : null;
+    }
+
+    @Override
+    public boolean isReady() {
+        return scalars != null;
+    }
+
+    /**
+     * @param address the data address
+     * @param type the expected type of the value
+     * @return a future of the value, or empty if there is none. Fails with a ClassCastException if the value is of
+     * another type
+     */
+    public <T> CompletableFuture<Optional<T>> get(DataAddress address, Class<T> type) {
+        return getVersioned(address).thenApply(versioned ->
+                versioned.isPresent() ? Optional.of(type.cast(versioned.getValue())) : Optional.empty());
+    }
+
+    /**
+     * Note that the returned future may be shared between callers. It must not be obtruded.
+     * @param address the data address
+     * @return a future of the value and its version, or Versioned.ABSENT
+     */
+    public CompletableFuture<Versioned> getVersioned(DataAddress address) {
+        return scalars.read(paths.pathOf(address));
+    }
+
+    /**
+     * @param address the data address. Its lifespan decides whether the value goes with this node's session
+     * @param value a non null scalar value
+     * @return a future of the new version. With write coalescing, of the write that included this value
+     */
+    public CompletableFuture<Integer> set(DataAddress address, Object value) {
+        if (coalescingWriter != null) {
+            return coalescingWriter.write(paths.pathOf(address), value, createModeOf(address));
+        }
+        return scalars.write(paths.pathOf(address), value, createModeOf(address));
+    }
+
+    /**
+     * @param address the data address
+     * @param value a non null scalar value
+     * @param expectedVersion the version last read, or Versioned.ABSENT_VERSION to set only if there is no value yet
+     * @return a future of true if the value was set, false if it changed since read
+     */
+    public CompletableFuture<Boolean> compareAndSet(DataAddress address, Object value, int expectedVersion) {
+        String path = paths.pathOf(address);
+        if (coalescingWriter != null) {
+            return coalescingWriter.flush(path).thenCompose(nothing ->
+                    scalars.compareAndSet(path, value, expectedVersion, createModeOf(address)));
+        }
+        return scalars.compareAndSet(path, value, expectedVersion, createModeOf(address));
+    }
+
+    /**
+     * @param address the data address
+     * @return a future completing when there is no value
+     */
+    public CompletableFuture<Void> remove(DataAddress address) {
+        String path = paths.pathOf(address);
+        if (coalescingWriter != null) {
+            return coalescingWriter.flush(path).thenCompose(nothing -> scalars.remove(path));
+        }
+        return scalars.remove(path);
+    }
+
+    /**
+     * Writes the values buffered by write coalescing now
+     * @return a future completing once all the values set so far were written
+     */
+    public CompletableFuture<Void> flush() {
+        return coalescingWriter != null ? coalescingWriter.flush() : CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * @return the number of set() calls that were folded into a later write rather than written, or 0 without write
+     * coalescing
+     */
+    public long getCoalescedWriteCount() {
+        return coalescingWriter != null ? coalescingWriter.getCoalescedWriteCount() : 0;
+    }
+
+    public DataPathStrategy getPathStrategy() {
+        return paths;
+    }
+
+    public ScalarStore getScalarStore() {
+        return scalars;
+    }
+
+    /**
+     * Writes the buffered values, stops tracking the connection and drops the cached values
+     */
+    @Override
+    public void close() {
+        if (coalescingWriter != null) {
+            coalescingWriter.close();
+        }
+        if (scalars != null) {
+            scalars.close();
+        }
+    }
+
+    private static CreateMode createModeOf(DataAddress address) {
+        return address.getLifespan() == DataAddress.Lifespan.EPHEMERAL ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.api.core.Node;
+import net.projectmonastery.monastery.zookeeper.IndependentCapability;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.DataPathStrategy;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.JsonValueCodec;
+import net.projectmonastery.monastery.zookeeper.data.PayloadCompression;
+import net.projectmonastery.monastery.zookeeper.data.ReplicatedSet;
+import net.projectmonastery.monastery.zookeeper.data.ValueCodec;
+import org.apache.zookeeper.CreateMode;
+
+import java.io.Closeable;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A capability for sharing sets of scalar values across the cluster, such as access control lists.
+ * Each set is a znode whose children are the hashed elements (see ReplicatedSet).
+ * <p>
+ * A set is replicated locally on first access, and from then on kept in sync by a watch, so contains() is a memory
+ * lookup. Sets a node never touches cost it nothing. Writes go to Zookeeper.
+ * </p>
+ * <p>
+ * The hints of the address used on first access decide how the set is kept: its lifespan, whether this node's
+ * elements are ephemeral, and its size hint, the layout. Large sets are sharded over buckets, each watched on its
+ * own, so a change re-reads one bucket rather than the whole set. All the nodes must use the same size hint for
+ * a set.
+ * </p>
+ */
+public class ZookeeperSharedSets implements IndependentCapability, Closeable {
+    private final ConcurrentHashMap<DataAddress, CompletableFuture<ReplicatedSet>> replicas = new ConcurrentHashMap<>();
+    private DataPathStrategy givenPaths;
+    private volatile PayloadCompression compression = PayloadCompression.NONE;
+    private volatile ValueCodec codec = JsonValueCodec.INSTANCE;
+    private DataPathStrategy paths;
+    private ZookeeperNode parentNode;
+
+    public ZookeeperSharedSets() {
+    }
+
+    /**
+     * @param paths the strategy to place the sets with. By default, hashed paths under the node's root path
+     * @return this capability
+     */
+    public ZookeeperSharedSets withPathStrategy(DataPathStrategy paths) {
+        assert paths != null : "path strategy may not be null";
+        givenPaths = paths;
+        return this;
+    }
+
+    /**
+     * @param compression how to compress the elements written by replicas created from now on.
+     *                    By default, they are not compressed
+     * @return this capability
+     */
+    public ZookeeperSharedSets withCompression(PayloadCompression compression) {
+        assert compression != null : "compression may not be null. Use PayloadCompression.NONE";
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @param codec how to encode the elements written by replicas created from now on. By default, as JSON
+     * @return this capability
+     */
+    public ZookeeperSharedSets withCodec(ValueCodec codec) {
+        assert codec != null : "must provide a codec";
+        this.codec = codec;
+        return this;
+    }
+
+    @Override
+    public void bind(Node<?> node) {
+        assert node != null: "may not create this capability without a node";
+        assert ZookeeperNode.class.isAssignableFrom(node.getClass()) : "bound node must be a ZookeeperNode";
+        close();
+        parentNode = (ZookeeperNode) node;
+        paths = givenPaths != null ? givenPaths : new HashedDataPaths(parentNode.getRootPath());
+    }
+
+    @Override
+    public boolean isReady() {
+        return paths != null;
+    }
+
+    /**
+     * Once the replica is loaded, this is a memory lookup, and the returned future is already complete.
+     * @param address the set address
+     * @param element a scalar value
+     * @return a future of true if the element is in the set
+     */
+    public CompletableFuture<Boolean> contains(DataAddress address, Object element) {
+        CompletableFuture<ReplicatedSet> replica = getReplica(address);
+        if (replica.isDone() && !replica.isCompletedExceptionally()) {
+            return CompletableFuture.completedFuture(replica.join().contains(element));
+        }
+        return replica.thenApply(set -> set.contains(element));
+    }
+
+    /**
+     * The synchronous form of contains(), for hot paths: once the replica is loaded, this allocates nothing.
+     * On first access, it blocks until the replica is loaded.
+     * @param address the set address
+     * @param element a scalar value
+     * @return true if the element is in the set
+     * @throws java.util.concurrent.CompletionException if the replica could not be loaded
+     */
+    public boolean containsNow(DataAddress address, Object element) {
+        return getReplica(address).join().contains(element);
+    }
+
+    /**
+     * @param address the set address
+     * @param element a non null scalar value
+     * @return a future of true if the element was added, false if it was already in the set
+     */
+    public CompletableFuture<Boolean> add(DataAddress address, Object element) {
+        return getReplica(address).thenCompose(set -> set.add(element));
+    }
+
+    /**
+     * @param address the set address
+     * @param element a non null scalar value
+     * @return a future of true if the element was removed, false if it was not in the set
+     */
+    public CompletableFuture<Boolean> remove(DataAddress address, Object element) {
+        return getReplica(address).thenCompose(set -> set.remove(element));
+    }
+
+    /**
+     * @param address the set address
+     * @return a future of the number of elements in the set
+     */
+    public CompletableFuture<Integer> size(DataAddress address) {
+        return getReplica(address).thenApply(ReplicatedSet::size);
+    }
+
+    /**
+     * @param address the set address
+     * @return a future of the elements of the set
+     */
+    public CompletableFuture<Set<Object>> getElements(DataAddress address) {
+        return getReplica(address).thenCompose(ReplicatedSet::getElements);
+    }
+
+    /**
+     * Replicates the set on first access. If loading fails, the next access tries again.
+     * @param address the set address
+     * @return a future of the loaded replica
+     */
+    public CompletableFuture<ReplicatedSet> getReplica(DataAddress address) {
+        assert paths != null : "capability is not bound";
+        CompletableFuture<ReplicatedSet> replica = replicas.get(address);
+        if (replica != null) {
+            return replica;
+        }
+        CompletableFuture<ReplicatedSet> loading = new CompletableFuture<>();
+        replica = replicas.putIfAbsent(address, loading);
+        if (replica != null) {
+            return replica;
+        }
+        CreateMode elementMode = address.getLifespan() == DataAddress.Lifespan.EPHEMERAL ?
+                CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+        ReplicatedSet set = new ReplicatedSet(parentNode.getCuratorFramework(), paths.pathOf(address), paths,
+                elementMode, ReplicatedSet.Layout.of(address.getSizeHint()), parentNode.getExecutor())
+                .withMetrics(parentNode.getRegistry().getMetrics())
+                .withCompression(compression)
+                .withCodec(codec);
+        set.start().whenComplete((nothing, error) -> {
+            if (error == null) {
+                loading.complete(set);
+            }
+            else {
+                set.close();
+                replicas.remove(address, loading);
+                loading.completeExceptionally(error);
+            }
+        });
+        return loading;
+    }
+
+    /**
+     * @return the number of sets replicated by this node
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Stops all the replicas
+     */
+    @Override
+    public void close() {
+        replicas.values().forEach(replica -> replica.thenAccept(ReplicatedSet::close));
+        replicas.clear();
+    }
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * A compact binary representation of scalars: the marker byte, a type tag, then the value.
+ * <ul>
+ *     <li>integral numbers and characters: zigzag varints (small magnitudes take one byte)</li>
+ *     <li>floating point numbers: their IEEE 754 bits, big endian</li>
+ *     <li>booleans: the tag alone</li>
+ *     <li>strings: the varint length of the UTF-8 encoding, then the UTF-8 bytes</li>
+ * </ul>
+ * Payloads are written into a buffer of the exact size and read straight from the payload array, without
+ * intermediate strings or streams.
+ */
+public final class BinaryValueCodec implements ValueCodec {
+    public static final BinaryValueCodec INSTANCE = new BinaryValueCodec();
+    public static final byte MARKER = 0x03;
+    private static final byte STRING = 's';
+    private static final byte TRUE = 't';
+    private static final byte FALSE = 'f';
+    private static final byte BYTE = 'b';
+    private static final byte SHORT = 'h';
+    private static final byte INTEGER = 'i';
+    private static final byte LONG = 'l';
+    private static final byte FLOAT = 'F';
+    private static final byte DOUBLE = 'D';
+    private static final byte CHARACTER = 'c';
+    private static final int HEADER_BYTES = 2;
+
+    private BinaryValueCodec() {
+    }
+
+    @Override
+    public byte getMarker() {
+        return MARKER;
+    }
+
+    @Override
+    public String getName() {
+        return "binary";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null scalar values are not allowed. Remove the data instead.");
+        }
+        Class<?> type = value.getClass();
+        if (type == String.class) {
+            return encodeString((String) value);
+        }
+        if (type == Boolean.class) {
+            return new byte[] {MARKER, (Boolean) value ? TRUE : FALSE};
+        }
+        if (type == Integer.class) {
+            return encodeVarint(INTEGER, (Integer) value);
+        }
+        if (type == Long.class) {
+            return encodeVarint(LONG, (Long) value);
+        }
+        if (type == Double.class) {
+            return encodeFixed(DOUBLE, Double.doubleToRawLongBits((Double) value), 8);
+        }
+        if (type == Float.class) {
+            return encodeFixed(FLOAT, Float.floatToRawIntBits((Float) value), 4);
+        }
+        if (type == Short.class) {
+            return encodeVarint(SHORT, (Short) value);
+        }
+        if (type == Byte.class) {
+            return encodeVarint(BYTE, (Byte) value);
+        }
+        if (type == Character.class) {
+            return encodeVarint(CHARACTER, (Character) value);
+        }
+        throw new IllegalArgumentException("Unsupported scalar type " + type.getName());
+    }
+
+    @Override
+    public Object decode(byte[] payload) {
+        if (payload == null || payload.length < HEADER_BYTES || payload[0] != MARKER) {
+            throw new IllegalArgumentException("Not a binary scalar payload");
+        }
+        Reader reader = new Reader(payload);
+        Object value;
+        switch (payload[1]) {
+            case STRING:
+                value = reader.readString();
+                break;
+            case TRUE:
+                value = Boolean.TRUE;
+                break;
+            case FALSE:
+                value = Boolean.FALSE;
+                break;
+            case INTEGER:
+                value = (int) reader.readSignedVarint(Integer.MIN_VALUE, Integer.MAX_VALUE);
+                break;
+            case LONG:
+                value = reader.readSignedVarint(Long.MIN_VALUE, Long.MAX_VALUE);
+                break;
+            case DOUBLE:
+                value = Double.longBitsToDouble(reader.readFixed(8));
+                break;
+            case FLOAT:
+                value = Float.intBitsToFloat((int) reader.readFixed(4));
+                break;
+            case SHORT:
+                value = (short) reader.readSignedVarint(Short.MIN_VALUE, Short.MAX_VALUE);
+                break;
+            case BYTE:
+                value = (byte) reader.readSignedVarint(Byte.MIN_VALUE, Byte.MAX_VALUE);
+                break;
+            case CHARACTER:
+                value = (char) reader.readSignedVarint(Character.MIN_VALUE, Character.MAX_VALUE);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown binary scalar type tag " + payload[1]);
+        }
+        reader.expectEnd();
+        return value;
+    }
+
+    private static byte[] encodeVarint(byte tag, long value) {
+        long zigzag = (value << 1) ^ (value >> 63);
+        byte[] payload = new byte[HEADER_BYTES + varintSize(zigzag)];
+        payload[0] = MARKER;
+        payload[1] = tag;
+        writeVarint(payload, HEADER_BYTES, zigzag);
+        return payload;
+    }
+
+    private static byte[] encodeFixed(byte tag, long bits, int bytes) {
+        byte[] payload = new byte[HEADER_BYTES + bytes];
+        payload[0] = MARKER;
+        payload[1] = tag;
+        for (int i = 0; i < bytes; i++) {
+            payload[HEADER_BYTES + i] = (byte) (bits >>> (8 * (bytes - 1 - i)));
+        }
+        return payload;
+    }
+
+    private static byte[] encodeString(String value) {
+        int utf8Length = utf8Length(value);
+        int position = HEADER_BYTES + varintSize(utf8Length);
+        byte[] payload = new byte[position + utf8Length];
+        payload[0] = MARKER;
+        payload[1] = STRING;
+        writeVarint(payload, HEADER_BYTES, utf8Length);
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                payload[position++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                payload[position++] = (byte) (0xc0 | (c >> 6));
+                payload[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                payload[position++] = (byte) (0xf0 | (codePoint >> 18));
+                payload[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                payload[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                payload[position++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                payload[position++] = '?'; // unpaired surrogate, as String.getBytes() encodes it
+            }
+            else {
+                payload[position++] = (byte) (0xe0 | (c >> 12));
+                payload[position++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                payload[position++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return payload;
+    }
+
+    /**
+     * @return the length of the UTF-8 encoding, as String.getBytes(UTF_8) would produce it
+     */
+    static int utf8Length(String value) {
+        int length = value.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes += 1;
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                    bytes += 2; // 4 bytes for the two chars
+                    i++;
+                }
+                else if (!Character.isSurrogate(c)) {
+                    bytes += 2;
+                }
+            }
+        }
+        return bytes;
+    }
+
+    static int varintSize(long value) {
+        int size = 1;
+        while ((value & ~0x7fL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] payload, int position, long value) {
+        while ((value & ~0x7fL) != 0) {
+            payload[position++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        payload[position++] = (byte) value;
+        return position;
+    }
+
+    /**
+     * Reads the value following the header of a payload
+     */
+    private static class Reader {
+        private final byte[] payload;
+        private int position = HEADER_BYTES;
+
+        Reader(byte[] payload) {
+            this.payload = payload;
+        }
+
+        long readVarint() {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (position >= payload.length) {
+                    throw new IllegalArgumentException("Truncated binary scalar payload");
+                }
+                byte b = payload[position++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Invalid varint in binary scalar payload");
+        }
+
+        long readSignedVarint(long min, long max) {
+            long zigzag = readVarint();
+            long value = (zigzag >>> 1) ^ -(zigzag & 1);
+            if (value < min || value > max) {
+                throw new IllegalArgumentException("Binary scalar out of range: " + value);
+            }
+            return value;
+        }
+
+        long readFixed(int bytes) {
+            if (position + bytes > payload.length) {
+                throw new IllegalArgumentException("Truncated binary scalar payload");
+            }
+            long bits = 0;
+            for (int i = 0; i < bytes; i++) {
+                bits = (bits << 8) | (payload[position++] & 0xff);
+            }
+            return bits;
+        }
+
+        String readString() {
+            long length = readVarint();
+            if (length < 0 || length > payload.length - position) {
+                throw new IllegalArgumentException("Truncated binary scalar payload");
+            }
+            String value = new String(payload, position, (int) length, java.nio.charset.StandardCharsets.UTF_8);
+            position += (int) length;
+            return value;
+        }
+
+        void expectEnd() {
+            if (position != payload.length) {
+                throw new IllegalArgumentException("Trailing bytes in binary scalar payload");
+            }
+        }
+    }
+}
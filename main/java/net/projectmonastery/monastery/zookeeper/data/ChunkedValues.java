@@ -0,0 +1,421 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps values too large for a single znode as chunks.
+ * <p>
+ * The value znode holds a manifest: a marker byte, the value length, the chunk size and the name of a generation.
+ * The chunks are the children of the generation znode, <code>&lt;value&gt;/g-&lt;sequence&gt;/&lt;index&gt;</code>.
+ * A write creates a new generation with all its chunks first, and only then points the manifest at it, in a multi
+ * that also marks the generation published (and fails if the generation is gone). Readers follow the manifest they
+ * read, so they see either the old value or the new one, never a mix. A reader that finds a chunk gone was overtaken
+ * by another write, and reads the manifest again.
+ * </p>
+ * <p>
+ * The manifest only ever moves to a later generation, so the earlier ones can be deleted once it has moved.
+ * A value znode that holds chunks but no manifest yet (empty data) has no value. A value written whole over chunks
+ * deletes only the generations published before it, so a chunked write that is published right after it keeps its
+ * chunks.
+ * </p>
+ * <p>
+ * Note that a multi is subject to the packet size limit (jute.maxbuffer) too, which is why the chunks are written
+ * before the multi rather than in it.
+ * </p>
+ */
+class ChunkedValues {
+    private final static Logger logger = LoggerFactory.getLogger(ChunkedValues.class);
+    /**
+     * The first byte of a manifest. A JSON value starts with '{'
+     */
+    static final byte MANIFEST_MARKER = 0x01;
+    static final String GENERATION_PREFIX = "g-";
+    private static final int MANIFEST_HEADER_BYTES = 1 + 4 + 4;
+    private final CuratorFramework curatorFramework;
+    private final Executor executor;
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+
+    ChunkedValues(CuratorFramework curatorFramework, Executor executor) {
+        this.curatorFramework = curatorFramework;
+        this.executor = executor;
+    }
+
+    void setMetrics(ZookeeperMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param data the content of a value znode
+     * @return true if it is a manifest
+     */
+    static boolean isManifest(byte[] data) {
+        return data != null && data.length >= MANIFEST_HEADER_BYTES && data[0] == MANIFEST_MARKER;
+    }
+
+    /**
+     * Reads the chunks of a value, all in flight at once, into a single buffer
+     * @param path the value path
+     * @param manifest the manifest read from the value znode
+     * @return a future of the whole value. Fails with a NoNodeException if another write overtook this one
+     */
+    CompletableFuture<byte[]> read(String path, byte[] manifest) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        ByteBuffer header = ByteBuffer.wrap(manifest, 1, MANIFEST_HEADER_BYTES - 1);
+        int length = header.getInt();
+        int chunkSize = header.getInt();
+        if (length < 0 || chunkSize <= 0) {
+            future.completeExceptionally(new IllegalArgumentException("Invalid chunk manifest at " + path));
+            return future;
+        }
+        String generationPath = path + "/" + generationOf(manifest);
+        byte[] value = new byte[length];
+        int chunkCount = chunkCount(length, chunkSize);
+        if (chunkCount == 0) {
+            future.complete(value);
+            return future;
+        }
+        AtomicInteger pending = new AtomicInteger(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int offset = i * chunkSize;
+            int expected = Math.min(chunkSize, length - offset);
+            long start = System.nanoTime();
+            try {
+                curatorFramework.getData()
+                        .inBackground((client, event) -> {
+                            int resultCode = event.getResultCode();
+                            record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                            if (resultCode != KeeperException.Code.OK.intValue()) {
+                                future.completeExceptionally(
+                                        KeeperException.create(KeeperException.Code.get(resultCode), event.getPath()));
+                            }
+                            else if (event.getData() == null || event.getData().length != expected) {
+                                future.completeExceptionally(new IllegalArgumentException("Chunk of the wrong size at " +
+                                        event.getPath()));
+                            }
+                            else {
+                                System.arraycopy(event.getData(), 0, value, offset, expected);
+                                if (pending.decrementAndGet() == 0) {
+                                    future.complete(value);
+                                }
+                            }
+                        }, executor)
+                        .forPath(generationPath + "/" + i);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                break;
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Writes a value as a new generation of chunks, then points the manifest at it
+     * @param path the value path
+     * @param data the whole value
+     * @param chunkSize the chunk size
+     * @param expectedVersion the version of the value znode to replace, Versioned.ABSENT_VERSION to write only if
+     *                        there is no value, or null to write regardless
+     * @return a future of the new version of the value znode, or null if the expected version did not match
+     */
+    CompletableFuture<Integer> write(String path, byte[] data, int chunkSize, Integer expectedVersion) {
+        return createGeneration(path)
+                .thenCompose(generationPath -> writeChunks(generationPath, data, chunkSize).thenApply(nothing -> generationPath))
+                .thenCompose(generationPath -> {
+                    String generation = generationPath.substring(generationPath.lastIndexOf('/') + 1);
+                    CompletableFuture<Integer> flipped = new CompletableFuture<>();
+                    flip(path, generationPath, manifest(data.length, chunkSize, generation), expectedVersion, flipped);
+                    return flipped;
+                });
+    }
+
+    /**
+     * Deletes the generations of a value earlier than the given one, best effort
+     * @param path the value path
+     * @param keep the name of the current generation
+     */
+    void deleteGenerationsBefore(String path, String keep) {
+        try {
+            curatorFramework.getChildren()
+                    .inBackground((client, event) -> {
+                        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                            return;
+                        }
+                        for (String child: event.getChildren()) {
+                            if (child.startsWith(GENERATION_PREFIX) && child.compareTo(keep) < 0) {
+                                deleteGeneration(path + "/" + child);
+                            }
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            logger.warn("Failed to clean up the chunks of " + path, e);
+        }
+    }
+
+    /**
+     * Deletes the generations that a value written whole replaced, best effort. Those are the generations published
+     * before that write. Generations still being written, or published since, are left alone.
+     * @param path the value path
+     * @param zxid the zxid of the write (the mzxid of the value znode right after it)
+     */
+    void deleteGenerationsReplacedBy(String path, long zxid) {
+        try {
+            curatorFramework.getChildren()
+                    .inBackground((client, event) -> {
+                        if (event.getResultCode() != KeeperException.Code.OK.intValue()) {
+                            return;
+                        }
+                        for (String child: event.getChildren()) {
+                            if (child.startsWith(GENERATION_PREFIX)) {
+                                deleteIfPublishedBefore(path + "/" + child, zxid);
+                            }
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            logger.warn("Failed to clean up the chunks of " + path, e);
+        }
+    }
+
+    static int chunkCount(int length, int chunkSize) {
+        return (int) ((length + (long) chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * Creates a new, empty generation. The value znode is created too if missing, with no data (no value yet).
+     * @return a future of the generation path
+     */
+    private CompletableFuture<String> createGeneration(String path) {
+        CompletableFuture<String> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            future.complete(event.getName());
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(path + "/" + GENERATION_PREFIX, new byte[0]);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Creates all the chunks of a generation, pipelined
+     */
+    private CompletableFuture<Void> writeChunks(String generationPath, byte[] data, int chunkSize) {
+        int chunkCount = chunkCount(data.length, chunkSize);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        if (chunkCount == 0) {
+            future.complete(null);
+            return future;
+        }
+        AtomicInteger pending = new AtomicInteger(chunkCount);
+        for (int i = 0; i < chunkCount; i++) {
+            int offset = i * chunkSize;
+            byte[] chunk = new byte[Math.min(chunkSize, data.length - offset)];
+            System.arraycopy(data, offset, chunk, 0, chunk.length);
+            long start = System.nanoTime();
+            try {
+                curatorFramework.create()
+                        .inBackground((client, event) -> {
+                            int resultCode = event.getResultCode();
+                            record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                            if (resultCode != KeeperException.Code.OK.intValue()) {
+                                future.completeExceptionally(
+                                        KeeperException.create(KeeperException.Code.get(resultCode), event.getPath()));
+                            }
+                            else if (pending.decrementAndGet() == 0) {
+                                future.complete(null);
+                            }
+                        }, executor)
+                        .forPath(generationPath + "/" + i, chunk);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+                break;
+            }
+        }
+        return future.whenComplete((nothing, error) -> {
+            if (error != null) {
+                deleteGeneration(generationPath);
+            }
+        });
+    }
+
+    /**
+     * Points the manifest at the new generation, unless the value was changed against the expectation or a later
+     * generation is already published. Then deletes the generations no longer needed.
+     */
+    private void flip(String path, String generationPath, byte[] manifest, Integer expectedVersion,
+                      CompletableFuture<Integer> future) {
+        String generation = generationOf(manifest);
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getData()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode != KeeperException.Code.OK.intValue()) {
+                            deleteGeneration(generationPath);
+                            future.completeExceptionally(toException(event));
+                            return;
+                        }
+                        byte[] current = event.getData();
+                        int version = event.getStat().getVersion();
+                        String currentGeneration = isManifest(current) ? generationOf(current) : null;
+                        boolean conflict = expectedVersion != null && (expectedVersion == Versioned.ABSENT_VERSION ?
+                                current != null && current.length > 0 : version != expectedVersion);
+                        if (conflict) {
+                            deleteGeneration(generationPath);
+                            future.complete(null);
+                        }
+                        else if (currentGeneration != null && currentGeneration.compareTo(generation) > 0) {
+                            // a later write was published while we wrote the chunks. Ours is overwritten already
+                            deleteGeneration(generationPath);
+                            future.complete(version);
+                        }
+                        else {
+                            publish(path, generationPath, manifest, version, expectedVersion, future);
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            deleteGeneration(generationPath);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Points the manifest at the generation in a multi that also marks the generation published (bumping its
+     * version), which fails if the generation was deleted meanwhile.
+     * Note that this is the one blocking call of a write: neither ZooKeeper 3.4 nor Curator 2.x can run a multi in
+     * the background.
+     * @param version the version of the value znode the manifest replaces
+     */
+    private void publish(String path, String generationPath, byte[] manifest, int version, Integer expectedVersion,
+                         CompletableFuture<Integer> future) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.inTransaction()
+                    .setData().forPath(generationPath, new byte[0]).and()
+                    .setData().withVersion(version).forPath(path, manifest).and()
+                    .commit();
+            record(ZookeeperOperation.MULTI, start, true);
+        } catch (KeeperException.BadVersionException e) {
+            record(ZookeeperOperation.MULTI, start, false);
+            flip(path, generationPath, manifest, expectedVersion, future); // changed since we looked. Look again
+            return;
+        } catch (KeeperException.NoNodeException e) {
+            // our generation was deleted by a later write once it was published, or the value was removed
+            record(ZookeeperOperation.MULTI, start, false);
+            deleteGeneration(generationPath);
+            future.complete(expectedVersion == null ? version : null);
+            return;
+        } catch (Exception e) {
+            record(ZookeeperOperation.MULTI, start, false);
+            deleteGeneration(generationPath);
+            future.completeExceptionally(e);
+            return;
+        }
+        deleteGenerationsBefore(path, generationOf(manifest));
+        future.complete(version + 1);
+    }
+
+    private static byte[] manifest(int length, int chunkSize, String generation) {
+        byte[] name = generation.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(MANIFEST_HEADER_BYTES + name.length)
+                .put(MANIFEST_MARKER)
+                .putInt(length)
+                .putInt(chunkSize)
+                .put(name)
+                .array();
+    }
+
+    private static String generationOf(byte[] manifest) {
+        return new String(manifest, MANIFEST_HEADER_BYTES, manifest.length - MANIFEST_HEADER_BYTES, StandardCharsets.UTF_8);
+    }
+
+    private void deleteGeneration(String generationPath) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.delete()
+                    .deletingChildrenIfNeeded()
+                    .inBackground((client, event) -> record(ZookeeperOperation.DELETE, start,
+                            event.getResultCode() == KeeperException.Code.OK.intValue()), executor)
+                    .forPath(generationPath);
+        } catch (Exception e) {
+            logger.warn("Failed to delete the chunks at " + generationPath, e);
+        }
+    }
+
+    /**
+     * Deletes a generation if it was published (its version was bumped by the multi that published it) before the
+     * given zxid
+     */
+    private void deleteIfPublishedBefore(String generationPath, long zxid) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.checkExists()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.EXISTS, start, resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue());
+                        Stat stat = event.getStat();
+                        if (resultCode == KeeperException.Code.OK.intValue() && stat.getVersion() > 0 &&
+                                stat.getMzxid() < zxid) {
+                            deleteGeneration(generationPath);
+                        }
+                    }, executor)
+                    .forPath(generationPath);
+        } catch (Exception e) {
+            logger.warn("Failed to clean up the chunks at " + generationPath, e);
+        }
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import org.apache.zookeeper.CreateMode;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffers writes of frequently updated scalars, and writes only the latest value of each path once per interval.
+ * Every Zookeeper write goes through the leader and a quorum, so a value updated many times a second is much cheaper
+ * to the whole ensemble this way, at the cost of the interval in freshness.
+ * <p>
+ * A path has at most one write in flight, so values are written in the order they were given. The futures of all
+ * the writes folded into a single write complete together, with the version it produced.
+ * Until then, reads of the path return the value written before.
+ * </p>
+ */
+public class CoalescingWriter implements Closeable {
+    private final ScalarStore store;
+    private final long intervalMillis;
+    private final Executor executor;
+    private final ConcurrentHashMap<String, Slot> slots = new ConcurrentHashMap<>();
+    private final LongAdder coalescedWrites = new LongAdder();
+    private final LongAdder flushedWrites = new LongAdder();
+    private volatile boolean closed = false;
+
+    /**
+     * @param store the store to write to
+     * @param intervalMillis how long to buffer the writes of a path before writing the latest value
+     * @param executor the executor to flush on
+     */
+    public CoalescingWriter(ScalarStore store, long intervalMillis, Executor executor) {
+        assert store != null : "must provide a store";
+        assert intervalMillis > 0 : "the coalescing interval must be positive";
+        assert executor != null : "must provide an executor";
+        this.store = store;
+        this.intervalMillis = intervalMillis;
+        this.executor = executor;
+    }
+
+    /**
+     * Buffers a value, replacing any value of the same path that was not written yet
+     * @param path the path of the scalar znode
+     * @param value a non null scalar value
+     * @param createMode the mode to create the znode with, if it does not exist
+     * @return a future of the data version of the write that included this value (or a later one)
+     */
+    public CompletableFuture<Integer> write(String path, Object value, CreateMode createMode) {
+        assert value != null : "null values are not allowed. Remove the data instead.";
+        while (true) {
+            Slot slot = slots.computeIfAbsent(path, Slot::new);
+            synchronized (slot) {
+                if (!slot.retired) {
+                    return slot.buffer(value, createMode);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all the buffered values now
+     * @return a future completing once every value buffered so far was written (or failed)
+     */
+    public CompletableFuture<Void> flush() {
+        List<CompletableFuture<Integer>> writes = new ArrayList<>();
+        for (Slot slot: slots.values()) {
+            writes.add(slot.flushNow());
+        }
+        return CompletableFuture.allOf(writes.toArray(new CompletableFuture<?>[writes.size()]))
+                .handle((nothing, error) -> null);
+    }
+
+    /**
+     * Writes the buffered value of a path now. Use before writing the path in any other way (a compare and set, a
+     * removal) so the buffered value does not land on top of it later.
+     * @param path the path of the scalar znode
+     * @return a future completing once the value buffered so far was written (or failed)
+     */
+    public CompletableFuture<Void> flush(String path) {
+        Slot slot = slots.get(path);
+        return slot == null ? CompletableFuture.completedFuture(null) : slot.flushNow().handle((version, error) -> null);
+    }
+
+    /**
+     * @return the number of writes that were folded into a later write rather than sent to Zookeeper
+     */
+    public long getCoalescedWriteCount() {
+        return coalescedWrites.sum();
+    }
+
+    /**
+     * @return the number of writes actually sent to Zookeeper
+     */
+    public long getFlushedWriteCount() {
+        return flushedWrites.sum();
+    }
+
+    /**
+     * @return the number of paths with a value buffered or being written
+     */
+    public int getPendingCount() {
+        return slots.size();
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Writes all the buffered values now, and from now on writes without waiting for the interval
+     */
+    @Override
+    public void close() {
+        closed = true;
+        flush();
+    }
+
+    /**
+     * The buffered value of a path and its write in flight, guarded by the slot's lock.
+     * Retired (and removed) once idle, so paths that are no longer written take no memory.
+     */
+    private class Slot {
+        private final String path;
+        private Object value;
+        private CreateMode createMode;
+        private CompletableFuture<Integer> buffered;
+        private CompletableFuture<Integer> writing;
+        private boolean scheduled;
+        private boolean flushRequested;
+        private boolean retired;
+
+        Slot(String path) {
+            this.path = path;
+        }
+
+        /**
+         * Called with the lock held
+         */
+        CompletableFuture<Integer> buffer(Object value, CreateMode createMode) {
+            this.value = value;
+            this.createMode = createMode;
+            if (buffered == null) {
+                buffered = new CompletableFuture<>();
+            }
+            else {
+                coalescedWrites.increment();
+            }
+            if (closed) {
+                flushRequested = true;
+            }
+            scheduleIfNeeded();
+            return buffered;
+        }
+
+        CompletableFuture<Integer> flushNow() {
+            CompletableFuture<Integer> done;
+            synchronized (this) {
+                if (buffered == null) {
+                    return writing != null ? writing : CompletableFuture.completedFuture(null);
+                }
+                done = buffered;
+                flushRequested = true;
+            }
+            executor.execute(this::flushBuffered);
+            return done;
+        }
+
+        /**
+         * Called with the lock held
+         */
+        private void scheduleIfNeeded() {
+            if (scheduled || writing != null || buffered == null) {
+                return;
+            }
+            scheduled = true;
+            if (flushRequested) {
+                executor.execute(this::flushBuffered);
+            }
+            else {
+                ZookeeperExecutors.scheduler().schedule(() -> executor.execute(this::flushBuffered),
+                        intervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void flushBuffered() {
+            Object value;
+            CreateMode createMode;
+            CompletableFuture<Integer> done;
+            synchronized (this) {
+                if (writing != null || buffered == null) {
+                    return; // already written, or the write in flight will reschedule when done
+                }
+                value = this.value;
+                createMode = this.createMode;
+                done = buffered;
+                this.value = null;
+                buffered = null;
+                scheduled = false;
+                flushRequested = false;
+                writing = done;
+            }
+            flushedWrites.increment();
+            CompletableFuture<Integer> written;
+            try {
+                written = store.write(path, value, createMode);
+            } catch (RuntimeException e) {
+                written = new CompletableFuture<>();
+                written.completeExceptionally(e);
+            }
+            written.whenComplete((version, error) -> {
+                synchronized (this) {
+                    writing = null;
+                    if (buffered == null) {
+                        retired = true;
+                        slots.remove(path, this);
+                    }
+                    else {
+                        scheduled = false;
+                        scheduleIfNeeded();
+                    }
+                }
+                if (error == null) {
+                    done.complete(version);
+                }
+                else {
+                    done.completeExceptionally(error);
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded cache evicting the least recently used entries, safe for concurrent use.
+ * The keys are spread over independently locked segments, each a small LRU of its own, so that threads looking up
+ * different keys rarely contend. Eviction is therefore LRU per segment, which approximates LRU overall.
+ * <p>
+ * Values are computed outside the locks, so two threads missing on the same key at once may both compute it.
+ * The first to finish wins and the other's value is dropped, which suits cheap, deterministic computations.
+ * </p>
+ */
+public class ConcurrentLruCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+    private final Segment<K, V>[] segments;
+    private final int segmentMask;
+    private final int capacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity the maximal number of entries. Rounded up to a multiple of the number of segments
+     */
+    public ConcurrentLruCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("the capacity must be positive. Got " + capacity);
+        }
+        int segmentCount = Math.min(MAX_SEGMENTS, Integer.highestOneBit(capacity));
+        int segmentCapacity = (capacity + segmentCount - 1) / segmentCount;
+        segments = newSegments(segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<>(segmentCapacity, evictions);
+        }
+        segmentMask = segmentCount - 1;
+        this.capacity = segmentCapacity * segmentCount;
+    }
+
+    /**
+     * @param key a key
+     * @param loader computes the value of a key that is not cached. Must not return null
+     * @return the cached or computed value
+     */
+    public V get(K key, Function<? super K, ? extends V> loader) {
+        Segment<K, V> segment = segmentOf(key);
+        V value;
+        synchronized (segment) {
+            value = segment.get(key);
+        }
+        if (value != null) {
+            hits.increment();
+            return value;
+        }
+        misses.increment();
+        V computed = loader.apply(key);
+        synchronized (segment) {
+            value = segment.putIfAbsent(key, computed);
+        }
+        return value == null ? computed : value;
+    }
+
+    /**
+     * @param key a key
+     * @return the cached value, or null. Does not count as a hit or a miss
+     */
+    public V peek(K key) {
+        Segment<K, V> segment = segmentOf(key);
+        synchronized (segment) {
+            return segment.get(key);
+        }
+    }
+
+    public void clear() {
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the number of cached entries
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the fraction of lookups answered from the cache, or 0 if there were none
+     */
+    public double getHitRate() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentLruCache{size=" + size() + ", capacity=" + capacity + ", hits=" + getHitCount() +
+                ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "}";
+    }
+
+    @SuppressWarnings("unchecked") // generic array creation. The array never leaves this cache
+    private static <K, V> Segment<K, V>[] newSegments(int count) {
+        return (Segment<K, V>[]) new Segment<?, ?>[count];
+    }
+
+    private Segment<K, V> segmentOf(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // spread the high bits, as HashMap does
+        return segments[hash & segmentMask];
+    }
+
+    /**
+     * An access ordered map that drops its eldest entry when full. Guarded by its own monitor.
+     */
+    private static class Segment<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * Identifies a shared data item by scope and name, and carries the hints that decide how it is stored.
+ * Two addresses are equal if their scope and name are, whatever their hints.
+ */
+public final class DataAddress {
+    /**
+     * Whether the data outlives the session that wrote it (a persistent znode) or not (an ephemeral znode)
+     */
+    public enum Lifespan {PERSISTENT, EPHEMERAL}
+
+    /**
+     * The expected size of the data, which may select a different layout
+     */
+    public enum SizeHint {SMALL, LARGE}
+
+    private final String scope;
+    private final String name;
+    private final Lifespan lifespan;
+    private final SizeHint sizeHint;
+    private final String json;
+
+    /**
+     * @param scope the scope of the data, e.g. an application name. May be empty, but not null
+     * @param name the name of the data within the scope
+     * @param lifespan the lifespan hint
+     * @param sizeHint the size hint
+     */
+    public DataAddress(String scope, String name, Lifespan lifespan, SizeHint sizeHint) {
+        assert scope != null : "scope may not be null. Use an empty scope";
+        assert name != null : "name may not be null";
+        assert lifespan != null : "lifespan may not be null";
+        assert sizeHint != null : "size hint may not be null";
+        this.scope = scope;
+        this.name = name;
+        this.lifespan = lifespan;
+        this.sizeHint = sizeHint;
+        this.json = "{\"name\":" + Json.quote(name) + ",\"scope\":" + Json.quote(scope) + "}";
+    }
+
+    /**
+     * @return a persistent, small data address
+     */
+    public static DataAddress of(String scope, String name) {
+        return new DataAddress(scope, name, Lifespan.PERSISTENT, SizeHint.SMALL);
+    }
+
+    public DataAddress withLifespan(Lifespan lifespan) {
+        return new DataAddress(scope, name, lifespan, sizeHint);
+    }
+
+    public DataAddress withSizeHint(SizeHint sizeHint) {
+        return new DataAddress(scope, name, lifespan, sizeHint);
+    }
+
+    public String getScope() {
+        return scope;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Lifespan getLifespan() {
+        return lifespan;
+    }
+
+    public SizeHint getSizeHint() {
+        return sizeHint;
+    }
+
+    /**
+     * @return the normalized JSON of the scope and name (keys sorted, no whitespace), from which the path is derived
+     */
+    public String toJson() {
+        return json;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof DataAddress)) {
+            return false;
+        }
+        DataAddress other = (DataAddress) o;
+        return scope.equals(other.scope) && name.equals(other.name);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * scope.hashCode() + name.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return json;
+    }
+}
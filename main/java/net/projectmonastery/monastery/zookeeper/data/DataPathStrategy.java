@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * Maps shared data addresses onto znode paths
+ */
+public interface DataPathStrategy {
+    /**
+     * @return the znode under which all the shared data is kept
+     */
+    String getDataRoot();
+
+    /**
+     * @param address a data address
+     * @return the path of the znode holding the data
+     */
+    String pathOf(DataAddress address);
+
+    /**
+     * @param elementJson the normalized JSON of a collection element
+     * @return the name of the child znode holding the element
+     */
+    String childNameOf(String elementJson);
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The default path strategy: <code>&lt;root&gt;/data/&lt;hash&gt;</code>, where the hash is the hex SHA-256 of the
+ * normalized JSON of the address. Collection elements are named by the hash of their own JSON the same way.
+ * <p>
+ * Resolved paths and element names are memoized in bounded LRU caches, so the hot addresses are hashed only once.
+ * Misses hash on a per-thread digest, into per-thread buffers.
+ * </p>
+ */
+public class HashedDataPaths implements DataPathStrategy {
+    public static final String DATA_NODE = "data";
+    /**
+     * The default number of addresses, and separately of element values, whose hashes are kept
+     */
+    public static final int DEFAULT_CACHE_CAPACITY = 10_000;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    private static final ThreadLocal<Hasher> HASHERS = ThreadLocal.withInitial(Hasher::new);
+    private final String dataRoot;
+    private final ConcurrentLruCache<DataAddress, String> addressCache;
+    private final ConcurrentLruCache<String, String> elementCache;
+
+    /**
+     * @param rootPath the root path of the cluster
+     */
+    public HashedDataPaths(String rootPath) {
+        this(rootPath, DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * @param rootPath the root path of the cluster
+     * @param cacheCapacity the number of addresses, and separately of element values, whose hashes are kept
+     */
+    public HashedDataPaths(String rootPath, int cacheCapacity) {
+        assert rootPath != null : "root path may not be null";
+        this.dataRoot = rootPath + "/" + DATA_NODE;
+        this.addressCache = new ConcurrentLruCache<>(cacheCapacity);
+        this.elementCache = new ConcurrentLruCache<>(cacheCapacity);
+    }
+
+    @Override
+    public String getDataRoot() {
+        return dataRoot;
+    }
+
+    @Override
+    public String pathOf(DataAddress address) {
+        return addressCache.get(address, this::resolve);
+    }
+
+    @Override
+    public String childNameOf(String elementJson) {
+        return elementCache.get(elementJson, HashedDataPaths::hash);
+    }
+
+    /**
+     * @return the cache of address paths, for its hit rate and size
+     */
+    public ConcurrentLruCache<DataAddress, String> getAddressCache() {
+        return addressCache;
+    }
+
+    /**
+     * @return the cache of element names, for its hit rate and size
+     */
+    public ConcurrentLruCache<String, String> getElementCache() {
+        return elementCache;
+    }
+
+    private String resolve(DataAddress address) {
+        Hasher hasher = HASHERS.get();
+        StringBuilder path = hasher.path;
+        path.setLength(0);
+        path.append(dataRoot).append('/');
+        hasher.appendHash(path, address.toJson());
+        return path.toString();
+    }
+
+    /**
+     * @param text any text
+     * @return the lower case hex SHA-256 of its UTF-8 encoding
+     */
+    public static String hash(String text) {
+        Hasher hasher = HASHERS.get();
+        hasher.digestHex(text);
+        return new String(hasher.hex);
+    }
+
+    /**
+     * The per-thread hashing state: the digest, and buffers for the input bytes, the hex output and the path
+     */
+    private static class Hasher {
+        private static final int MAX_RETAINED_INPUT = 4096;
+        private final MessageDigest digest;
+        private final char[] hex;
+        private final StringBuilder path = new StringBuilder(128);
+        private byte[] input = new byte[256];
+
+        Hasher() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is required of every JVM", e);
+            }
+            hex = new char[2 * digest.getDigestLength()];
+        }
+
+        void appendHash(StringBuilder out, String text) {
+            digestHex(text);
+            out.append(hex);
+        }
+
+        /**
+         * Hashes the text into the hex buffer
+         */
+        void digestHex(String text) {
+            int length = encodeAscii(text);
+            if (length >= 0) {
+                digest.update(input, 0, length);
+            }
+            else {
+                digest.update(text.getBytes(StandardCharsets.UTF_8));
+            }
+            byte[] hash = digest.digest(); // also resets the digest
+            for (int i = 0; i < hash.length; i++) {
+                hex[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xf];
+                hex[2 * i + 1] = HEX_DIGITS[hash[i] & 0xf];
+            }
+        }
+
+        /**
+         * Most addresses are plain ASCII, whose UTF-8 encoding is just the chars. Encode those into the reused buffer.
+         * @return the encoded length, or -1 if the text is not ASCII or too long to keep a buffer for
+         */
+        private int encodeAscii(String text) {
+            int length = text.length();
+            if (length > MAX_RETAINED_INPUT) {
+                return -1;
+            }
+            if (length > input.length) {
+                input = new byte[Math.min(MAX_RETAINED_INPUT, Math.max(length, 2 * input.length))];
+            }
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80) {
+                    return -1;
+                }
+                input[i] = (byte) c;
+            }
+            return length;
+        }
+    }
+}
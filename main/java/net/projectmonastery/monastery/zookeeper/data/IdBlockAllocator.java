@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Hands out cluster unique IDs (0, 1, 2, ...) from blocks leased from a persistent znode holding the next unleased ID.
+ * <p>
+ * A lease is one compare and set of the znode. The IDs of a leased block are then handed out locally with an atomic
+ * increment, so most IDs cost no Zookeeper call. The next block is leased in the background once a quarter of the
+ * current block is left, so a steady consumer rarely waits for a lease.
+ * </p>
+ * <p>
+ * The block size adapts to the consumption rate: each lease asks for about as many IDs as were consumed in the
+ * target lease interval, within the block size limits. A busy node leases rarely, and an idle node leases small
+ * blocks, so few IDs are lost when it goes away with a partly used block.
+ * IDs are unique and increasing on each node, but neither contiguous nor ordered across nodes.
+ * </p>
+ */
+public class IdBlockAllocator {
+    public static final int DEFAULT_MIN_BLOCK_SIZE = 16;
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 1 << 20;
+    public static final long DEFAULT_TARGET_LEASE_INTERVAL_MILLIS = 1000;
+    /**
+     * Limits how fast the block size changes from one lease to the next
+     */
+    private static final int MAX_RESIZE_FACTOR = 4;
+    private static final Block EXHAUSTED = new Block(0, 0);
+    private final CuratorFramework curatorFramework;
+    private final String path;
+    private final Executor executor;
+    private volatile Block current = EXHAUSTED;
+    /**
+     * The lease in flight, or a leased block not in use yet. Guarded by this.
+     */
+    private CompletableFuture<Block> leasing;
+    private Block ready;
+    private volatile int blockSize;
+    private volatile int minBlockSize = DEFAULT_MIN_BLOCK_SIZE;
+    private volatile int maxBlockSize = DEFAULT_MAX_BLOCK_SIZE;
+    private volatile long targetLeaseIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_TARGET_LEASE_INTERVAL_MILLIS);
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+
+    /**
+     * @param curatorFramework a started framework
+     * @param path the path of the allocator znode
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public IdBlockAllocator(CuratorFramework curatorFramework, String path, Executor executor) {
+        assert curatorFramework != null : "must provide a CuratorFramework";
+        assert executor != null : "must provide an executor";
+        this.curatorFramework = curatorFramework;
+        this.path = path;
+        this.executor = executor;
+        this.blockSize = DEFAULT_MIN_BLOCK_SIZE;
+    }
+
+    /**
+     * @param min the smallest block to lease, which is also the size of the first block
+     * @param max the largest block to lease
+     * @return this allocator
+     */
+    public IdBlockAllocator withBlockSizeLimits(int min, int max) {
+        assert min > 0 && min <= max : "must have 0 < min <= max";
+        minBlockSize = min;
+        maxBlockSize = max;
+        blockSize = Math.min(Math.max(blockSize, min), max);
+        return this;
+    }
+
+    /**
+     * @param millis about how long a block should last at the observed consumption rate
+     * @return this allocator
+     */
+    public IdBlockAllocator withTargetLeaseIntervalMillis(long millis) {
+        assert millis > 0 : "target lease interval must be positive";
+        targetLeaseIntervalNanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        return this;
+    }
+
+    /**
+     * @param metrics where to record the latency of the Zookeeper operations
+     * @return this allocator
+     */
+    public IdBlockAllocator withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * While the leased block lasts, the returned future is already complete
+     * @return a future of an ID no other call, on any node, gets
+     */
+    public CompletableFuture<Long> nextId() {
+        while (true) {
+            Block block = current;
+            long id = block.next.getAndIncrement();
+            if (id < block.end) {
+                if (block.end - id == block.prefetchAt) {
+                    prefetch(block); // exactly one caller crosses the mark
+                }
+                return CompletableFuture.completedFuture(id);
+            }
+            CompletableFuture<Block> next = nextBlock(block);
+            if (!next.isDone()) {
+                return next.thenCompose(leased -> nextId());
+            }
+            if (next.isCompletedExceptionally()) {
+                return next.thenApply(leased -> 0L); // just the failure
+            }
+        }
+    }
+
+    /**
+     * @return the size of the last block leased (or to be leased first)
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @return the number of IDs left in the current block
+     */
+    public long getRemaining() {
+        Block block = current;
+        return Math.max(0, block.end - block.next.get());
+    }
+
+    /**
+     * @return the number of blocks leased by this node
+     */
+    public long getLeaseCount() {
+        return leases.sum();
+    }
+
+    /**
+     * @return the number of times a lease lost a race with another node's lease, and had to retry
+     */
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @param exhausted the block that ran out
+     * @return a future of the block that replaced it
+     */
+    private synchronized CompletableFuture<Block> nextBlock(Block exhausted) {
+        if (current != exhausted) {
+            return CompletableFuture.completedFuture(current);
+        }
+        if (ready != null) {
+            current = ready;
+            ready = null;
+            return CompletableFuture.completedFuture(current);
+        }
+        CompletableFuture<Block> lease = leasing != null ? leasing : startLease(exhausted);
+        return lease.thenApply(leased -> {
+            synchronized (this) {
+                if (current == exhausted && ready == leased) {
+                    current = leased;
+                    ready = null;
+                }
+                return current;
+            }
+        });
+    }
+
+    private synchronized void prefetch(Block block) {
+        if (current == block && ready == null && leasing == null) {
+            startLease(block);
+        }
+    }
+
+    /**
+     * Called with the lock held
+     * @return a future of the leased block, completing once it is ready
+     */
+    private CompletableFuture<Block> startLease(Block consuming) {
+        int size = nextBlockSize(consuming);
+        blockSize = size;
+        CompletableFuture<Block> lease = new CompletableFuture<>();
+        // chained rather than added alongside, so the state is updated before any dependent of leasing runs
+        CompletableFuture<Block> leased = lease.whenComplete((block, error) -> {
+            synchronized (this) {
+                leasing = null;
+                if (error == null) {
+                    ready = block;
+                }
+            }
+        });
+        leasing = leased;
+        lease(size, lease);
+        return leased;
+    }
+
+    /**
+     * Sizes the next block to last about the target lease interval at the rate the current one is consumed
+     */
+    private int nextBlockSize(Block consuming) {
+        int size = blockSize;
+        if (consuming == EXHAUSTED) {
+            return size;
+        }
+        long consumed = Math.min(consuming.next.get(), consuming.end) - consuming.start;
+        long elapsed = Math.max(1, System.nanoTime() - consuming.leasedAtNanos);
+        double wanted = (double) consumed * targetLeaseIntervalNanos / elapsed;
+        double bounded = Math.max(size / (double) MAX_RESIZE_FACTOR, Math.min(wanted, (double) size * MAX_RESIZE_FACTOR));
+        return (int) Math.max(minBlockSize, Math.min(maxBlockSize, Math.ceil(bounded)));
+    }
+
+    /**
+     * Leases the block with a compare and set of the next unleased ID, creating the znode on first use
+     */
+    private void lease(int size, CompletableFuture<Block> lease) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getData()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            long next;
+                            try {
+                                next = ((Number) ValueCodecs.decode(event.getData())).longValue();
+                            } catch (RuntimeException e) {
+                                lease.completeExceptionally(e);
+                                return;
+                            }
+                            claim(next, event.getStat().getVersion(), size, lease);
+                        }
+                        else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                            create(size, lease);
+                        }
+                        else {
+                            lease.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            lease.completeExceptionally(e);
+        }
+    }
+
+    private void claim(long first, int version, int size, CompletableFuture<Block> lease) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.setData()
+                    .withVersion(version)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.SET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            leased(first, size, lease);
+                        }
+                        else if (resultCode == KeeperException.Code.BADVERSION.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue()) {
+                            conflicts.increment();
+                            lease(size, lease);
+                        }
+                        else {
+                            lease.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(path, BinaryValueCodec.INSTANCE.encode(first + size));
+        } catch (Exception e) {
+            lease.completeExceptionally(e);
+        }
+    }
+
+    private void create(int size, CompletableFuture<Block> lease) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            leased(0, size, lease);
+                        }
+                        else if (resultCode == KeeperException.Code.NODEEXISTS.intValue()) {
+                            conflicts.increment();
+                            lease(size, lease);
+                        }
+                        else {
+                            lease.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(path, BinaryValueCodec.INSTANCE.encode((long) size));
+        } catch (Exception e) {
+            lease.completeExceptionally(e);
+        }
+    }
+
+    private void leased(long first, int size, CompletableFuture<Block> lease) {
+        leases.increment();
+        lease.complete(new Block(first, first + size));
+    }
+
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+
+    /**
+     * A leased range of IDs, [start, end)
+     */
+    private static class Block {
+        private final long start;
+        private final long end;
+        private final AtomicLong next;
+        /**
+         * The number of IDs left at which to lease the next block
+         */
+        private final long prefetchAt;
+        private final long leasedAtNanos = System.nanoTime();
+
+        Block(long start, long end) {
+            this.start = start;
+            this.end = end;
+            this.next = new AtomicLong(start);
+            this.prefetchAt = Math.max(1, (end - start) / 4);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * The JSON representation of scalars (see ScalarJson). Verbose, but readable when browsing the data.
+ * Its payloads start with '{'.
+ */
+public final class JsonValueCodec implements ValueCodec {
+    public static final JsonValueCodec INSTANCE = new JsonValueCodec();
+
+    private JsonValueCodec() {
+    }
+
+    @Override
+    public byte getMarker() {
+        return '{';
+    }
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        return ScalarJson.encode(value);
+    }
+
+    @Override
+    public Object decode(byte[] payload) {
+        return ScalarJson.decode(payload);
+    }
+}
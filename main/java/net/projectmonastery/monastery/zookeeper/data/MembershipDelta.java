@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The difference between two consecutive views of the registered nodes
+ */
+public class MembershipDelta {
+    private final List<String> joined;
+    private final List<String> left;
+    private final int cversion;
+    private final boolean initialLoad;
+
+    public MembershipDelta(List<String> joined, List<String> left, int cversion) {
+        this(joined, left, cversion, false);
+    }
+
+    private MembershipDelta(List<String> joined, List<String> left, int cversion, boolean initialLoad) {
+        this.joined = Collections.unmodifiableList(joined);
+        this.left = Collections.unmodifiableList(left);
+        this.cversion = cversion;
+        this.initialLoad = initialLoad;
+    }
+
+    /**
+     * @param members the first view of the registered nodes, sorted
+     * @param cversion the cversion of the nodes root in that view
+     * @return a delta in which all the members joined, marked as the initial load
+     */
+    public static MembershipDelta initialLoad(String[] members, int cversion) {
+        return new MembershipDelta(Arrays.asList(members), new ArrayList<>(), cversion, true);
+    }
+
+    /**
+     * Computes the delta between two sorted arrays of node IDs in a single merge pass
+     * @param before the previous view, sorted
+     * @param after the new view, sorted
+     * @param cversion the cversion of the nodes root in the new view
+     * @return the delta
+     */
+    public static MembershipDelta between(String[] before, String[] after, int cversion) {
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        int i = 0;
+        int j = 0;
+        while (i < before.length && j < after.length) {
+            int comparison = before[i].compareTo(after[j]);
+            if (comparison == 0) {
+                i++;
+                j++;
+            }
+            else if (comparison < 0) {
+                left.add(before[i++]);
+            }
+            else {
+                joined.add(after[j++]);
+            }
+        }
+        while (i < before.length) {
+            left.add(before[i++]);
+        }
+        while (j < after.length) {
+            joined.add(after[j++]);
+        }
+        return new MembershipDelta(joined, left, cversion);
+    }
+
+    /**
+     * @return the IDs of nodes that joined, sorted (in order of registration)
+     */
+    public List<String> getJoined() {
+        return joined;
+    }
+
+    /**
+     * @return the IDs of nodes that left, sorted (in order of registration)
+     */
+    public List<String> getLeft() {
+        return left;
+    }
+
+    /**
+     * @return the cversion of the nodes root after this change, or -1 if it does not exist
+     */
+    public int getCversion() {
+        return cversion;
+    }
+
+    /**
+     * @return true if this delta is the first load of the view rather than a change to it
+     */
+    public boolean isInitialLoad() {
+        return initialLoad;
+    }
+
+    public boolean isEmpty() {
+        return joined.isEmpty() && left.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "MembershipDelta{joined=" + joined + ", left=" + left + ", cversion=" + cversion +
+                ", initialLoad=" + initialLoad + "}";
+    }
+}
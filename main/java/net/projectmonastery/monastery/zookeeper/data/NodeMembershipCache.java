@@ -0,0 +1,309 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * A locally replicated view of the registered nodes (the children of <code>&lt;root&gt;/nodes</code>).
+ * A single children watch keeps the view fresh, so membership questions are answered from memory.
+ * <p>
+ * Every change is reported to delta listeners as the minimal set of joined and left nodes. Watch firings that arrive
+ * within the coalescing window are folded into a single re-read, and so into a single delta.
+ * </p>
+ * <p>
+ * The view is eventually consistent. Callers that need a stronger answer can use the staleness information
+ * (the last seen cversion of the nodes root and the time since the last sync) to decide when to read Zookeeper directly.
+ * </p>
+ */
+public class NodeMembershipCache implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(NodeMembershipCache.class);
+    private final CuratorFramework curatorFramework;
+    private final String nodesPath;
+    private final Executor executor;
+    private final Set<String> members = ConcurrentHashMap.newKeySet();
+    /**
+     * The same members, sorted. Replaced (never modified) on every refresh, which are serialized.
+     */
+    private volatile String[] sortedMembers = new String[0];
+    private final List<Consumer<MembershipDelta>> deltaListeners = new CopyOnWriteArrayList<>();
+    private volatile long coalescingWindowMillis = 0;
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    private final CompletableFuture<Void> initialSync = new CompletableFuture<>();
+    /**
+     * Counts refresh requests. A refresh is started only by the request that moves it from zero, and requests that
+     * arrive during a refresh cause exactly one more refresh.
+     */
+    private final AtomicInteger refreshRequests = new AtomicInteger();
+    private final CuratorWatcher watcher = event -> requestRefresh(false);
+    private final ConnectionStateListener connectionStateListener = this::onConnectionStateChanged;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean connected = true;
+    private volatile boolean closed = false;
+    private volatile int lastSeenCversion = -1;
+    private volatile long lastSyncNanos = 0;
+
+    /**
+     * @param curatorFramework a started framework
+     * @param nodesPath the path of the nodes root
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public NodeMembershipCache(CuratorFramework curatorFramework, String nodesPath, Executor executor) {
+        this.curatorFramework = curatorFramework;
+        this.nodesPath = nodesPath;
+        this.executor = executor;
+    }
+
+    /**
+     * Starts watching the nodes root. Calling it again has no further effect.
+     * @return a future completing once the view is loaded for the first time
+     */
+    public CompletableFuture<Void> start() {
+        if (started.compareAndSet(false, true)) {
+            curatorFramework.getConnectionStateListenable().addListener(connectionStateListener, executor);
+            requestRefresh(true);
+        }
+        return initialSync;
+    }
+
+    /**
+     * Changes that arrive within this window after a watch fires are read together and reported as one delta.
+     * Trades a little freshness for far fewer reads of large child lists during bursts (e.g. a mass restart).
+     * @param millis the window. Zero (the default) means re-read as soon as the watch fires
+     * @return this cache
+     */
+    public NodeMembershipCache withCoalescingWindowMillis(long millis) {
+        assert millis >= 0 : "coalescing window may not be negative";
+        coalescingWindowMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param metrics where to record the latency of the reads of the nodes root
+     * @return this cache
+     */
+    public NodeMembershipCache withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        return this;
+    }
+
+    public long getCoalescingWindowMillis() {
+        return coalescingWindowMillis;
+    }
+
+    /**
+     * Adds a listener to membership changes. Deltas are delivered one at a time, in order, on the cache's executor.
+     * The initial load is reported as a delta in which all the current nodes joined (see
+     * MembershipDelta.isInitialLoad()). A listener added after the initial load does not see it.
+     * @param listener the listener
+     */
+    public void addDeltaListener(Consumer<MembershipDelta> listener) {
+        deltaListeners.add(listener);
+    }
+
+    public void removeDeltaListener(Consumer<MembershipDelta> listener) {
+        deltaListeners.remove(listener);
+    }
+
+    /**
+     * @param nodeId a node ID
+     * @return true if the node is currently in the view
+     */
+    public boolean contains(String nodeId) {
+        return members.contains(nodeId);
+    }
+
+    /**
+     * @return the node IDs currently in the view, sorted (that is, in order of registration)
+     */
+    public List<String> getMembers() {
+        return Collections.unmodifiableList(Arrays.asList(sortedMembers));
+    }
+
+    /**
+     * @return true if the view was loaded and is watched over a live connection, so it can be trusted
+     */
+    public boolean isSynced() {
+        return initialSync.isDone() && !initialSync.isCompletedExceptionally() && connected && !closed;
+    }
+
+    /**
+     * @return the child version (cversion) of the nodes root as of the last sync, or -1 if it was never seen
+     */
+    public int getLastSeenCversion() {
+        return lastSeenCversion;
+    }
+
+    /**
+     * Note that a watched view does not need to re-read Zookeeper while nothing changes, so a long time since the last
+     * sync on its own does not mean the view is stale. Look at isSynced() too.
+     * @return the time since the view was last read from Zookeeper, or Long.MAX_VALUE if it was never read
+     */
+    public long getMillisSinceLastSync() {
+        long last = lastSyncNanos;
+        return last == 0 ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - last);
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        curatorFramework.getConnectionStateListenable().removeListener(connectionStateListener);
+    }
+
+    private void onConnectionStateChanged(CuratorFramework client, ConnectionState state) {
+        switch (state) {
+            case SUSPENDED:
+            case LOST:
+                connected = false;
+                break;
+            case CONNECTED:
+            case RECONNECTED:
+                connected = true;
+                requestRefresh(true); // the watch may be gone with the session, and we may have missed changes
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void requestRefresh(boolean immediate) {
+        if (!closed && refreshRequests.getAndIncrement() == 0) {
+            long window = coalescingWindowMillis;
+            if (immediate || window <= 0) {
+                refresh();
+            }
+            else {
+                ZookeeperExecutors.scheduler().schedule(() -> executor.execute(this::refresh), window, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void refresh() {
+        int requestsServed = refreshRequests.get();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getChildren()
+                    .usingWatcher(watcher)
+                    .inBackground((client, event) -> {
+                        metrics.recordOperation(ZookeeperOperation.GET_CHILDREN, System.nanoTime() - start,
+                                event.getResultCode() == KeeperException.Code.OK.intValue());
+                        onChildren(event, requestsServed);
+                    }, executor)
+                    .forPath(nodesPath);
+        } catch (Exception e) {
+            logger.warn("Failed to refresh the membership of " + nodesPath, e);
+            refreshDone(requestsServed);
+        }
+    }
+
+    private void onChildren(CuratorEvent event, int requestsServed) {
+        try {
+            if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                update(event.getChildren(), event.getStat().getCversion());
+            }
+            else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                // no node announced yet. Watch for the nodes root to show up
+                update(Collections.emptyList(), -1);
+                watchForNodesRoot();
+            }
+            else {
+                logger.warn("Failed to read the membership of " + nodesPath + ": " +
+                        KeeperException.Code.get(event.getResultCode()));
+            }
+        } finally {
+            refreshDone(requestsServed);
+        }
+    }
+
+    private void watchForNodesRoot() {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.checkExists()
+                    .usingWatcher(watcher)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        metrics.recordOperation(ZookeeperOperation.EXISTS, System.nanoTime() - start,
+                                resultCode == KeeperException.Code.OK.intValue() ||
+                                        resultCode == KeeperException.Code.NONODE.intValue());
+                        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                            requestRefresh(true); // created since we looked, so the watch will not fire for it
+                        }
+                    }, executor)
+                    .forPath(nodesPath);
+        } catch (Exception e) {
+            logger.warn("Failed to watch for " + nodesPath, e);
+        }
+    }
+
+    private void refreshDone(int requestsServed) {
+        if (refreshRequests.addAndGet(-requestsServed) > 0 && !closed) {
+            refresh();
+        }
+    }
+
+    private void update(List<String> children, int cversion) {
+        String[] current = children.toArray(new String[children.size()]);
+        Arrays.sort(current);
+        MembershipDelta delta = initialSync.isDone() ?
+                MembershipDelta.between(sortedMembers, current, cversion) :
+                MembershipDelta.initialLoad(current, cversion);
+        delta.getLeft().forEach(members::remove);
+        members.addAll(delta.getJoined());
+        sortedMembers = current;
+        lastSeenCversion = cversion;
+        lastSyncNanos = System.nanoTime();
+        logger.debug("Membership of " + nodesPath + " at cversion " + cversion + ": " + current.length + " nodes, " +
+                delta.getJoined().size() + " joined, " + delta.getLeft().size() + " left");
+        initialSync.complete(null);
+
+        if (!delta.isEmpty()) {
+            for (Consumer<MembershipDelta> listener: deltaListeners) {
+                try {
+                    listener.accept(delta);
+                } catch (RuntimeException e) {
+                    logger.error("Membership delta listener failed", e);
+                }
+            }
+        }
+    }
+}
@@ -17,15 +17,34 @@
 
 package net.projectmonastery.monastery.zookeeper.data;
 
-import com.sun.xml.internal.ws.util.CompletedFuture;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
 import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.transaction.CuratorTransaction;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.framework.api.transaction.CuratorTransactionResult;
 import org.apache.curator.framework.imps.CuratorFrameworkState;
 import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.data.Stat;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by Arnon Moscona on 7/23/2015.
@@ -34,15 +53,178 @@ import java.util.concurrent.CompletableFuture;
  */
 public class NodeRegistry {
     private final static Logger logger = LoggerFactory.getLogger(NodeRegistry.class);
+    /**
+     * The largest number of nodes created in a single transaction, regardless of the buffer size
+     */
+    public static final int MAX_BATCH_CHUNK = 1000;
+    /**
+     * A conservative estimate of the per-operation overhead of a create in a multi request and its response
+     * (op header, ACL, flags, and the length prefixes), not counting the paths themselves.
+     */
+    private static final int CREATE_OP_OVERHEAD_BYTES = 64;
+    private static final int DEFAULT_JUTE_MAX_BUFFER = 0xfffff;
+    /**
+     * The default limit on existence checks in flight for a single bulk check
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT_CHECKS = 64;
+    /**
+     * When the number of registered nodes is unknown, bulk checks of at least this many IDs list the nodes instead
+     */
+    static final int BULK_LISTING_THRESHOLD = 32;
+    /**
+     * Roughly how many child names cost as much to transfer and process as a single exists round trip
+     */
+    static final int CHILDREN_PER_EXISTS_CHECK = 8;
     private final CuratorFramework curatorFramework;
     private final String rootPath;
+    private final Executor executor;
+    private Mode mode = Mode.BLOCKING;
+    private ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    /**
+     * Optional in-memory view of the registered nodes. When present and synced, reads are answered from it.
+     */
+    private volatile NodeMembershipCache membershipCache;
+    private int maxInFlightChecks = DEFAULT_MAX_IN_FLIGHT_CHECKS;
+    /**
+     * The number of registered nodes last time we listed them, or -1. Used to pick the cheaper bulk check strategy.
+     */
+    private volatile int lastKnownNodeCount = -1;
+    /**
+     * What we last learned about the existence of the nodes root znode. Saves a round trip on every announcement.
+     */
+    private volatile NodesRootState nodesRootState = NodesRootState.UNKNOWN;
+
+    private enum NodesRootState {
+        /**
+         * Not known yet. Assumed to exist, as this is by far the common case
+         */
+        UNKNOWN,
+        PRESENT,
+        /**
+         * Last seen missing. The node and its parent are created together
+         */
+        ABSENT
+    }
+
+    /**
+     * How the registry talks to Zookeeper
+     */
+    public enum Mode {
+        /**
+         * Synchronous Curator calls, each run as a task on the executor. Every pending operation holds a thread.
+         */
+        BLOCKING,
+        /**
+         * Curator background calls. The executor only runs the callbacks, so no thread waits on the network.
+         */
+        NON_BLOCKING
+    }
 
     public NodeRegistry(CuratorFramework curatorFramework, String rootPath) {
+        this(curatorFramework, rootPath, null);
+    }
+
+    /**
+     * @param curatorFramework the framework to use
+     * @param rootPath the root path of the cluster
+     * @param executor the executor for the blocking Zookeeper calls. If null, the default Zookeeper I/O pool is used
+     */
+    public NodeRegistry(CuratorFramework curatorFramework, String rootPath, Executor executor) {
         this.curatorFramework = curatorFramework;
         this.rootPath = rootPath;
+        this.executor = executor == null ? ZookeeperExecutors.defaultExecutor() : executor;
         assert rootPath.startsWith("/") : "invalid root path :"+rootPath;
     }
 
+    /**
+     * @return the executor used for Zookeeper calls
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param mode how to talk to Zookeeper
+     * @return this registry
+     */
+    public NodeRegistry withMode(Mode mode) {
+        assert mode != null : "mode may not be null";
+        this.mode = mode;
+        return this;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Keeps a watched, in-memory view of the registered nodes, so that nodeExists() and listNodes() are answered
+     * without going to Zookeeper while the view is synced.
+     * @return this registry
+     */
+    public synchronized NodeRegistry withMembershipCache() {
+        if (membershipCache == null) {
+            NodeMembershipCache cache = new NodeMembershipCache(curatorFramework, makeNodesRootPath(), executor)
+                    .withMetrics(metrics);
+            cache.start();
+            membershipCache = cache;
+        }
+        return this;
+    }
+
+    /**
+     * @param metrics where to record the latency of every Zookeeper operation of this registry
+     * @return this registry
+     */
+    public NodeRegistry withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        if (membershipCache != null) {
+            membershipCache.withMetrics(metrics);
+        }
+        return this;
+    }
+
+    public ZookeeperMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param maxInFlightChecks the limit on existence checks in flight for a single bulk check
+     * @return this registry
+     */
+    public NodeRegistry withMaxInFlightChecks(int maxInFlightChecks) {
+        assert maxInFlightChecks > 0 : "must allow at least one check in flight";
+        this.maxInFlightChecks = maxInFlightChecks;
+        return this;
+    }
+
+    /**
+     * @return the membership cache, if enabled
+     */
+    public Optional<NodeMembershipCache> getMembershipCache() {
+        return Optional.ofNullable(membershipCache);
+    }
+
+    /**
+     * Releases the resources held by the registry (the membership cache watch, if any). Registered nodes are not
+     * affected.
+     */
+    public synchronized void close() {
+        if (membershipCache != null) {
+            membershipCache.close();
+            membershipCache = null;
+        }
+    }
+
+    public String getRootPath() {
+        return rootPath;
+    }
+
+    public CuratorFramework getCuratorFramework() {
+        return curatorFramework;
+    }
+
     /**
      * Registers a node.
      * Assumes that the framework is already started, connected, and ready.
@@ -52,34 +234,309 @@ public class NodeRegistry {
         assert curatorFramework.getState() == CuratorFrameworkState.STARTED : "Curator framework not started";
 
         final CompletableFuture<String> future = new CompletableFuture<>();
+        if (mode == Mode.NON_BLOCKING) {
+            makeNewNodeInBackground(future);
+            return future;
+        }
 
         CompletableFuture.runAsync(()-> {
             try {
-                String nodes = makeNodesRootPath();
-
-                Stat exists =curatorFramework.checkExists()
-                        .forPath(nodes);
-                if (exists == null) {
-                    curatorFramework.create()
-                            .creatingParentsIfNeeded()
-                            .withMode(CreateMode.PERSISTENT)
-                            .forPath(nodes);
-                }
+                String node = createNode(makeNodesRootPath());
+                logger.debug("Created node \"" + node +"\"");
+                future.complete(lastPathElement(node));
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        }, executor);
+
+        return future;
+    }
 
+    /**
+     * Creates the ephemeral sequential znode for a new node.
+     * Optimistically assumes that the nodes root exists, so the common case takes a single round trip.
+     * @param nodes the nodes root path
+     * @return the full path of the new znode
+     */
+    private String createNode(String nodes) throws Exception {
+        if (nodesRootState != NodesRootState.ABSENT) {
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
                 String node = curatorFramework.create()
                         .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
-                        .forPath(nodes+"/node-");
-                logger.debug("Created node \"" + node +"\"");
-                String[] path = node.split("/");
-                future.complete(path[path.length-1]);
+                        .forPath(nodes + "/node-");
+                success = true;
+                nodesRootState = NodesRootState.PRESENT;
+                return node;
+            } catch (KeeperException.NoNodeException e) {
+                logger.debug("Nodes root " + nodes + " does not exist. Creating it with the node.");
+                nodesRootState = NodesRootState.ABSENT;
+            } finally {
+                record(ZookeeperOperation.CREATE, start, success);
+            }
+        }
+        return createNodeWithNodesRoot(nodes, true);
+    }
+
+    /**
+     * Creates the nodes root and the node's znode in one transaction (one round trip)
+     * @param nodes the nodes root path
+     * @param mayCreateRoot whether to create the cluster root znode if it is missing too
+     * @return the full path of the new znode
+     */
+    private String createNodeWithNodesRoot(String nodes, boolean mayCreateRoot) throws Exception {
+        String nodePrefix = nodes + "/node-";
+        Collection<CuratorTransactionResult> results;
+        long start = System.nanoTime();
+        try {
+            results = curatorFramework.inTransaction()
+                    .create().withMode(CreateMode.PERSISTENT).forPath(nodes)
+                    .and()
+                    .create().withMode(CreateMode.EPHEMERAL_SEQUENTIAL).forPath(nodePrefix)
+                    .and()
+                    .commit();
+            record(ZookeeperOperation.MULTI, start, true);
+        } catch (KeeperException.NodeExistsException e) { // another node created the nodes root first
+            record(ZookeeperOperation.MULTI, start, false);
+            nodesRootState = NodesRootState.PRESENT;
+            return createNode(nodes);
+        } catch (KeeperException.NoNodeException e) { // the cluster root is missing too
+            record(ZookeeperOperation.MULTI, start, false);
+            if (!mayCreateRoot) {
+                throw e;
+            }
+            createRootPath();
+            return createNodeWithNodesRoot(nodes, false);
+        } catch (Exception e) {
+            record(ZookeeperOperation.MULTI, start, false);
+            throw e;
+        }
+
+        nodesRootState = NodesRootState.PRESENT;
+        for (CuratorTransactionResult result: results) {
+            if (nodePrefix.equals(result.getForPath())) {
+                return result.getResultPath();
+            }
+        }
+        throw new IllegalStateException("transaction result does not contain the created node " + nodePrefix);
+    }
+
+    private void createRootPath() throws Exception {
+        createPersistent(rootPath);
+    }
+
+    /**
+     * Creates a persistent znode and any missing parents. Does nothing if the znode exists.
+     */
+    private void createPersistent(String path) throws Exception {
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            curatorFramework.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT)
+                    .forPath(path);
+            success = true;
+        } catch (KeeperException.NodeExistsException e) {
+            // fine. Someone else created it
+        } finally {
+            record(ZookeeperOperation.CREATE, start, success);
+        }
+    }
+
+    /**
+     * The non-blocking version of makeNewNode(). Takes a single background call unless the nodes root is missing,
+     * in which case the (synchronous) transaction runs on the executor.
+     */
+    private void makeNewNodeInBackground(CompletableFuture<String> future) {
+        String nodes = makeNodesRootPath();
+        if (nodesRootState == NodesRootState.ABSENT) {
+            executor.execute(() -> createNodeWithNodesRoot(nodes, future));
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            curatorFramework.create()
+                    .withMode(CreateMode.EPHEMERAL_SEQUENTIAL)
+                    .inBackground((client, event) -> {
+                        record(ZookeeperOperation.CREATE, start, event.getResultCode() == KeeperException.Code.OK.intValue());
+                        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                            nodesRootState = NodesRootState.PRESENT;
+                            logger.debug("Created node \"" + event.getName() + "\"");
+                            future.complete(lastPathElement(event.getName()));
+                        }
+                        else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                            nodesRootState = NodesRootState.ABSENT;
+                            createNodeWithNodesRoot(nodes, future); // already on the executor
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(nodes + "/node-");
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private void createNodeWithNodesRoot(String nodes, CompletableFuture<String> future) {
+        try {
+            String node = createNodeWithNodesRoot(nodes, true);
+            logger.debug("Created node \"" + node + "\"");
+            future.complete(lastPathElement(node));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Unregisters a node, so that it leaves the cluster without closing the session its znode belongs to
+     * (for example, when several nodes share a framework). Removing a node that is not registered is not an error.
+     * @param nodeId the node ID
+     * @return a future completing when the node is no longer registered
+     */
+    public CompletableFuture<Void> removeNode(String nodeId) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.delete()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.DELETE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue()) {
+                            logger.debug("Removed node \"" + nodeId + "\"");
+                            future.complete(null);
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(makeNodesRootPath() + "/" + nodeId);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Registers several nodes at once, in as few transactions as the Zookeeper packet size limit
+     * (jute.maxbuffer) allows.
+     * If any transaction fails, the nodes already created by this call are deleted (best effort) and the future
+     * completes exceptionally.
+     * @param count the number of nodes to register
+     * @return the new node IDs, in creation order (as a future)
+     */
+    public CompletableFuture<List<String>> makeNewNodes(int count) {
+        assert curatorFramework.getState() == CuratorFrameworkState.STARTED : "Curator framework not started";
+        assert count >= 0 : "cannot make a negative number of nodes";
+
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        if (count == 0) {
+            future.complete(Collections.emptyList());
+            return future;
+        }
+
+        // Curator transactions are synchronous, so this runs on the executor in both modes
+        CompletableFuture.runAsync(() -> {
+            String nodes = makeNodesRootPath();
+            List<String> created = new ArrayList<>(count);
+            try {
+                ensureNodesRoot(nodes);
+                int chunkSize = getBatchChunkSize();
+                while (created.size() < count) {
+                    created.addAll(createNodes(nodes, Math.min(chunkSize, count - created.size())));
+                }
+                logger.debug("Created " + created.size() + " nodes under " + nodes);
+                List<String> ids = new ArrayList<>(created.size());
+                created.forEach(node -> ids.add(lastPathElement(node)));
+                future.complete(ids);
             } catch (Exception e) {
+                deleteQuietly(created);
                 future.completeExceptionally(e);
             }
-        });
+        }, executor);
 
         return future;
     }
 
+    /**
+     * @return the number of creates that fit in a single multi request, given the jute.maxbuffer limit
+     */
+    int getBatchChunkSize() {
+        int maxBuffer = Integer.getInteger("jute.maxbuffer", DEFAULT_JUTE_MAX_BUFFER);
+        // the request carries the prefix path, the response the full path (prefix plus a 10 digit sequence number)
+        int bytesPerNode = CREATE_OP_OVERHEAD_BYTES + 2 * (makeNodesRootPath() + "/node-").length() + 10;
+        int fitting = (maxBuffer / 2) / bytesPerNode; // keep a safety margin of half the buffer
+        return Math.max(1, Math.min(MAX_BATCH_CHUNK, fitting));
+    }
+
+    private void ensureNodesRoot(String nodes) throws Exception {
+        if (nodesRootState == NodesRootState.PRESENT) {
+            return;
+        }
+        createPersistent(nodes);
+        nodesRootState = NodesRootState.PRESENT;
+    }
+
+    /**
+     * Creates several ephemeral sequential node znodes in one transaction
+     * @return the full paths of the created znodes, in creation order
+     */
+    private List<String> createNodes(String nodes, int count) throws Exception {
+        String nodePrefix = nodes + "/node-";
+        CuratorTransaction transaction = curatorFramework.inTransaction();
+        CuratorTransactionFinal last = null;
+        for (int i = 0; i < count; i++) {
+            last = transaction.create().withMode(CreateMode.EPHEMERAL_SEQUENTIAL).forPath(nodePrefix).and();
+            transaction = last;
+        }
+        assert last != null : "cannot commit an empty transaction";
+
+        Collection<CuratorTransactionResult> results;
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            results = last.commit();
+            success = true;
+        } finally {
+            record(ZookeeperOperation.MULTI, start, success);
+        }
+        List<String> created = new ArrayList<>(count);
+        for (CuratorTransactionResult result: results) {
+            created.add(result.getResultPath());
+        }
+        Collections.sort(created); // the sequence numbers are fixed width, so this is creation order
+        return created;
+    }
+
+    private void deleteQuietly(List<String> paths) {
+        for (String path: paths) {
+            try {
+                curatorFramework.delete().inBackground().forPath(path);
+            } catch (Exception e) {
+                logger.warn("Failed to clean up node " + path + " after a failed batch: " + e.getMessage());
+            }
+        }
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+
+    private static String lastPathElement(String path) {
+        return path.substring(path.lastIndexOf('/') + 1);
+    }
+
+    /**
+     * @param event a failed background event
+     * @return the matching KeeperException
+     */
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+
     private String makeNodesRootPath() {
         return rootPath + "/nodes";
     }
@@ -90,20 +547,213 @@ public class NodeRegistry {
      * @return a future boolean indicating whether the node exists
      */
     public CompletableFuture<Boolean> nodeExists(String nodeId) {
+        NodeMembershipCache cache = membershipCache;
+        if (cache != null && cache.isSynced()) {
+            return CompletableFuture.completedFuture(cache.contains(nodeId));
+        }
+
         CompletableFuture<Boolean> future = new CompletableFuture<>();
+        if (mode == Mode.NON_BLOCKING) {
+            nodeExistsInBackground(nodeId, future);
+            return future;
+        }
 
         CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
             try {
                 String fullPath = makeNodesRootPath() + "/" + nodeId;
                 Stat result = curatorFramework.checkExists()
                         .forPath(fullPath);
+                record(ZookeeperOperation.EXISTS, start, true);
                 future.complete(result != null);
             } catch (Exception e) {
+                record(ZookeeperOperation.EXISTS, start, false);
                 logger.debug("Exception while testing for existence of node "+nodeId, e);
                 future.completeExceptionally(e);
             }
+        }, executor);
+
+        return future;
+    }
+
+    /**
+     * Checks whether a node is registered by the given Zookeeper session, that is, whether its ephemeral znode exists
+     * and is owned by that session. Always read from Zookeeper.
+     * @param nodeId the node ID
+     * @param sessionId the Zookeeper session ID
+     * @return a future boolean indicating whether the node is registered by the session
+     */
+    public CompletableFuture<Boolean> isNodeOwnedBy(String nodeId, long sessionId) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.checkExists()
+                    .inBackground((client, event) -> {
+                        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                            record(ZookeeperOperation.EXISTS, start, true);
+                            future.complete(event.getStat().getEphemeralOwner() == sessionId);
+                        }
+                        else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                            record(ZookeeperOperation.EXISTS, start, true);
+                            future.complete(false);
+                        }
+                        else {
+                            record(ZookeeperOperation.EXISTS, start, false);
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(makeNodesRootPath() + "/" + nodeId);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Checks the existence of many nodes at once. Answered from the membership cache when it is enabled and synced.
+     * Otherwise, either lists the nodes once (when that is cheaper than checking each ID), or pipelines background
+     * existence checks over the connection with a limit on how many are in flight.
+     * @param nodeIds the node IDs to check
+     * @return a map from each node ID to whether it exists, in the iteration order of the given IDs (as a future)
+     */
+    public CompletableFuture<Map<String, Boolean>> nodeExists(Collection<String> nodeIds) {
+        List<String> ids = new ArrayList<>(new LinkedHashSet<>(nodeIds));
+        NodeMembershipCache cache = membershipCache;
+        if (cache != null && cache.isSynced()) {
+            Map<String, Boolean> result = new LinkedHashMap<>();
+            ids.forEach(id -> result.put(id, cache.contains(id)));
+            return CompletableFuture.completedFuture(result);
+        }
+        if (ids.isEmpty()) {
+            return CompletableFuture.completedFuture(new LinkedHashMap<>());
+        }
+
+        if (isListingCheaper(ids.size())) {
+            logger.debug("Checking " + ids.size() + " nodes by listing the registry");
+            return listNodes().thenApply(listed -> {
+                Set<String> present = new HashSet<>(listed);
+                Map<String, Boolean> result = new LinkedHashMap<>();
+                ids.forEach(id -> result.put(id, present.contains(id)));
+                return result;
+            });
+        }
+
+        CompletableFuture<Map<String, Boolean>> future = new CompletableFuture<>();
+        Boolean[] results = new Boolean[ids.size()];
+        AtomicInteger next = new AtomicInteger();
+        AtomicInteger pending = new AtomicInteger(ids.size());
+        int lanes = Math.min(maxInFlightChecks, ids.size());
+        for (int i = 0; i < lanes; i++) {
+            checkNext(ids, results, next, pending, future);
+        }
+        return future;
+    }
+
+    /**
+     * @param checks the number of IDs to check
+     * @return true if a single listing of the registry is expected to be cheaper than the individual checks
+     */
+    boolean isListingCheaper(int checks) {
+        if (checks < 2) {
+            return false;
+        }
+        int nodeCount = lastKnownNodeCount;
+        if (nodeCount < 0) {
+            return checks >= BULK_LISTING_THRESHOLD;
+        }
+        return nodeCount <= (long) checks * CHILDREN_PER_EXISTS_CHECK;
+    }
+
+    /**
+     * Issues the next existence check of a bulk check. Each completed check issues the next one, so the number in
+     * flight stays at the number of lanes started.
+     */
+    private void checkNext(List<String> ids, Boolean[] results, AtomicInteger next, AtomicInteger pending,
+                           CompletableFuture<Map<String, Boolean>> future) {
+        int index = next.getAndIncrement();
+        if (index >= ids.size() || future.isDone()) {
+            return;
+        }
+        CompletableFuture<Boolean> check = new CompletableFuture<>();
+        nodeExistsInBackground(ids.get(index), check);
+        check.whenComplete((exists, throwable) -> {
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+                return;
+            }
+            results[index] = exists;
+            if (pending.decrementAndGet() == 0) {
+                Map<String, Boolean> result = new LinkedHashMap<>();
+                for (int i = 0; i < results.length; i++) {
+                    result.put(ids.get(i), results[i]);
+                }
+                future.complete(result);
+            }
+            else {
+                checkNext(ids, results, next, pending, future);
+            }
         });
+    }
+
+    private void nodeExistsInBackground(String nodeId, CompletableFuture<Boolean> future) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.checkExists()
+                    .inBackground((client, event) -> {
+                        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                            record(ZookeeperOperation.EXISTS, start, true);
+                            future.complete(true);
+                        }
+                        else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                            record(ZookeeperOperation.EXISTS, start, true);
+                            future.complete(false);
+                        }
+                        else {
+                            record(ZookeeperOperation.EXISTS, start, false);
+                            logger.debug("Error while testing for existence of node " + nodeId + ": " + event);
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(makeNodesRootPath() + "/" + nodeId);
+        } catch (Exception e) {
+            logger.debug("Exception while testing for existence of node "+nodeId, e);
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Lists the registered nodes. Answered from the membership cache when it is enabled and synced.
+     * @return the registered node IDs, sorted in order of registration (as a future)
+     */
+    public CompletableFuture<List<String>> listNodes() {
+        NodeMembershipCache cache = membershipCache;
+        if (cache != null && cache.isSynced()) {
+            return CompletableFuture.completedFuture(cache.getMembers());
+        }
 
+        CompletableFuture<List<String>> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getChildren()
+                    .inBackground((client, event) -> {
+                        record(ZookeeperOperation.GET_CHILDREN, start, event.getResultCode() == KeeperException.Code.OK.intValue());
+                        if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                            List<String> ids = new ArrayList<>(event.getChildren());
+                            Collections.sort(ids);
+                            lastKnownNodeCount = ids.size();
+                            future.complete(ids);
+                        }
+                        else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                            future.complete(new ArrayList<>()); // no node was ever announced
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(makeNodesRootPath());
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
         return future;
     }
 }
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional compression of the payloads written to znodes, with the JDK's Deflate.
+ * <p>
+ * A compressed payload starts with a marker byte and the uncompressed length, followed by the zlib stream.
+ * Uncompressed payloads are written as they are: JSON starts with '{', and chunk manifests with their own marker,
+ * so readers tell the formats apart whatever the writer's settings, and old and new payloads can coexist.
+ * </p>
+ * <p>
+ * Only payloads of at least the threshold size are compressed, and only kept compressed if that makes them smaller.
+ * The Deflater and Inflater (which hold native memory) are reused, one of each per thread.
+ * </p>
+ */
+public class PayloadCompression {
+    /**
+     * The first byte of a Deflate compressed payload
+     */
+    public static final byte DEFLATE_MARKER = 0x02;
+    /**
+     * The default threshold: smaller payloads gain little, and their znodes cost more in overhead than in data
+     */
+    public static final int DEFAULT_THRESHOLD_BYTES = 512;
+    /**
+     * Never compresses, but still reads compressed payloads
+     */
+    public static final PayloadCompression NONE = new PayloadCompression(Integer.MAX_VALUE, Deflater.DEFAULT_COMPRESSION);
+    /**
+     * The largest uncompressed length a compressed payload may claim. Larger ones are taken as corrupt, not allocated
+     */
+    public static final int MAX_PAYLOAD_BYTES = 256 * 1024 * 1024;
+    private static final int HEADER_BYTES = 1 + 4;
+    /**
+     * Deflate never expands data by more than about 1032 to 1, so longer claimed lengths cannot be genuine
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    private static final ThreadLocal<Codecs> CODECS = ThreadLocal.withInitial(Codecs::new);
+    private final int thresholdBytes;
+    private final int level;
+
+    public PayloadCompression() {
+        this(DEFAULT_THRESHOLD_BYTES, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param thresholdBytes payloads of at least this size are compressed
+     * @param level the Deflate level, 0 to 9, or Deflater.DEFAULT_COMPRESSION
+     */
+    public PayloadCompression(int thresholdBytes, int level) {
+        if (thresholdBytes < 0) {
+            throw new IllegalArgumentException("the threshold may not be negative. Got " + thresholdBytes);
+        }
+        if (level != Deflater.DEFAULT_COMPRESSION && (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION)) {
+            throw new IllegalArgumentException("invalid compression level " + level);
+        }
+        this.thresholdBytes = thresholdBytes;
+        this.level = level;
+    }
+
+    public int getThresholdBytes() {
+        return thresholdBytes;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param payload an uncompressed payload
+     * @return the payload to write: compressed if it is large enough and compresses, otherwise the payload itself
+     */
+    public byte[] compress(byte[] payload) {
+        if (payload.length < thresholdBytes || payload.length < HEADER_BYTES) {
+            return payload;
+        }
+        Deflater deflater = CODECS.get().deflater(level);
+        try {
+            deflater.setInput(payload);
+            deflater.finish();
+            // worth keeping only if smaller, so never write more than that
+            byte[] compressed = new byte[payload.length];
+            ByteBuffer.wrap(compressed).put(DEFLATE_MARKER).putInt(payload.length);
+            int length = HEADER_BYTES;
+            while (!deflater.finished() && length < compressed.length) {
+                length += deflater.deflate(compressed, length, compressed.length - length);
+            }
+            if (!deflater.finished()) {
+                return payload;
+            }
+            byte[] result = new byte[length];
+            System.arraycopy(compressed, 0, result, 0, length);
+            return result;
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * @param data a payload as read from a znode, compressed or not
+     * @return the uncompressed payload
+     * @throws IllegalArgumentException if the payload is marked as compressed but is not valid
+     */
+    public static byte[] decompress(byte[] data) {
+        if (!isCompressed(data)) {
+            return data;
+        }
+        int length = ByteBuffer.wrap(data, 1, 4).getInt();
+        if (length < 0 || length > MAX_PAYLOAD_BYTES || length > (long) (data.length - HEADER_BYTES) * MAX_DEFLATE_RATIO) {
+            throw new IllegalArgumentException("Invalid compressed payload length " + length);
+        }
+        byte[] payload = new byte[length];
+        Inflater inflater = CODECS.get().inflater;
+        try {
+            inflater.setInput(data, HEADER_BYTES, data.length - HEADER_BYTES);
+            int inflated = 0;
+            while (inflated < length) {
+                int count = inflater.inflate(payload, inflated, length - inflated);
+                if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                inflated += count;
+            }
+            if (inflated != length || !inflater.finished()) {
+                throw new IllegalArgumentException("Truncated or corrupt compressed payload");
+            }
+            return payload;
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupt compressed payload", e);
+        } finally {
+            inflater.reset();
+        }
+    }
+
+    /**
+     * @param data a payload as read from a znode
+     * @return true if it is compressed
+     */
+    public static boolean isCompressed(byte[] data) {
+        return data != null && data.length >= HEADER_BYTES && data[0] == DEFLATE_MARKER;
+    }
+
+    @Override
+    public String toString() {
+        return this == NONE ? "PayloadCompression{none}" :
+                "PayloadCompression{threshold=" + thresholdBytes + ", level=" + level + "}";
+    }
+
+    /**
+     * The per-thread Deflater and Inflater
+     */
+    private static class Codecs {
+        private final Inflater inflater = new Inflater();
+        private Deflater deflater;
+        private int deflaterLevel;
+
+        Deflater deflater(int level) {
+            if (deflater == null || deflaterLevel != level) {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                deflater = new Deflater(level);
+                deflaterLevel = level;
+            }
+            return deflater;
+        }
+    }
+}
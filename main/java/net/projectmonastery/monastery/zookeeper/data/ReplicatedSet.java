@@ -0,0 +1,609 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A local replica of a shared set of scalars. The elements are znodes named by the hash of each element's JSON
+ * (see DataPathStrategy.childNameOf()), holding that JSON as their data. Depending on the layout, they are either
+ * children of the set znode, or spread over bucket znodes under it.
+ * <p>
+ * The replica holds the element names, so contains() is a hash lookup in memory. A children watch per bucket keeps it
+ * in sync: when one fires, that bucket is read again and only the difference is applied. Element values are only
+ * needed to enumerate the set, so they are read lazily, by getElements().
+ * </p>
+ * <p>
+ * Writes go to Zookeeper, and are applied to the replica as soon as they succeed, so a node sees its own writes.
+ * A refresh that was issued before a local write does not undo it.
+ * The replica is eventually consistent with the writes of other nodes.
+ * </p>
+ */
+public class ReplicatedSet implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(ReplicatedSet.class);
+    /**
+     * The limit on element reads in flight for a single getElements()
+     */
+    public static final int MAX_IN_FLIGHT_READS = 64;
+
+    /**
+     * How the elements are laid out under the set znode
+     */
+    public enum Layout {
+        /**
+         * All the elements are children of the set znode. Every change re-reads all of them, and very large sets
+         * outgrow the Zookeeper packet size limit (jute.maxbuffer).
+         */
+        FLAT(1),
+        /**
+         * The elements are spread over 256 buckets by the first two hex digits of their name:
+         * <code>&lt;set&gt;/&lt;00..ff&gt;/&lt;element&gt;</code>. Every change re-reads one bucket.
+         */
+        SHARDED(256);
+
+        private final int buckets;
+
+        Layout(int buckets) {
+            this.buckets = buckets;
+        }
+
+        public int getBuckets() {
+            return buckets;
+        }
+
+        /**
+         * @param sizeHint the size hint of a collection
+         * @return the layout for it: sharded for large collections, flat otherwise
+         */
+        public static Layout of(DataAddress.SizeHint sizeHint) {
+            return sizeHint == DataAddress.SizeHint.LARGE ? SHARDED : FLAT;
+        }
+    }
+
+    private final CuratorFramework curatorFramework;
+    private final String setPath;
+    private final DataPathStrategy paths;
+    private final CreateMode elementMode;
+    private final Executor executor;
+    private final Layout layout;
+    private final Bucket[] buckets;
+    /**
+     * The values of the elements known so far, by name. Filled in by local writes and by getElements().
+     */
+    private final ConcurrentHashMap<String, Object> values = new ConcurrentHashMap<>();
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    private volatile PayloadCompression compression = PayloadCompression.NONE;
+    private volatile ValueCodec codec = JsonValueCodec.INSTANCE;
+    private final CompletableFuture<Void> initialSync = new CompletableFuture<>();
+    private final ConnectionStateListener connectionStateListener = this::onConnectionStateChanged;
+    private final AtomicBoolean started = new AtomicBoolean();
+    private volatile boolean connected = true;
+    private volatile boolean closed = false;
+
+    /**
+     * @param curatorFramework a started framework
+     * @param setPath the path of the set znode
+     * @param paths names the element znodes
+     * @param elementMode the mode to create element znodes with
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public ReplicatedSet(CuratorFramework curatorFramework, String setPath, DataPathStrategy paths, CreateMode elementMode,
+                         Executor executor) {
+        this(curatorFramework, setPath, paths, elementMode, Layout.FLAT, executor);
+    }
+
+    /**
+     * @param curatorFramework a started framework
+     * @param setPath the path of the set znode
+     * @param paths names the element znodes
+     * @param elementMode the mode to create element znodes with
+     * @param layout how the elements are laid out. All the replicas of a set must use the same layout
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public ReplicatedSet(CuratorFramework curatorFramework, String setPath, DataPathStrategy paths, CreateMode elementMode,
+                         Layout layout, Executor executor) {
+        assert curatorFramework != null : "must provide a CuratorFramework";
+        assert setPath != null : "must provide a set path";
+        assert paths != null : "must provide a path strategy";
+        assert elementMode != null : "must provide an element create mode";
+        assert layout != null : "must provide a layout";
+        assert executor != null : "must provide an executor";
+        this.curatorFramework = curatorFramework;
+        this.setPath = setPath;
+        this.paths = paths;
+        this.elementMode = elementMode;
+        this.layout = layout;
+        this.executor = executor;
+        buckets = new Bucket[layout.getBuckets()];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new Bucket(layout == Layout.FLAT ? setPath : setPath + "/" + bucketName(i));
+        }
+    }
+
+    /**
+     * @param metrics where to record the latency of the Zookeeper operations
+     * @return this replica
+     */
+    public ReplicatedSet withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * Compressed elements are read whatever this setting, so it can differ between nodes
+     * @param compression how to compress the elements written. By default, they are not compressed
+     * @return this replica
+     */
+    public ReplicatedSet withCompression(PayloadCompression compression) {
+        assert compression != null : "compression may not be null. Use PayloadCompression.NONE";
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * Elements are read with whichever registered codec wrote them, so this can differ between nodes.
+     * Element names are derived from the JSON form whatever the codec, so all nodes agree on them.
+     * @param codec how to encode the elements written. By default, as JSON
+     * @return this replica
+     */
+    public ReplicatedSet withCodec(ValueCodec codec) {
+        assert codec != null : "must provide a codec";
+        this.codec = codec;
+        return this;
+    }
+
+    /**
+     * Loads the replica and starts watching the set. Calling it again has no further effect.
+     * @return a future completing once the replica is loaded for the first time
+     */
+    public CompletableFuture<Void> start() {
+        if (started.compareAndSet(false, true)) {
+            curatorFramework.getConnectionStateListenable().addListener(connectionStateListener, executor);
+            CompletableFuture<?>[] loaded = new CompletableFuture<?>[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                loaded[i] = buckets[i].initialSync;
+                buckets[i].requestRefresh();
+            }
+            CompletableFuture.allOf(loaded).whenComplete((nothing, error) -> {
+                if (error == null) {
+                    initialSync.complete(null);
+                }
+                else {
+                    initialSync.completeExceptionally(error);
+                }
+            });
+        }
+        return initialSync;
+    }
+
+    /**
+     * Answered from memory. Before the replica is loaded, this is always false.
+     * @param element a scalar value
+     * @return true if the element is in the replica
+     */
+    public boolean contains(Object element) {
+        String name = nameOf(element);
+        return bucketOf(name).names.contains(name);
+    }
+
+    /**
+     * @return the number of elements in the replica
+     */
+    public int size() {
+        int size = 0;
+        for (Bucket bucket: buckets) {
+            size += bucket.names.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return true if the replica was loaded and is watched over a live connection, so it can be trusted
+     */
+    public boolean isSynced() {
+        return initialSync.isDone() && !initialSync.isCompletedExceptionally() && connected && !closed;
+    }
+
+    public String getPath() {
+        return setPath;
+    }
+
+    public Layout getLayout() {
+        return layout;
+    }
+
+    /**
+     * @param element a non null scalar value
+     * @return a future of true if the element was added, false if it was already in the set
+     */
+    public CompletableFuture<Boolean> add(Object element) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            byte[] data = compression.compress(codec.encode(element));
+            String name = nameOf(element);
+            Bucket bucket = bucketOf(name);
+            curatorFramework.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(elementMode)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NODEEXISTS.intValue()) {
+                            bucket.applyLocally(name, element);
+                            future.complete(resultCode == KeeperException.Code.OK.intValue());
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(bucket.path + "/" + name, data);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @param element a non null scalar value
+     * @return a future of true if the element was removed, false if it was not in the set
+     */
+    public CompletableFuture<Boolean> remove(Object element) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            String name = nameOf(element);
+            Bucket bucket = bucketOf(name);
+            curatorFramework.delete()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.DELETE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue()) {
+                            bucket.applyLocally(name, null);
+                            future.complete(resultCode == KeeperException.Code.OK.intValue());
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(bucket.path + "/" + name);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Enumerates the replica. The values not known yet are read from Zookeeper, with a limit on reads in flight,
+     * and kept for next time.
+     * @return a future of the elements
+     */
+    public CompletableFuture<Set<Object>> getElements() {
+        List<String> snapshot = new ArrayList<>();
+        for (Bucket bucket: buckets) {
+            snapshot.addAll(bucket.names);
+        }
+        List<String> unknown = new ArrayList<>();
+        for (String name: snapshot) {
+            if (!values.containsKey(name)) {
+                unknown.add(name);
+            }
+        }
+        CompletableFuture<Void> loaded = new CompletableFuture<>();
+        if (unknown.isEmpty()) {
+            loaded.complete(null);
+        }
+        else {
+            AtomicInteger next = new AtomicInteger();
+            AtomicInteger pending = new AtomicInteger(unknown.size());
+            int lanes = Math.min(MAX_IN_FLIGHT_READS, unknown.size());
+            for (int i = 0; i < lanes; i++) {
+                readNext(unknown, next, pending, loaded);
+            }
+        }
+        return loaded.thenApply(nothing -> {
+            Set<Object> elements = new HashSet<>();
+            for (String name: snapshot) {
+                Object value = values.get(name);
+                if (value != null) { // null if removed while we read
+                    elements.add(value);
+                }
+            }
+            return Collections.unmodifiableSet(elements);
+        });
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        curatorFramework.getConnectionStateListenable().removeListener(connectionStateListener);
+    }
+
+    private String nameOf(Object element) {
+        return paths.childNameOf(ScalarJson.toJson(element));
+    }
+
+    private Bucket bucketOf(String name) {
+        return buckets[bucketIndex(name, buckets.length)];
+    }
+
+    /**
+     * @param name an element name
+     * @param bucketCount the number of buckets: 1 or 256
+     * @return the bucket of the element: the value of the first two hex digits of its name, or a hash of the name
+     * if the path strategy does not name elements in hex
+     */
+    static int bucketIndex(String name, int bucketCount) {
+        if (bucketCount == 1) {
+            return 0;
+        }
+        if (name.length() >= 2) {
+            int high = Character.digit(name.charAt(0), 16);
+            int low = Character.digit(name.charAt(1), 16);
+            if (high >= 0 && low >= 0) {
+                return ((high << 4) | low) & (bucketCount - 1);
+            }
+        }
+        int hash = name.hashCode();
+        return (hash ^ (hash >>> 16)) & (bucketCount - 1);
+    }
+
+    private static String bucketName(int index) {
+        return new String(new char[] {Character.forDigit(index >> 4, 16), Character.forDigit(index & 0xf, 16)});
+    }
+
+    /**
+     * Issues the next element read of a getElements(). Each completed read issues the next one, so the number in
+     * flight stays at the number of lanes started.
+     */
+    private void readNext(List<String> unknown, AtomicInteger next, AtomicInteger pending, CompletableFuture<Void> loaded) {
+        int index = next.getAndIncrement();
+        if (index >= unknown.size() || loaded.isDone()) {
+            return;
+        }
+        String name = unknown.get(index);
+        String path = bucketOf(name).path + "/" + name;
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getData()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            try {
+                                values.putIfAbsent(name, ValueCodecs.decode(PayloadCompression.decompress(event.getData())));
+                            } catch (RuntimeException e) {
+                                logger.warn("Ignoring an invalid element " + path, e);
+                            }
+                        }
+                        else if (resultCode != KeeperException.Code.NONODE.intValue()) { // NONODE: removed meanwhile
+                            loaded.completeExceptionally(toException(event));
+                            return;
+                        }
+                        if (pending.decrementAndGet() == 0) {
+                            loaded.complete(null);
+                        }
+                        else {
+                            readNext(unknown, next, pending, loaded);
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            loaded.completeExceptionally(e);
+        }
+    }
+
+    private void onConnectionStateChanged(CuratorFramework client, ConnectionState state) {
+        switch (state) {
+            case SUSPENDED:
+            case LOST:
+                connected = false;
+                break;
+            case CONNECTED:
+            case RECONNECTED:
+                connected = true;
+                for (Bucket bucket: buckets) {
+                    bucket.requestRefresh(); // the watches may be gone with the session, and we may have missed changes
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+
+    /**
+     * The elements under one znode, with the watch that keeps them in sync
+     */
+    private class Bucket {
+        private final String path;
+        private final Set<String> names = ConcurrentHashMap.newKeySet();
+        private final CompletableFuture<Void> initialSync = new CompletableFuture<>();
+        /**
+         * Counts refresh requests. A refresh is started only by the request that moves it from zero, and requests
+         * that arrive during a refresh cause exactly one more refresh.
+         */
+        private final AtomicInteger refreshRequests = new AtomicInteger();
+        private final CuratorWatcher watcher = event -> requestRefresh();
+        /**
+         * Numbers the refreshes, in the order they are issued. Guarded by this bucket.
+         */
+        private long refreshSequence = 0;
+        /**
+         * The names changed by local writes, with the number of the last refresh issued before each change.
+         * A refresh issued no later than that may not include the change, so it must not undo it.
+         * Guarded by this bucket.
+         */
+        private final Map<String, Long> localChanges = new HashMap<>();
+
+        Bucket(String path) {
+            this.path = path;
+        }
+
+        /**
+         * @param value the element added, or null if removed
+         */
+        synchronized void applyLocally(String name, Object value) {
+            if (value == null) {
+                names.remove(name);
+                values.remove(name);
+            }
+            else {
+                values.put(name, value);
+                names.add(name);
+            }
+            localChanges.put(name, refreshSequence);
+        }
+
+        void requestRefresh() {
+            if (!closed && refreshRequests.getAndIncrement() == 0) {
+                refresh();
+            }
+        }
+
+        private void refresh() {
+            int requestsServed = refreshRequests.get();
+            long sequence;
+            synchronized (this) {
+                sequence = ++refreshSequence;
+            }
+            long start = System.nanoTime();
+            try {
+                curatorFramework.getChildren()
+                        .usingWatcher(watcher)
+                        .inBackground((client, event) -> {
+                            record(ZookeeperOperation.GET_CHILDREN, start, event.getResultCode() == KeeperException.Code.OK.intValue());
+                            onChildren(event, requestsServed, sequence);
+                        }, executor)
+                        .forPath(path);
+            } catch (Exception e) {
+                logger.warn("Failed to refresh the set " + path, e);
+                refreshDone(requestsServed);
+            }
+        }
+
+        private void onChildren(CuratorEvent event, int requestsServed, long sequence) {
+            try {
+                if (event.getResultCode() == KeeperException.Code.OK.intValue()) {
+                    update(event.getChildren(), sequence);
+                }
+                else if (event.getResultCode() == KeeperException.Code.NONODE.intValue()) {
+                    // nothing was ever added here. Watch for the znode to show up
+                    update(Collections.emptyList(), sequence);
+                    watchForCreation();
+                }
+                else {
+                    KeeperException error = toException(event);
+                    logger.warn("Failed to read the set " + path + ": " + error.code());
+                    if (!initialSync.isDone() && !connected) {
+                        return; // the reconnection will refresh again
+                    }
+                    initialSync.completeExceptionally(error);
+                }
+            } finally {
+                refreshDone(requestsServed);
+            }
+        }
+
+        private void watchForCreation() {
+            long start = System.nanoTime();
+            try {
+                curatorFramework.checkExists()
+                        .usingWatcher(watcher)
+                        .inBackground((client, event) -> {
+                            int resultCode = event.getResultCode();
+                            record(ZookeeperOperation.EXISTS, start, resultCode == KeeperException.Code.OK.intValue() ||
+                                    resultCode == KeeperException.Code.NONODE.intValue());
+                            if (resultCode == KeeperException.Code.OK.intValue()) {
+                                requestRefresh(); // created since we looked, so the watch will not fire for it
+                            }
+                        }, executor)
+                        .forPath(path);
+            } catch (Exception e) {
+                logger.warn("Failed to watch for " + path, e);
+            }
+        }
+
+        private void refreshDone(int requestsServed) {
+            if (refreshRequests.addAndGet(-requestsServed) > 0 && !closed) {
+                refresh();
+            }
+        }
+
+        /**
+         * Applies the difference between the bucket and the children read by a refresh, except for local changes the
+         * refresh may not have seen
+         * @param sequence the number of the refresh
+         */
+        private synchronized void update(List<String> children, long sequence) {
+            Set<String> current = new HashSet<>(children);
+            int left = 0;
+            int joined = 0;
+            localChanges.values().removeIf(changedBefore -> changedBefore < sequence); // seen by this refresh
+            for (String name: names) {
+                if (!current.contains(name) && !localChanges.containsKey(name)) {
+                    names.remove(name);
+                    values.remove(name);
+                    left++;
+                }
+            }
+            for (String name: children) {
+                if (!localChanges.containsKey(name) && names.add(name)) {
+                    joined++;
+                }
+            }
+            if (joined > 0 || left > 0) {
+                logger.debug("Set " + path + ": " + current.size() + " elements, " + joined + " added, " + left + " removed");
+            }
+            initialSync.complete(null);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The JSON representation of scalar values in Zookeeper: <code>{"type":"Integer","value":"3"}</code>.
+ * The value is always written as a string, so that numbers round-trip exactly whatever the reader's JSON library.
+ */
+public final class ScalarJson {
+    private static final Map<Class<?>, String> TYPE_NAMES = new HashMap<>();
+    private static final Map<String, Function<String, Object>> PARSERS = new HashMap<>();
+
+    static {
+        register(String.class, value -> value);
+        register(Boolean.class, Boolean::valueOf);
+        register(Byte.class, Byte::valueOf);
+        register(Short.class, Short::valueOf);
+        register(Integer.class, Integer::valueOf);
+        register(Long.class, Long::valueOf);
+        register(Float.class, Float::valueOf);
+        register(Double.class, Double::valueOf);
+        register(Character.class, value -> {
+            if (value.length() != 1) {
+                throw new IllegalArgumentException("not a single character: " + value);
+            }
+            return value.charAt(0);
+        });
+    }
+
+    private ScalarJson() {
+        // static utility
+    }
+
+    private static void register(Class<?> type, Function<String, Object> parser) {
+        TYPE_NAMES.put(type, type.getSimpleName());
+        PARSERS.put(type.getSimpleName(), parser);
+    }
+
+    /**
+     * @param type a class
+     * @return true if values of this exact class can be stored as scalars
+     */
+    public static boolean isSupported(Class<?> type) {
+        return TYPE_NAMES.containsKey(type);
+    }
+
+    /**
+     * @param value a non null scalar value
+     * @return its JSON representation
+     * @throws IllegalArgumentException if the value is not of a supported type
+     */
+    public static String toJson(Object value) {
+        StringBuilder json = new StringBuilder(32);
+        appendJson(json, value);
+        return json.toString();
+    }
+
+    public static void appendJson(StringBuilder out, Object value) {
+        if (value == null) {
+            throw new IllegalArgumentException("Null scalar values are not allowed. Remove the data instead.");
+        }
+        String typeName = TYPE_NAMES.get(value.getClass());
+        if (typeName == null) {
+            throw new IllegalArgumentException("Unsupported scalar type " + value.getClass().getName());
+        }
+        out.append("{\"type\":").append('"').append(typeName).append("\",\"value\":");
+        Json.appendQuoted(out, value.toString());
+        out.append('}');
+    }
+
+    /**
+     * @param value a non null scalar value
+     * @return the UTF-8 encoded JSON representation, as stored in a znode
+     */
+    public static byte[] encode(Object value) {
+        return toJson(value).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param data the content of a scalar znode
+     * @return the value
+     * @throws IllegalArgumentException if the data is not a valid scalar representation
+     */
+    public static Object decode(byte[] data) {
+        if (data == null || data.length == 0) {
+            throw new IllegalArgumentException("Empty scalar data");
+        }
+        return fromJson(Json.parse(new String(data, StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param parsed a parsed JSON object, as returned by Json.parse()
+     * @return the scalar value it represents
+     * @throws IllegalArgumentException if it is not a valid scalar representation
+     */
+    public static Object fromJson(Object parsed) {
+        if (!(parsed instanceof Map)) {
+            throw new IllegalArgumentException("A scalar must be a JSON object. Got " + parsed);
+        }
+        Map<?, ?> object = (Map<?, ?>) parsed;
+        Object typeName = object.get("type");
+        Object value = object.get("value");
+        Function<String, Object> parser = PARSERS.get(typeName);
+        if (parser == null || !(value instanceof String)) {
+            throw new IllegalArgumentException("Invalid scalar " + parsed);
+        }
+        return parser.apply((String) value);
+    }
+}
@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.curator.framework.api.CuratorWatcher;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.framework.state.ConnectionStateListener;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Reads and writes scalar values kept one per znode, as JSON (see ScalarJson).
+ * <p>
+ * Reads are served from a local cache. The first read of a path fetches the data and sets a watch on it (or an
+ * existence watch, if there is no such znode), and until the watch fires every further read of that path is answered
+ * from memory: no Zookeeper call, and no allocation, since all readers share the same completed future.
+ * When the watch fires, the entry is dropped and the next read fetches again. Entries are also dropped when this
+ * store writes the path, and all of them when the session is lost, since the watches go with it.
+ * </p>
+ * <p>
+ * Writes always go to Zookeeper. Compare-and-set uses the znode data version as read, so a read-modify-write
+ * loop does not need a lock.
+ * </p>
+ * <p>
+ * Values larger than the chunk size are kept as chunks under the value znode (see ChunkedValues), and read back
+ * whole. Readers never see part of a value. Since ephemeral znodes cannot have children, ephemeral values are
+ * limited to the chunk size.
+ * </p>
+ * <p>
+ * Values may be compressed (see PayloadCompression) before they are chunked.
+ * </p>
+ */
+public class ScalarStore implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(ScalarStore.class);
+    /**
+     * The default chunk size: half the default Zookeeper packet size limit (jute.maxbuffer), leaving ample room for
+     * the request overhead
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 512 * 1024;
+    /**
+     * How many times in a row a read may find the chunks of the value it read gone (overtaken by newer writes) before
+     * it gives up
+     */
+    static final int MAX_OVERTAKEN_READS = 10;
+    private final CuratorFramework curatorFramework;
+    private final Executor executor;
+    /**
+     * Maps a path onto the future of its current value. Once complete, a future stays in the map until the path's
+     * watch fires, so it can be shared by all readers. Entries are only ever removed conditionally, by identity, so a
+     * late watch can never drop a newer entry.
+     */
+    private final ConcurrentHashMap<String, CompletableFuture<Versioned>> cache = new ConcurrentHashMap<>();
+    private final ConnectionStateListener connectionStateListener = this::onConnectionStateChanged;
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    private final ChunkedValues chunks;
+    private volatile int chunkSize = DEFAULT_CHUNK_SIZE;
+    private volatile PayloadCompression compression = PayloadCompression.NONE;
+    private volatile ValueCodec codec = JsonValueCodec.INSTANCE;
+
+    /**
+     * @param curatorFramework a started framework
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public ScalarStore(CuratorFramework curatorFramework, Executor executor) {
+        assert curatorFramework != null : "must provide a CuratorFramework";
+        assert executor != null : "must provide an executor";
+        this.curatorFramework = curatorFramework;
+        this.executor = executor;
+        this.chunks = new ChunkedValues(curatorFramework, executor);
+        curatorFramework.getConnectionStateListenable().addListener(connectionStateListener);
+    }
+
+    /**
+     * @param metrics where to record the latency of the Zookeeper operations
+     * @return this store
+     */
+    public ScalarStore withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        chunks.setMetrics(metrics);
+        return this;
+    }
+
+    /**
+     * @param chunkSize encoded values larger than this are written as chunks of this size.
+     *                  Must be well under the Zookeeper packet size limit (jute.maxbuffer)
+     * @return this store
+     */
+    public ScalarStore withChunkSize(int chunkSize) {
+        assert chunkSize > 0 : "chunk size must be positive";
+        this.chunkSize = chunkSize;
+        return this;
+    }
+
+    public int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * Compressed values are read whatever this setting, so it can differ between nodes
+     * @param compression how to compress the values written. By default, they are not compressed
+     * @return this store
+     */
+    public ScalarStore withCompression(PayloadCompression compression) {
+        assert compression != null : "compression may not be null. Use PayloadCompression.NONE";
+        this.compression = compression;
+        return this;
+    }
+
+    public PayloadCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Values are read with whichever registered codec wrote them (see ValueCodecs), so this can differ between nodes
+     * @param codec how to encode the values written. By default, as JSON
+     * @return this store
+     */
+    public ScalarStore withCodec(ValueCodec codec) {
+        assert codec != null : "must provide a codec";
+        this.codec = codec;
+        return this;
+    }
+
+    public ValueCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Note that the returned future may be shared between callers. It must not be obtruded.
+     * @param path the path of a scalar znode
+     * @return a future of the value and its version, or Versioned.ABSENT if there is no such znode
+     */
+    public CompletableFuture<Versioned> read(String path) {
+        CompletableFuture<Versioned> cached = cache.get(path);
+        if (cached != null) {
+            return cached;
+        }
+        CompletableFuture<Versioned> fetched = new CompletableFuture<>();
+        cached = cache.putIfAbsent(path, fetched);
+        if (cached != null) {
+            return cached;
+        }
+        fetch(path, fetched, 0);
+        return fetched;
+    }
+
+    /**
+     * Writes a value, creating the znode (and any missing parents) if needed
+     * @param path the path of the scalar znode
+     * @param value a non null scalar value
+     * @param createMode the mode to create the znode with, if it does not exist
+     * @return a future of the new data version
+     */
+    public CompletableFuture<Integer> write(String path, Object value, CreateMode createMode) {
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            byte[] data = encode(value);
+            if (isChunked(data, createMode)) {
+                return chunks.write(path, data, chunkSize, null).whenComplete((version, error) -> invalidate(path));
+            }
+            setOrCreate(path, data, createMode, future);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Writes a value only if the data is still at the expected version
+     * @param path the path of the scalar znode
+     * @param value a non null scalar value
+     * @param expectedVersion the version last read, or Versioned.ABSENT_VERSION to write only if there is no data yet
+     * @param createMode the mode to create the znode with, if the expected version is ABSENT_VERSION
+     * @return a future of true if the value was written, false if the data changed since read
+     */
+    public CompletableFuture<Boolean> compareAndSet(String path, Object value, int expectedVersion, CreateMode createMode) {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        try {
+            byte[] data = encode(value);
+            if (isChunked(data, createMode)) {
+                return chunks.write(path, data, chunkSize, expectedVersion)
+                        .whenComplete((version, error) -> invalidate(path))
+                        .thenApply(version -> version != null);
+            }
+            if (expectedVersion == Versioned.ABSENT_VERSION) {
+                create(path, data, createMode, future, true, event -> future.complete(false));
+            }
+            else {
+                long start = System.nanoTime();
+                curatorFramework.setData()
+                        .withVersion(expectedVersion)
+                        .inBackground((client, event) -> {
+                            int resultCode = event.getResultCode();
+                            record(ZookeeperOperation.SET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                            invalidate(path);
+                            if (resultCode == KeeperException.Code.OK.intValue()) {
+                                deleteChunksIfAny(path, event.getStat());
+                                future.complete(true);
+                            }
+                            else if (resultCode == KeeperException.Code.BADVERSION.intValue() ||
+                                    resultCode == KeeperException.Code.NONODE.intValue()) {
+                                future.complete(false);
+                            }
+                            else {
+                                future.completeExceptionally(toException(event));
+                            }
+                        }, executor)
+                        .forPath(path, data);
+            }
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Removes a value. Removing a value that does not exist is not an error.
+     * @param path the path of the scalar znode
+     * @return a future completing when the data is gone
+     */
+    public CompletableFuture<Void> remove(String path) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.delete()
+                    .deletingChildrenIfNeeded()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.DELETE, start, resultCode == KeeperException.Code.OK.intValue());
+                        invalidate(path);
+                        if (resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue()) {
+                            future.complete(null);
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Drops the cached value of a path, if any, so that the next read fetches it
+     * @param path a path
+     */
+    public void invalidate(String path) {
+        cache.remove(path);
+    }
+
+    /**
+     * Drops all the cached values
+     */
+    public void invalidateAll() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of paths currently cached (including those still being fetched)
+     */
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    @Override
+    public void close() {
+        curatorFramework.getConnectionStateListenable().removeListener(connectionStateListener);
+        cache.clear();
+    }
+
+    protected byte[] encode(Object value) {
+        return compression.compress(codec.encode(value));
+    }
+
+    protected Object decode(byte[] data) {
+        return ValueCodecs.decode(PayloadCompression.decompress(data));
+    }
+
+    /**
+     * @param overtaken how many times this read already found the chunks of the value it read gone
+     */
+    private void fetch(String path, CompletableFuture<Versioned> fetched, int overtaken) {
+        CuratorWatcher watcher = event -> onWatchedEvent(path, fetched, event);
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getData()
+                    .usingWatcher(watcher)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            onData(path, fetched, event.getData(), event.getStat().getVersion(), overtaken);
+                        }
+                        else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                            watchForCreation(path, fetched, watcher);
+                        }
+                        else {
+                            fail(path, fetched, toException(event));
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            fail(path, fetched, e);
+        }
+    }
+
+    private void onData(String path, CompletableFuture<Versioned> fetched, byte[] data, int version, int overtaken) {
+        if (data == null || data.length == 0) {
+            fetched.complete(Versioned.ABSENT); // chunks being written for a first value. The watch tells us when done
+        }
+        else if (ChunkedValues.isManifest(data)) {
+            chunks.read(path, data).whenComplete((whole, error) -> {
+                if (error == null) {
+                    completeDecoded(path, fetched, whole, version);
+                }
+                else if (error instanceof KeeperException.NoNodeException && overtaken + 1 < MAX_OVERTAKEN_READS) {
+                    fetch(path, fetched, overtaken + 1); // overtaken by a newer value. Read the manifest again
+                }
+                else {
+                    fail(path, fetched, error);
+                }
+            });
+        }
+        else {
+            completeDecoded(path, fetched, data, version);
+        }
+    }
+
+    private void completeDecoded(String path, CompletableFuture<Versioned> fetched, byte[] data, int version) {
+        try {
+            fetched.complete(new Versioned(decode(data), version));
+        } catch (RuntimeException e) {
+            fail(path, fetched, e);
+        }
+    }
+
+    private boolean isChunked(byte[] data, CreateMode createMode) {
+        if (data.length <= chunkSize) {
+            return false;
+        }
+        if (createMode.isEphemeral()) {
+            throw new IllegalArgumentException("Ephemeral values are limited to " + chunkSize + " bytes. Got " + data.length);
+        }
+        return true;
+    }
+
+    /**
+     * A value written whole may replace a chunked one, whose chunks are then no longer needed
+     * @param stat the stat of the value znode right after the write
+     */
+    private void deleteChunksIfAny(String path, Stat stat) {
+        if (stat.getNumChildren() > 0) {
+            chunks.deleteGenerationsReplacedBy(path, stat.getMzxid());
+        }
+    }
+
+    /**
+     * There is no such znode. Cache the absence, with an existence watch to tell us when it shows up.
+     */
+    private void watchForCreation(String path, CompletableFuture<Versioned> fetched, CuratorWatcher watcher) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.checkExists()
+                    .usingWatcher(watcher)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.EXISTS, start, resultCode == KeeperException.Code.OK.intValue() ||
+                                resultCode == KeeperException.Code.NONODE.intValue());
+                        if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                            fetched.complete(Versioned.ABSENT);
+                        }
+                        else if (resultCode == KeeperException.Code.OK.intValue()) {
+                            // created since we looked: read it again, for whoever is already waiting on this entry
+                            cache.remove(path, fetched);
+                            read(path).whenComplete((versioned, error) -> {
+                                if (error == null) {
+                                    fetched.complete(versioned);
+                                }
+                                else {
+                                    fetched.completeExceptionally(error);
+                                }
+                            });
+                        }
+                        else {
+                            fail(path, fetched, toException(event));
+                        }
+                    }, executor)
+                    .forPath(path);
+        } catch (Exception e) {
+            fail(path, fetched, e);
+        }
+    }
+
+    private void onWatchedEvent(String path, CompletableFuture<Versioned> fetched, WatchedEvent event) {
+        // Connection events are delivered to every watch. While merely disconnected the watches are kept, and we
+        // keep serving the last known values. Once expired, the watches are gone.
+        if (event.getType() != Watcher.Event.EventType.None ||
+                event.getState() == Watcher.Event.KeeperState.Expired) {
+            cache.remove(path, fetched);
+        }
+    }
+
+    private void onConnectionStateChanged(CuratorFramework client, ConnectionState state) {
+        if (state == ConnectionState.LOST) {
+            invalidateAll();
+        }
+    }
+
+    private void fail(String path, CompletableFuture<Versioned> fetched, Throwable error) {
+        cache.remove(path, fetched); // do not cache failures
+        logger.debug("Failed to read " + path, error);
+        fetched.completeExceptionally(error);
+    }
+
+    private void setOrCreate(String path, byte[] data, CreateMode createMode, CompletableFuture<Integer> future) throws Exception {
+        long start = System.nanoTime();
+        curatorFramework.setData()
+                .inBackground((client, event) -> {
+                    int resultCode = event.getResultCode();
+                    record(ZookeeperOperation.SET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                    if (resultCode == KeeperException.Code.OK.intValue()) {
+                        invalidate(path);
+                        deleteChunksIfAny(path, event.getStat());
+                        future.complete(event.getStat().getVersion());
+                    }
+                    else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                        create(path, data, createMode, future, 0, exists -> {
+                            try { // someone else created it first. Write over it
+                                setOrCreate(path, data, createMode, future);
+                            } catch (Exception e) {
+                                future.completeExceptionally(e);
+                            }
+                        });
+                    }
+                    else {
+                        future.completeExceptionally(toException(event));
+                    }
+                }, executor)
+                .forPath(path, data);
+    }
+
+    /**
+     * Creates the znode, with any missing parents
+     * @param created what to complete the future with once created
+     * @param onExists what to do if the znode already exists
+     */
+    private <T> void create(String path, byte[] data, CreateMode createMode, CompletableFuture<T> future, T created,
+                            Consumer<CuratorEvent> onExists) throws Exception {
+        long start = System.nanoTime();
+        curatorFramework.create()
+                .creatingParentsIfNeeded()
+                .withMode(createMode)
+                .inBackground((client, event) -> {
+                    int resultCode = event.getResultCode();
+                    record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                    invalidate(path);
+                    if (resultCode == KeeperException.Code.OK.intValue()) {
+                        future.complete(created);
+                    }
+                    else if (resultCode == KeeperException.Code.NODEEXISTS.intValue()) {
+                        onExists.accept(event);
+                    }
+                    else {
+                        future.completeExceptionally(toException(event));
+                    }
+                }, executor)
+                .forPath(path, data);
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+}
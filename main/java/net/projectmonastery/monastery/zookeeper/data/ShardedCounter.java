@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.api.CuratorEvent;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cluster wide counter, striped over shard znodes (<code>&lt;path&gt;/0</code> to <code>&lt;path&gt;/N-1</code>)
+ * so that many nodes can add to it at once without all contending on a single version.
+ * <p>
+ * Local additions are accumulated in memory and flushed together, once per flush interval, as a single compare and
+ * set of one shard. Each node sticks to one shard, and moves to another at random when it loses a race for it, so
+ * nodes tend to spread over the shards. The last seen version of each shard is remembered, so an uncontended flush
+ * costs a single write.
+ * </p>
+ * <p>
+ * The value is the sum of the shards. get() reads them from Zookeeper. getCached() serves them from a local view
+ * kept fresh by watches, which is cheaper for frequent readers, but costs a watch notification per shard write.
+ * Neither includes additions not yet flushed. All the nodes must use the same number of shards for a counter.
+ * </p>
+ * <p>
+ * A failed flush keeps its additions, and is retried with exponential backoff for as long as the framework is open.
+ * </p>
+ */
+public class ShardedCounter implements Closeable {
+    private final static Logger logger = LoggerFactory.getLogger(ShardedCounter.class);
+    public static final int DEFAULT_SHARDS = 16;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 100;
+    private static final int UNKNOWN_VERSION = -2;
+    static final long INITIAL_RETRY_DELAY_MILLIS = 100;
+    static final long MAX_RETRY_DELAY_MILLIS = 5000;
+    private final CuratorFramework curatorFramework;
+    private final String path;
+    private final Executor executor;
+    private final String[] shardPaths;
+    /**
+     * The last seen value and version of each shard. Only used by flushes, which are serialized.
+     */
+    private final long[] shardValues;
+    private final int[] shardVersions;
+    private int homeShard;
+    private final LongAdder pending = new LongAdder();
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> flushWaiters = new ConcurrentLinkedQueue<>();
+    /**
+     * Counts flush requests. A flush is started only by the request that moves it from zero, and requests that
+     * arrive during a flush cause exactly one more flush.
+     */
+    private final AtomicInteger flushRequests = new AtomicInteger();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicBoolean retryScheduled = new AtomicBoolean();
+    /**
+     * The number of flushes that failed in a row
+     */
+    private final AtomicInteger failedFlushes = new AtomicInteger();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder conflicts = new LongAdder();
+    private volatile long flushIntervalMillis = DEFAULT_FLUSH_INTERVAL_MILLIS;
+    private volatile ZookeeperMetrics metrics = ZookeeperMetrics.NO_OP;
+    private volatile ScalarStore cachedView;
+    private volatile boolean closed = false;
+
+    /**
+     * @param curatorFramework a started framework
+     * @param path the path of the counter znode
+     * @param shards the number of shards
+     * @param executor the executor to run the Zookeeper callbacks on
+     */
+    public ShardedCounter(CuratorFramework curatorFramework, String path, int shards, Executor executor) {
+        assert curatorFramework != null : "must provide a CuratorFramework";
+        assert shards > 0 : "must have at least one shard";
+        assert executor != null : "must provide an executor";
+        this.curatorFramework = curatorFramework;
+        this.path = path;
+        this.executor = executor;
+        shardPaths = new String[shards];
+        for (int i = 0; i < shards; i++) {
+            shardPaths[i] = path + "/" + i;
+        }
+        shardValues = new long[shards];
+        shardVersions = new int[shards];
+        Arrays.fill(shardVersions, UNKNOWN_VERSION);
+        homeShard = ThreadLocalRandom.current().nextInt(shards);
+    }
+
+    /**
+     * @param millis how long to accumulate local additions before writing them. Zero means write right away, which
+     *               still folds together the additions made while a write is in flight
+     * @return this counter
+     */
+    public ShardedCounter withFlushIntervalMillis(long millis) {
+        assert millis >= 0 : "flush interval may not be negative";
+        flushIntervalMillis = millis;
+        return this;
+    }
+
+    /**
+     * @param metrics where to record the latency of the Zookeeper operations
+     * @return this counter
+     */
+    public ShardedCounter withMetrics(ZookeeperMetrics metrics) {
+        assert metrics != null : "metrics may not be null. Use ZookeeperMetrics.NO_OP";
+        this.metrics = metrics;
+        return this;
+    }
+
+    public void increment() {
+        add(1);
+    }
+
+    /**
+     * Adds to the counter locally. The addition is written with the next flush.
+     * @param delta the amount to add (may be negative)
+     */
+    public void add(long delta) {
+        pending.add(delta);
+        long interval = flushIntervalMillis;
+        if (interval <= 0 || closed) {
+            requestFlush();
+        }
+        else if (flushScheduled.compareAndSet(false, true)) {
+            ZookeeperExecutors.scheduler().schedule(() -> executor.execute(() -> {
+                flushScheduled.set(false);
+                requestFlush();
+            }), interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes the local additions now
+     * @return a future completing once all the additions made so far are written
+     */
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> flushed = new CompletableFuture<>();
+        flushWaiters.add(flushed);
+        requestFlush();
+        return flushed;
+    }
+
+    /**
+     * @return a future of the sum of the shards, read from Zookeeper
+     */
+    public CompletableFuture<Long> get() {
+        List<CompletableFuture<Long>> reads = new ArrayList<>(shardPaths.length);
+        for (String shardPath: shardPaths) {
+            reads.add(readShard(shardPath));
+        }
+        return sum(reads);
+    }
+
+    /**
+     * The first call starts watching the shards. From then on, this is served from memory while nothing changes.
+     * @return a future of the sum of the shards, as seen by the local view
+     */
+    public CompletableFuture<Long> getCached() {
+        ScalarStore view = cachedView();
+        List<CompletableFuture<Long>> reads = new ArrayList<>(shardPaths.length);
+        for (String shardPath: shardPaths) {
+            reads.add(view.read(shardPath).thenApply(versioned ->
+                    versioned.isPresent() ? ((Number) versioned.getValue()).longValue() : 0L));
+        }
+        return sum(reads);
+    }
+
+    /**
+     * @return the sum of the local additions not written yet
+     */
+    public long getPending() {
+        return pending.sum();
+    }
+
+    /**
+     * @return the number of writes of this node's additions
+     */
+    public long getFlushCount() {
+        return flushes.sum();
+    }
+
+    /**
+     * @return the number of times this node lost a race for a shard, and had to retry on another one
+     */
+    public long getConflictCount() {
+        return conflicts.sum();
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public int getShards() {
+        return shardPaths.length;
+    }
+
+    /**
+     * Writes the local additions, and stops watching the shards. Later additions are written right away.
+     * A failed final write is retried like any other, until the framework is closed.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        requestFlush();
+        ScalarStore view = cachedView;
+        if (view != null) {
+            view.close();
+        }
+    }
+
+    private ScalarStore cachedView() {
+        ScalarStore view = cachedView;
+        if (view == null) {
+            synchronized (this) {
+                view = cachedView;
+                if (view == null) {
+                    view = new ScalarStore(curatorFramework, executor).withMetrics(metrics);
+                    cachedView = view;
+                }
+            }
+        }
+        return view;
+    }
+
+    private static CompletableFuture<Long> sum(List<CompletableFuture<Long>> parts) {
+        return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[parts.size()])).thenApply(nothing -> {
+            long sum = 0;
+            for (CompletableFuture<Long> part: parts) {
+                sum += part.join();
+            }
+            return sum;
+        });
+    }
+
+    private void requestFlush() {
+        if (flushRequests.getAndIncrement() == 0) {
+            flushNow();
+        }
+    }
+
+    private void flushNow() {
+        int requestsServed = flushRequests.get();
+        List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        for (CompletableFuture<Void> waiter = flushWaiters.poll(); waiter != null; waiter = flushWaiters.poll()) {
+            waiters.add(waiter);
+        }
+        long delta = pending.sumThenReset(); // after taking the waiters, so it includes everything added before them
+        CompletableFuture<Void> written = new CompletableFuture<>();
+        if (delta == 0) {
+            written.complete(null);
+        }
+        else {
+            flushes.increment();
+            apply(delta, written);
+        }
+        written.whenComplete((nothing, error) -> {
+            if (error != null) {
+                pending.add(delta); // not lost: retried after a backoff, or with an earlier flush
+                logger.warn("Failed to add to the counter " + path, error);
+                retryLater();
+            }
+            else if (delta != 0) {
+                failedFlushes.set(0);
+            }
+            for (CompletableFuture<Void> waiter: waiters) {
+                if (error == null) {
+                    waiter.complete(null);
+                }
+                else {
+                    waiter.completeExceptionally(error);
+                }
+            }
+            if (flushRequests.addAndGet(-requestsServed) > 0) {
+                flushNow();
+            }
+        });
+    }
+
+    /**
+     * Schedules another flush after a failed one, with exponential backoff. At most one retry is scheduled at a time.
+     */
+    private void retryLater() {
+        if (curatorFramework.getState() != CuratorFrameworkState.STARTED) {
+            logger.error("Framework closed. " + pending.sum() + " of the additions to the counter " + path +
+                    " were not written");
+            return;
+        }
+        if (!retryScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        int failed = failedFlushes.getAndIncrement();
+        long delay = Math.min(MAX_RETRY_DELAY_MILLIS, INITIAL_RETRY_DELAY_MILLIS << Math.min(failed, 16));
+        ZookeeperExecutors.scheduler().schedule(() -> {
+            retryScheduled.set(false);
+            try {
+                executor.execute(this::requestFlush);
+            } catch (RejectedExecutionException e) {
+                logger.error("Executor rejected a flush. " + pending.sum() + " of the additions to the counter " +
+                        path + " were not written", e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Adds the delta to the home shard with a compare and set, reading the shard first if its version is not known
+     */
+    private void apply(long delta, CompletableFuture<Void> written) {
+        int shard = homeShard;
+        try {
+            if (shardVersions[shard] == UNKNOWN_VERSION) {
+                readAndApply(shard, delta, written);
+                return;
+            }
+            long value = shardValues[shard] + delta;
+            long start = System.nanoTime();
+            curatorFramework.setData()
+                    .withVersion(shardVersions[shard])
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.SET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            shardValues[shard] = value;
+                            shardVersions[shard] = event.getStat().getVersion();
+                            written.complete(null);
+                        }
+                        else if (resultCode == KeeperException.Code.BADVERSION.intValue()) {
+                            conflicts.increment();
+                            shardVersions[shard] = UNKNOWN_VERSION;
+                            moveHome();
+                            apply(delta, written);
+                        }
+                        else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                            shardVersions[shard] = UNKNOWN_VERSION;
+                            apply(delta, written);
+                        }
+                        else {
+                            written.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(shardPaths[shard], BinaryValueCodec.INSTANCE.encode(value));
+        } catch (Exception e) {
+            written.completeExceptionally(e);
+        }
+    }
+
+    private void readAndApply(int shard, long delta, CompletableFuture<Void> written) throws Exception {
+        long start = System.nanoTime();
+        curatorFramework.getData()
+                .inBackground((client, event) -> {
+                    int resultCode = event.getResultCode();
+                    record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                    if (resultCode == KeeperException.Code.OK.intValue()) {
+                        try {
+                            shardValues[shard] = decode(event.getData());
+                            shardVersions[shard] = event.getStat().getVersion();
+                        } catch (RuntimeException e) {
+                            written.completeExceptionally(e);
+                            return;
+                        }
+                        apply(delta, written);
+                    }
+                    else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                        createAndApply(shard, delta, written);
+                    }
+                    else {
+                        written.completeExceptionally(toException(event));
+                    }
+                }, executor)
+                .forPath(shardPaths[shard]);
+    }
+
+    private void createAndApply(int shard, long delta, CompletableFuture<Void> written) {
+        long start = System.nanoTime();
+        try {
+            curatorFramework.create()
+                    .creatingParentsIfNeeded()
+                    .withMode(CreateMode.PERSISTENT)
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.CREATE, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            shardValues[shard] = delta;
+                            shardVersions[shard] = 0;
+                            written.complete(null);
+                        }
+                        else if (resultCode == KeeperException.Code.NODEEXISTS.intValue()) {
+                            apply(delta, written); // created by another node since we looked. Read it and add
+                        }
+                        else {
+                            written.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(shardPaths[shard], BinaryValueCodec.INSTANCE.encode(delta));
+        } catch (Exception e) {
+            written.completeExceptionally(e);
+        }
+    }
+
+    private CompletableFuture<Long> readShard(String shardPath) {
+        CompletableFuture<Long> future = new CompletableFuture<>();
+        long start = System.nanoTime();
+        try {
+            curatorFramework.getData()
+                    .inBackground((client, event) -> {
+                        int resultCode = event.getResultCode();
+                        record(ZookeeperOperation.GET_DATA, start, resultCode == KeeperException.Code.OK.intValue());
+                        if (resultCode == KeeperException.Code.OK.intValue()) {
+                            try {
+                                future.complete(decode(event.getData()));
+                            } catch (RuntimeException e) {
+                                future.completeExceptionally(e);
+                            }
+                        }
+                        else if (resultCode == KeeperException.Code.NONODE.intValue()) {
+                            future.complete(0L); // nothing was added to this shard yet
+                        }
+                        else {
+                            future.completeExceptionally(toException(event));
+                        }
+                    }, executor)
+                    .forPath(shardPath);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    private void moveHome() {
+        if (shardPaths.length > 1) {
+            homeShard = (homeShard + 1 + ThreadLocalRandom.current().nextInt(shardPaths.length - 1)) % shardPaths.length;
+        }
+    }
+
+    private static long decode(byte[] data) {
+        return ((Number) ValueCodecs.decode(data)).longValue();
+    }
+
+    private static KeeperException toException(CuratorEvent event) {
+        return KeeperException.create(KeeperException.Code.get(event.getResultCode()), event.getPath());
+    }
+
+    private void record(ZookeeperOperation operation, long startNanos, boolean success) {
+        metrics.recordOperation(operation, System.nanoTime() - startNanos, success);
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * Encodes shared data values into znode payloads and back.
+ * <p>
+ * The first byte of every payload identifies the codec that wrote it, so each node decodes whatever it finds,
+ * whichever codec it writes with itself. Codecs are registered by that marker byte with ValueCodecs.
+ * </p>
+ */
+public interface ValueCodec {
+    /**
+     * @return the first byte of every payload this codec writes. Must be unique among the registered codecs
+     */
+    byte getMarker();
+
+    /**
+     * @return a short name, for logs
+     */
+    String getName();
+
+    /**
+     * @param value a non null value
+     * @return the payload, starting with the marker byte
+     * @throws IllegalArgumentException if the value is of an unsupported type
+     */
+    byte[] encode(Object value);
+
+    /**
+     * @param payload a payload written by this codec
+     * @return the value
+     * @throws IllegalArgumentException if the payload is not valid
+     */
+    Object decode(byte[] payload);
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * The registry of value codecs, by the marker byte their payloads start with.
+ * JSON ('{') and binary (0x03) are always registered. The markers of the other payload formats (chunk manifests and
+ * compressed payloads) are reserved.
+ * Register any other codec on every node before it reads shared data.
+ */
+public final class ValueCodecs {
+    private static final ValueCodec[] CODECS = new ValueCodec[256];
+
+    static {
+        register(JsonValueCodec.INSTANCE);
+        register(BinaryValueCodec.INSTANCE);
+    }
+
+    private ValueCodecs() {
+        // static utility
+    }
+
+    /**
+     * @param codec a codec
+     * @throws IllegalArgumentException if its marker is reserved or taken by another codec
+     */
+    public static void register(ValueCodec codec) {
+        byte marker = codec.getMarker();
+        if (marker == ChunkedValues.MANIFEST_MARKER || marker == PayloadCompression.DEFLATE_MARKER) {
+            throw new IllegalArgumentException("Marker " + marker + " is reserved");
+        }
+        synchronized (CODECS) {
+            ValueCodec registered = CODECS[marker & 0xff];
+            if (registered != null && registered != codec) {
+                throw new IllegalArgumentException("Marker " + marker + " is taken by the " + registered.getName() + " codec");
+            }
+            CODECS[marker & 0xff] = codec;
+        }
+    }
+
+    /**
+     * @param payload a payload, as written by any registered codec
+     * @return the value
+     * @throws IllegalArgumentException if the payload is empty, not valid, or written by an unknown codec
+     */
+    public static Object decode(byte[] payload) {
+        if (payload == null || payload.length == 0) {
+            throw new IllegalArgumentException("Empty payload");
+        }
+        ValueCodec codec = CODECS[payload[0] & 0xff];
+        if (codec == null) {
+            throw new IllegalArgumentException("No codec registered for payloads starting with " + payload[0]);
+        }
+        return codec.decode(payload);
+    }
+}
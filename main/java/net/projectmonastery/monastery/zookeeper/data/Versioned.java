@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+/**
+ * A value read from Zookeeper along with the znode data version it was read at, for compare-and-set
+ */
+public final class Versioned {
+    /**
+     * The version to expect when the data must not exist yet
+     */
+    public static final int ABSENT_VERSION = -1;
+    public static final Versioned ABSENT = new Versioned(null, ABSENT_VERSION);
+
+    private final Object value;
+    private final int version;
+
+    public Versioned(Object value, int version) {
+        this.value = value;
+        this.version = version;
+    }
+
+    public boolean isPresent() {
+        return version != ABSENT_VERSION;
+    }
+
+    /**
+     * @return the value, or null if absent
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return the znode data version, or ABSENT_VERSION
+     */
+    public int getVersion() {
+        return version;
+    }
+
+    @Override
+    public String toString() {
+        return isPresent() ? value + "@" + version : "absent";
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.apache.curator.framework.state.ConnectionState;
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * InMemoryZookeeperMetrics Tester.
+ */
+public class InMemoryZookeeperMetricsTest {
+    /**
+     * Method: recordOperation()
+     */
+    @Test
+    public void testRecordOperation() throws Exception {
+        InMemoryZookeeperMetrics metrics = new InMemoryZookeeperMetrics();
+        metrics.recordOperation(ZookeeperOperation.CREATE, 1000, true);
+        metrics.recordOperation(ZookeeperOperation.CREATE, 2000, false);
+
+        assertThat(metrics.getHistogram(ZookeeperOperation.CREATE).getSuccessCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(ZookeeperOperation.CREATE).getFailureCount()).isEqualTo(1);
+        assertThat(metrics.getHistogram(ZookeeperOperation.EXISTS).getCount()).isEqualTo(0);
+    }
+
+    /**
+     * Method: recordConnectionStateChange(), through a ConnectionStateTimer
+     */
+    @Test
+    public void testConnectionStateTransitions() throws Exception {
+        InMemoryZookeeperMetrics metrics = new InMemoryZookeeperMetrics();
+        ConnectionStateTimer timer = new ConnectionStateTimer(metrics, null);
+        timer.stateChanged(null, ConnectionState.CONNECTED);
+        timer.stateChanged(null, ConnectionState.SUSPENDED);
+        Thread.sleep(5);
+        timer.stateChanged(null, ConnectionState.RECONNECTED);
+
+        assertThat(metrics.getTransitionHistogram(null, ConnectionState.CONNECTED).getCount()).isEqualTo(1);
+        assertThat(metrics.getTransitionHistogram(ConnectionState.CONNECTED, ConnectionState.SUSPENDED).getCount()).isEqualTo(1);
+        LatencyHistogram suspended = metrics.getTransitionHistogram(ConnectionState.SUSPENDED, ConnectionState.RECONNECTED);
+        assertThat(suspended.getCount()).isEqualTo(1);
+        assertThat(suspended.getMaxNanos()).isGreaterThanOrEqualTo(5_000_000);
+        assertThat(metrics.getTransitionHistogram(ConnectionState.SUSPENDED, ConnectionState.LOST).getCount()).isEqualTo(0);
+    }
+}
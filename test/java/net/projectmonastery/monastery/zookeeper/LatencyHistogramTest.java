@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * LatencyHistogram Tester.
+ */
+public class LatencyHistogramTest {
+    /**
+     * Method: bucketOf(), upperBoundOf() - every value falls in a bucket whose bounds contain it, within 1/16
+     */
+    @Test
+    public void testBuckets() throws Exception {
+        long[] values = {0, 1, 15, 16, 17, 31, 32, 33, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE};
+        for (long value: values) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long upperBound = LatencyHistogram.upperBoundOf(bucket);
+            assertThat(upperBound).isGreaterThanOrEqualTo(value);
+            assertThat((double) (upperBound - value)).isLessThanOrEqualTo(value / 16.0);
+            if (bucket > 0) {
+                assertThat(LatencyHistogram.upperBoundOf(bucket - 1)).isLessThan(value);
+            }
+        }
+    }
+
+    /**
+     * Method: record(), getPercentileNanos()
+     */
+    @Test
+    public void testPercentiles() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertThat(histogram.getPercentileNanos(99)).isEqualTo(0);
+        for (long i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000, i % 100 != 0);
+        }
+        assertThat(histogram.getCount()).isEqualTo(1000);
+        assertThat(histogram.getSuccessCount()).isEqualTo(990);
+        assertThat(histogram.getFailureCount()).isEqualTo(10);
+        assertThat(histogram.getMaxNanos()).isEqualTo(1000_000);
+        assertThat(histogram.getMeanNanos()).isEqualTo(500_500.0);
+        assertWithin(histogram.getPercentileNanos(50), 500_000);
+        assertWithin(histogram.getPercentileNanos(99), 990_000);
+        assertThat(histogram.getPercentileNanos(100)).isEqualTo(1000_000);
+    }
+
+    private static void assertWithin(long actual, long expected) {
+        assertThat(actual).isGreaterThanOrEqualTo(expected);
+        assertThat((double) actual).isLessThanOrEqualTo(expected * (1 + 1.0 / 16));
+    }
+}
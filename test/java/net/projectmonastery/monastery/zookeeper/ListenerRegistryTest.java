@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ListenerRegistry Tester.
+ */
+public class ListenerRegistryTest {
+    /**
+     * Method: dispatch() - a failing listener must not affect the others
+     */
+    @Test
+    public void testFailingListenerIsIsolated() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(null);
+        List<String> received = new CopyOnWriteArrayList<>();
+        registry.add(event -> { throw new IllegalStateException("failing on purpose"); });
+        registry.add(received::add);
+
+        registry.dispatch("event").get(1, TimeUnit.SECONDS);
+        assertThat(received).containsExactly("event");
+    }
+
+    /**
+     * Method: dispatch() - a hung listener is reported and no longer waited for after the timeout
+     */
+    @Test
+    public void testSlowListenerTimesOut() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(null);
+        registry.setTimeoutMillis(100);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> received = new CopyOnWriteArrayList<>();
+        registry.add(event -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        registry.add(received::add);
+
+        try {
+            CompletableFuture<Void> done = registry.dispatch("event");
+            done.get(2, TimeUnit.SECONDS);
+            assertThat(received).containsExactly("event");
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    /**
+     * Method: add(), remove(), dispatch()
+     */
+    @Test
+    public void testRemove() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(Runnable::run);
+        List<String> received = new CopyOnWriteArrayList<>();
+        Consumer<String> listener = received::add;
+        registry.add(listener);
+        assertThat(registry.size()).isEqualTo(1);
+        assertThat(registry.remove(listener)).isTrue();
+
+        assertThat(registry.dispatch("event").isDone()).isTrue();
+        assertThat(received).isEmpty();
+    }
+
+    /**
+     * Method: dispatch() - listeners added and removed during a dispatch do not break it
+     */
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        ListenerRegistry<String> registry = new ListenerRegistry<>(null);
+        Consumer<String> permanent = event -> { };
+        registry.add(permanent);
+        AtomicBoolean running = new AtomicBoolean(true);
+        Thread churn = new Thread(() -> {
+            while (running.get()) {
+                Consumer<String> listener = event -> { };
+                registry.add(listener);
+                registry.remove(listener);
+            }
+        });
+        churn.start();
+        try {
+            for (int i = 0; i < 10_000; i++) {
+                registry.dispatch("event").get(1, TimeUnit.SECONDS);
+            }
+        } finally {
+            running.set(false);
+            churn.join();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.KillSession;
+import org.apache.curator.test.TestingServer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * NodeSupervisor Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class NodeSupervisorTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private InMemoryZookeeperMetrics metrics;
+    private ZookeeperNode node;
+    private NodeSupervisor supervisor;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(60_000);
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+        server.start();
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.builder()
+                .connectString(server.getConnectString())
+                .sessionTimeoutMs(10_000)
+                .connectionTimeoutMs(2000)
+                .retryPolicy(new RetryOneTime(100))
+                .build();
+        metrics = new InMemoryZookeeperMetrics();
+        node = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withMetrics(metrics)
+                .build();
+        node.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS);
+        supervisor = new NodeSupervisor(node)
+                .withTickMillis(100)
+                .withBackoff(50, 500)
+                .start();
+    }
+
+    @After
+    public void after() throws Exception {
+        supervisor.close();
+        cf.close();
+    }
+
+    /**
+     * When the session expires the node's znode is gone, so the node must be re-announced under a new ID
+     */
+    @Test
+    public void testReannounceAfterSessionExpiry() throws Exception {
+        String id = node.getId().get();
+        List<NodeState> states = new CopyOnWriteArrayList<>();
+        supervisor.addStateListener(states::add);
+
+        KillSession.kill(cf.getZookeeperClient().getZooKeeper(), server.getConnectString());
+
+        awaitTrue(() -> metrics.getRecoveryHistogram().getCount() == 1 && states.size() == 2);
+        assertThat(states).containsExactly(NodeState.DISCONNECTED, NodeState.JOINED);
+        assertThat(node.getState()).isEqualTo(NodeState.JOINED);
+        assertThat(node.getId().get()).isNotEqualTo(id);
+        assertThat(node.getRegistry().nodeExists(node.getId().get()).get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(metrics.getLossDetectionHistogram().getCount()).isEqualTo(1);
+        assertThat(supervisor.isRecovering()).isFalse();
+    }
+
+    /**
+     * A short outage that the session survives keeps the node's znode, so the node rejoins under the same ID
+     */
+    @Test
+    public void testRejoinAfterConnectionLoss() throws Exception {
+        String id = node.getId().get();
+
+        server.restart();
+
+        awaitTrue(() -> metrics.getRecoveryHistogram().getCount() == 1);
+        assertThat(node.getState()).isEqualTo(NodeState.JOINED);
+        assertThat(node.getId().get()).isEqualTo(id);
+        assertThat(metrics.getLossDetectionHistogram().getCount()).isEqualTo(1);
+    }
+
+    /**
+     * Right after a node joins, the membership cache does not list it yet (here, for the length of its coalescing
+     * window). Ticking in that window must not mistake the node for a lost one, nor register it a second time.
+     */
+    @Test
+    public void testTickRightAfterAnnounce() throws Exception {
+        String rootPath = "/supervisor-" + System.nanoTime();
+        ZookeeperNode cachedNode = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withRootPath(rootPath)
+                .withMembershipCache()
+                .withMetrics(metrics)
+                .build();
+        cachedNode.getRegistry().getMembershipCache().get().withCoalescingWindowMillis(1000).start()
+                .get(10, TimeUnit.SECONDS);
+        cachedNode.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS);
+        String id = cachedNode.getId().get();
+        try (NodeSupervisor cachedSupervisor = new NodeSupervisor(cachedNode).withTickMillis(20).start()) {
+            Thread.sleep(500); // many ticks, all within the coalescing window
+
+            assertThat(cachedSupervisor.isRecovering()).isFalse();
+            assertThat(cachedNode.getState()).isEqualTo(NodeState.JOINED);
+            assertThat(cachedNode.getId().get()).isEqualTo(id);
+            assertThat(metrics.getLossDetectionHistogram().getCount()).isEqualTo(0);
+            assertThat(cf.getChildren().forPath(rootPath + "/nodes")).containsOnly(id);
+        }
+    }
+
+    /**
+     * A tick the executor rejects (say, while a shared pool shuts down) is skipped, and supervision goes on
+     */
+    @Test
+    public void testRejectedTick() throws Exception {
+        AtomicBoolean rejecting = new AtomicBoolean();
+        AtomicInteger accepted = new AtomicInteger();
+        Executor pool = ZookeeperExecutors.defaultExecutor();
+        Executor executor = task -> {
+            if (rejecting.get()) {
+                throw new RejectedExecutionException("shutting down");
+            }
+            accepted.incrementAndGet();
+            pool.execute(task);
+        };
+        ZookeeperNode rejectingNode = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withExecutor(executor)
+                .build();
+        rejectingNode.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS);
+        try (NodeSupervisor rejectingSupervisor = new NodeSupervisor(rejectingNode).withTickMillis(20).start()) {
+            rejecting.set(true);
+            Thread.sleep(200);
+            int before = accepted.get();
+            rejecting.set(false);
+
+            awaitTrue(() -> accepted.get() >= before + 3); // ticking again
+            assertThat(rejectingSupervisor.isRecovering()).isFalse();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresAnnouncement() throws Exception {
+        new NodeSupervisor(new ZookeeperNode(cf, server.getConnectString(), new ArrayList<>(), "/supervisor/none"));
+    }
+
+    /**
+     * Method: backoffMillis() - grows exponentially from the initial delay, is capped, and keeps at least half
+     */
+    @Test
+    public void testBackoff() throws Exception {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            long ceiling = Math.min(500, 50L << Math.min(attempt, 10));
+            long delay = supervisor.backoffMillis(attempt);
+            assertThat(delay).isGreaterThanOrEqualTo(ceiling / 2);
+            assertThat(delay).isLessThanOrEqualTo(ceiling);
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper;
+
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperExecutors Tester.
+ */
+public class ZookeeperExecutorsTest {
+    /**
+     * Method: defaultExecutor() - tasks must not run on the common pool, and the pool threads must not keep the JVM alive
+     */
+    @Test
+    public void testDefaultExecutor() throws Exception {
+        Thread thread = CompletableFuture.supplyAsync(Thread::currentThread, ZookeeperExecutors.defaultExecutor())
+                .get(1, TimeUnit.SECONDS);
+        assertThat(thread.isDaemon()).isTrue();
+        assertThat(thread.getName()).startsWith("monastery-zk-io");
+        assertThat(ForkJoinPool.commonPool().equals(ZookeeperExecutors.defaultExecutor())).isFalse();
+    }
+
+    /**
+     * Method: newIoPool(int)
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void testNewIoPoolRejectsZeroThreads() throws Exception {
+        ZookeeperExecutors.newIoPool(0);
+    }
+
+    /**
+     * Method: newVirtualThreadPerTaskExecutor()
+     */
+    @Test
+    public void testVirtualThreads() throws Exception {
+        if (!ZookeeperExecutors.isVirtualThreadSupported()) {
+            try {
+                ZookeeperExecutors.newVirtualThreadPerTaskExecutor();
+                fail("expected an UnsupportedOperationException");
+            } catch (UnsupportedOperationException e) {
+                return; // expected on older JVMs
+            }
+        }
+        ExecutorService executor = ZookeeperExecutors.newVirtualThreadPerTaskExecutor();
+        try {
+            Boolean ran = CompletableFuture.supplyAsync(() -> true, executor).get(1, TimeUnit.SECONDS);
+            assertThat(ran).isTrue();
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -18,16 +18,25 @@
 package net.projectmonastery.monastery.zookeeper;
 
 import net.projectmonastery.monastery.api.core.Capability;
+import net.projectmonastery.monastery.api.core.Node;
 import net.projectmonastery.monastery.cando.NodeAnnouncement;
+import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.framework.state.ConnectionState;
+import org.apache.curator.utils.ZookeeperFactory;
+import org.apache.zookeeper.ClientCnxn;
+import org.apache.zookeeper.ZooKeeper;
 import org.junit.Test;
 import org.junit.Before; 
 import org.junit.After;
 import org.junit.BeforeClass;
 import org.junit.AfterClass;
 import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
 
 import static org.fest.assertions.api.Assertions.*;
 import org.apache.curator.test.TestingServer;
@@ -35,7 +44,15 @@ import org.junit.experimental.categories.Category;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /** 
@@ -52,6 +69,9 @@ public class ZookeeperNodeBuilderTest implements IntegrationTestClassMarker {
     private static TestingServer server;
     private static String connectionString;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     /**
      * Only need one test server instance (expensive to start, and no state between tests in this class)
      * @throws Exception
@@ -289,6 +309,343 @@ public class ZookeeperNodeBuilderTest implements IntegrationTestClassMarker {
         ZookeeperNode node = (ZookeeperNode) builder.build();
     }
 
+    /**
+     * The builder should pass a caller-supplied executor to the node
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldUseGivenExecutor() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        cf.start();
+        cf.blockUntilConnected();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder().
+                    withCuratorFramework(cf).
+                    withExecutor(executor);
+            ZookeeperNode node = (ZookeeperNode) builder.build();
+            assertThat(node.getExecutor()).isSameAs(executor);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A pool the builder made is shut down if replaced before anything was built with it, and left running once a
+     * node uses it
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldShutDownReplacedIoPool() throws Exception {
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder().withIoThreads(2);
+        ExecutorService replaced = (ExecutorService) builder.getExecutor();
+        builder.withIoThreads(2);
+        assertThat(replaced.isShutdown()).isTrue();
+
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            ExecutorService used = (ExecutorService) builder.getExecutor();
+            ZookeeperNode node = (ZookeeperNode) builder.withCuratorFramework(cf).build();
+            assertThat(node.getExecutor()).isSameAs(used);
+            builder.withExecutor(executor);
+            assertThat(used.isShutdown()).isFalse();
+            used.shutdown();
+        }
+        finally {
+            executor.shutdown();
+            cf.close();
+        }
+    }
+
+    /**
+     * Metrics given to the builder should measure the initial connection and the operations of the built node
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldRecordMetrics() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        InMemoryZookeeperMetrics metrics = new InMemoryZookeeperMetrics();
+        ZookeeperNode node = (ZookeeperNode) new ZookeeperNodeBuilder().
+                withCuratorFramework(cf).
+                withMetrics(metrics).
+                build();
+        assertThat(node.getRegistry().getMetrics()).isSameAs(metrics);
+        while (metrics.getTransitionHistogram(null, ConnectionState.CONNECTED).getCount() == 0) {
+            Thread.sleep(10); // connection state events are delivered asynchronously. The test timeout limits the wait
+        }
+        assertThat(metrics.getTransitionHistogram(null, ConnectionState.CONNECTED).getCount()).isEqualTo(1);
+        node.getRegistry().listNodes().get(10, TimeUnit.SECONDS);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount()).isEqualTo(1);
+    }
+
+    /**
+     * Without an explicit executor, the builder should use the default Zookeeper I/O pool (not the common pool)
+     * @throws Exception
+     */
+    @Test
+    public void shouldHaveDefaultExecutor() throws Exception {
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder();
+        assertThat(builder.getExecutor()).isSameAs(ZookeeperExecutors.defaultExecutor());
+    }
+
+    /**
+     * buildAsync() should connect without blocking the caller, and complete with a bound node
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldBuildAsync() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        CompletableFuture<Node<String>> future = new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .buildAsync();
+        ZookeeperNode node = (ZookeeperNode) future.get(10, TimeUnit.SECONDS);
+        assertThat(cf.getZookeeperClient().isConnected()).isTrue();
+        NodeAnnouncement<String> announcement = node.getCapability(NodeAnnouncement.class).get();
+        assertThat(announcement.getBoundNode().get()).isSameAs(node);
+        assertThat(announcement.announce().get(10, TimeUnit.SECONDS).getId().isPresent()).isTrue();
+    }
+
+    /**
+     * buildAsync() should fail the future, rather than throw, when the connection times out
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldFailBuildAsyncOnConnectionTimeout() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient("127.0.0.1:1", new RetryOneTime(MS_BETWEEN_RETRY));
+        try {
+            CompletableFuture<Node<String>> future = new ZookeeperNodeBuilder()
+                    .withCuratorFramework(cf)
+                    .withConnectionTimeoutMillis(200)
+                    .buildAsync();
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected the build to time out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage()).contains("Failed to connect");
+        }
+        finally {
+            cf.close();
+        }
+    }
+
+    /**
+     * buildAsync() should close a framework it made itself when the connection times out
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldCloseOwnedFrameworkOnAsyncFailure() throws Exception {
+        List<ZooKeeper> clients = new CopyOnWriteArrayList<>();
+        CuratorFrameworkFactory.Builder frameworkBuilder = CuratorFrameworkFactory.builder()
+                .connectString("127.0.0.1:1")
+                .retryPolicy(new RetryOneTime(MS_BETWEEN_RETRY))
+                .zookeeperFactory((connectString, sessionTimeout, watcher, canBeReadOnly) -> {
+                    ZooKeeper client = new ZooKeeper(connectString, sessionTimeout, watcher, canBeReadOnly);
+                    clients.add(client);
+                    return client;
+                });
+        try {
+            new ZookeeperNodeBuilder()
+                    .withCuratorFrameworkBuilder(frameworkBuilder)
+                    .withConnectionTimeoutMillis(200)
+                    .buildAsync()
+                    .get(10, TimeUnit.SECONDS);
+            fail("expected the build to time out");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage()).contains("Failed to connect");
+        }
+        assertThat(clients).isNotEmpty();
+        for (ZooKeeper client: clients) {
+            assertThat(client.getState().isAlive()).isFalse();
+        }
+    }
+
+    /**
+     * buildAsync() should bind independent capabilities concurrently. Each of the two capabilities here waits for the
+     * other in bind(), so the build can only complete if they are bound in parallel.
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldBindIndependentCapabilitiesInParallel() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        RendezvousCapability first = new RendezvousCapability(barrier);
+        RendezvousCapability second = new RendezvousCapability(barrier);
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder().withCuratorFramework(cf);
+        builder.add(first, second);
+        builder.buildAsync().get(10, TimeUnit.SECONDS);
+        assertThat(first.isReady()).isTrue();
+        assertThat(second.isReady()).isTrue();
+    }
+
+    /**
+     * With session resume, a restarted process that reattaches to its session before it expires keeps its node ID
+     * and does not register again
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldResumeSession() throws Exception {
+        Path sessionFile = temporaryFolder.getRoot().toPath().resolve("session.properties");
+        ZookeeperNode first = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(resumableFrameworkBuilder())
+                .withRootPath("/resume")
+                .withSessionResume(sessionFile)
+                .build();
+        String id = first.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS)
+                .getId().get();
+        assertThat(new ZookeeperSessionStore(sessionFile).load().get().getNodeId()).isEqualTo(id);
+        crash(first.getCuratorFramework());
+
+        ZookeeperNode second = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(resumableFrameworkBuilder())
+                .withRootPath("/resume")
+                .withSessionResume(sessionFile)
+                .build();
+        try {
+            assertThat(second.getState()).isEqualTo(NodeState.JOINED);
+            assertThat(second.getId().get()).isEqualTo(id);
+            NodeAnnouncement<String> announcement = second.getCapability(ZookeeperNodeAnnouncement.class).get();
+            assertThat(announcement.announce().get(10, TimeUnit.SECONDS).getId().get()).isEqualTo(id);
+            assertThat(second.getRegistry().listNodes().get(10, TimeUnit.SECONDS)).containsExactly(id);
+        }
+        finally {
+            second.getCuratorFramework().close();
+            first.getCuratorFramework().close();
+        }
+    }
+
+    /**
+     * If the saved session is gone, the node is announced anew
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldAnnounceAnewWithoutSavedSession() throws Exception {
+        Path sessionFile = temporaryFolder.getRoot().toPath().resolve("expired.properties");
+        new ZookeeperSessionStore(sessionFile).save(new ZookeeperSessionStore.SavedSession(
+                0x1234567L, new byte[16], "node-0000000042", "/resume/expired"));
+        ZookeeperNode node = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(resumableFrameworkBuilder())
+                .withRootPath("/resume/expired")
+                .withSessionResume(sessionFile)
+                .build();
+        try {
+            assertThat(node.getState()).isEqualTo(NodeState.DISCONNECTED);
+            String id = node.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS)
+                    .getId().get();
+            assertThat(id).isNotEqualTo("node-0000000042");
+            assertThat(new ZookeeperSessionStore(sessionFile).load().get().getNodeId()).isEqualTo(id);
+        }
+        finally {
+            node.getCuratorFramework().close();
+        }
+    }
+
+    /**
+     * The framework builder belongs to the caller. Resuming a session must not leave it creating clients that try to
+     * resume the same session again.
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldNotChangeFrameworkBuilderOnResume() throws Exception {
+        Path sessionFile = temporaryFolder.getRoot().toPath().resolve("unchanged.properties");
+        new ZookeeperSessionStore(sessionFile).save(new ZookeeperSessionStore.SavedSession(
+                0x1234567L, new byte[16], "node-0000000042", "/resume/unchanged"));
+        CuratorFrameworkFactory.Builder frameworkBuilder = resumableFrameworkBuilder();
+        ZookeeperFactory factory = frameworkBuilder.getZookeeperFactory();
+        ZookeeperNode node = (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(frameworkBuilder)
+                .withRootPath("/resume/unchanged")
+                .withSessionResume(sessionFile)
+                .build();
+        try {
+            assertThat(frameworkBuilder.getZookeeperFactory()).isSameAs(factory);
+        }
+        finally {
+            node.getCuratorFramework().close();
+        }
+    }
+
+    /**
+     * Without an announcement capability there is nothing to resume, and building still succeeds
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void shouldBuildWithSessionResumeWithoutAnnouncement() throws Exception {
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(resumableFrameworkBuilder())
+                .withRootPath("/resume/unannounced")
+                .withSessionResume(temporaryFolder.getRoot().toPath().resolve("unannounced.properties"));
+        Field capabilities = ZookeeperNodeBuilder.class.getDeclaredField("capabilities");
+        capabilities.setAccessible(true);
+        ((List<?>) capabilities.get(builder)).clear(); // the builder always adds one otherwise
+        ZookeeperNode node = (ZookeeperNode) builder.build();
+        try {
+            assertThat(node.getState()).isEqualTo(NodeState.DISCONNECTED);
+            ZookeeperNode asyncNode = (ZookeeperNode) builder.buildAsync().get(10, TimeUnit.SECONDS);
+            asyncNode.getCuratorFramework().close();
+        }
+        finally {
+            node.getCuratorFramework().close();
+        }
+    }
+
+    /**
+     * Session resume needs to create the Zookeeper client, so it cannot work with a ready-made framework
+     * @throws Exception
+     */
+    @Test(expected = Exception.class)
+    public void shouldRejectSessionResumeWithGivenFramework() throws Exception {
+        CuratorFramework cf = CuratorFrameworkFactory.newClient(connectionString, new RetryOneTime(MS_BETWEEN_RETRY));
+        new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withSessionResume(temporaryFolder.getRoot().toPath().resolve("unused.properties"))
+                .build();
+    }
+
+    private CuratorFrameworkFactory.Builder resumableFrameworkBuilder() {
+        return CuratorFrameworkFactory.builder()
+                .connectString(connectionString)
+                .sessionTimeoutMs(30_000)
+                .retryPolicy(new RetryOneTime(MS_BETWEEN_RETRY));
+    }
+
+    /**
+     * Drops the framework's connection without closing its session, as a crashed process would
+     */
+    private static void crash(CuratorFramework cf) throws Exception {
+        ZooKeeper zooKeeper = cf.getZookeeperClient().getZooKeeper();
+        Field connection = ZooKeeper.class.getDeclaredField("cnxn");
+        connection.setAccessible(true);
+        ((ClientCnxn) connection.get(zooKeeper)).disconnect();
+    }
+
+    /**
+     * An independent capability that only binds once another one is binding at the same time
+     */
+    public static class RendezvousCapability implements IndependentCapability {
+        private final CyclicBarrier barrier;
+        private volatile boolean bound = false;
+
+        public RendezvousCapability(CyclicBarrier barrier) {
+            this.barrier = barrier;
+        }
+
+        @Override
+        public void bind(Node<?> context) {
+            try {
+                barrier.await(5, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                throw new IllegalStateException("the other capability was not bound concurrently", e);
+            }
+            bound = true;
+        }
+
+        @Override
+        public boolean isReady() {
+            return bound;
+        }
+    }
+
     /**
      * This is not strictly a mock, but good enough for the purposes of the tests here
      */
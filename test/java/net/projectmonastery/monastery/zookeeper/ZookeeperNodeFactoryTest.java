@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import net.projectmonastery.monastery.cando.NodeAnnouncement;
+import net.projectmonastery.monastery.cando.NodeState;
+import net.projectmonastery.monastery.zookeeper.capabilities.MembershipEvent;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperMembershipChanges;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperNodeFactory Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperNodeFactoryTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000);
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+        server.start();
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    private CuratorFrameworkFactory.Builder frameworkBuilder() {
+        return CuratorFrameworkFactory.builder()
+                .connectString(server.getConnectString())
+                .retryPolicy(new RetryOneTime(100));
+    }
+
+    /**
+     * Method: newNode() - all nodes share the framework and the registry
+     */
+    @Test
+    public void testNewNodesShareResources() throws Exception {
+        ZookeeperNodeFactory factory = new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(frameworkBuilder())
+                .withRootPath("/factory/shared")
+                .buildFactory();
+        ZookeeperNode node1 = factory.newNode();
+        ZookeeperNode node2 = factory.newNode();
+        assertThat(node1.getCuratorFramework()).isSameAs(factory.getCuratorFramework());
+        assertThat(node2.getCuratorFramework()).isSameAs(factory.getCuratorFramework());
+        assertThat(node1.getRegistry()).isSameAs(factory.getRegistry());
+        assertThat(node2.getRegistry()).isSameAs(factory.getRegistry());
+        assertThat(node1.getCapability(ZookeeperNodeAnnouncement.class).get())
+                .isNotSameAs(node2.getCapability(ZookeeperNodeAnnouncement.class).get());
+        assertThat(factory.getNodeCount()).isEqualTo(2);
+        factory.close();
+        factory.release(node1).get(10, TimeUnit.SECONDS);
+        factory.release(node2).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method: release(), close() - the owned framework closes only after the factory is closed and the last node
+     * released, and released nodes leave the cluster right away
+     */
+    @Test
+    public void testReferenceCountedShutdown() throws Exception {
+        ZookeeperNodeFactory factory = new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(frameworkBuilder())
+                .withRootPath("/factory/refcount")
+                .buildFactory();
+        ZookeeperNode node1 = factory.newNode();
+        ZookeeperNode node2 = factory.newNode();
+        List<String> ids = factory.announceAll(Arrays.asList(node1, node2)).get(10, TimeUnit.SECONDS);
+
+        factory.release(node1).get(10, TimeUnit.SECONDS);
+        assertThat(node1.getState()).isEqualTo(NodeState.DISCONNECTED);
+        assertThat(factory.getRegistry().nodeExists(ids.get(0)).get(10, TimeUnit.SECONDS)).isFalse();
+        assertThat(factory.getRegistry().nodeExists(ids.get(1)).get(10, TimeUnit.SECONDS)).isTrue();
+
+        factory.close();
+        assertThat(factory.isTerminated()).isFalse();
+        assertThat(factory.getCuratorFramework().getState()).isEqualTo(CuratorFrameworkState.STARTED);
+        try {
+            factory.newNode();
+            fail("expected the closed factory to refuse new nodes");
+        } catch (Exception e) {
+            // expected
+        }
+
+        factory.release(node2).get(10, TimeUnit.SECONDS);
+        factory.release(node2).get(10, TimeUnit.SECONDS); // no effect
+        assertThat(factory.isTerminated()).isTrue();
+        assertThat(factory.getCuratorFramework().getState()).isEqualTo(CuratorFrameworkState.STOPPED);
+    }
+
+    /**
+     * Method: release() - the capabilities of a released node stop receiving membership events from the shared cache
+     */
+    @Test
+    public void testReleaseUnsubscribesCapabilities() throws Exception {
+        ZookeeperNodeFactory factory = new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(frameworkBuilder())
+                .withRootPath("/factory/unsubscribe")
+                .buildFactory();
+        ZookeeperMembershipChanges releasedChanges = new ZookeeperMembershipChanges();
+        ZookeeperMembershipChanges liveChanges = new ZookeeperMembershipChanges();
+        ZookeeperNode released = factory.newNode(releasedChanges);
+        ZookeeperNode live = factory.newNode(liveChanges);
+        List<MembershipEvent> releasedEvents = new CopyOnWriteArrayList<>();
+        List<MembershipEvent> liveEvents = new CopyOnWriteArrayList<>();
+        releasedChanges.addMembershipListener(releasedEvents::add);
+        liveChanges.addMembershipListener(liveEvents::add);
+        factory.getRegistry().getMembershipCache().get().start().get(10, TimeUnit.SECONDS);
+
+        factory.release(released).get(10, TimeUnit.SECONDS);
+        assertThat(releasedChanges.isReady()).isFalse();
+        live.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS);
+        String id = live.getId().get();
+        while (liveEvents.isEmpty()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+        assertThat(liveEvents.get(0).getNodeId()).isEqualTo(id);
+        assertThat(releasedEvents).isEmpty(); // both listeners are called in the same delivery
+
+        factory.close();
+        factory.release(live).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Method: close() - a framework given by the application is not closed by the factory
+     */
+    @Test
+    public void testGivenFrameworkIsNotClosed() throws Exception {
+        CuratorFramework cf = frameworkBuilder().build();
+        try {
+            ZookeeperNodeFactory factory = new ZookeeperNodeBuilder()
+                    .withCuratorFramework(cf)
+                    .withRootPath("/factory/given")
+                    .buildFactory();
+            ZookeeperNode node = factory.newNode();
+            NodeAnnouncement<String> announcement = node.getCapability(ZookeeperNodeAnnouncement.class).get();
+            announcement.announce().get(10, TimeUnit.SECONDS);
+            factory.close();
+            factory.release(node).get(10, TimeUnit.SECONDS);
+            assertThat(factory.isTerminated()).isTrue();
+            assertThat(cf.getState()).isEqualTo(CuratorFrameworkState.STARTED);
+        }
+        finally {
+            cf.close();
+        }
+    }
+
+    /**
+     * Method: close() - a pool made by the builder belongs to the factory, and is shut down on termination
+     */
+    @Test
+    public void testOwnedPoolIsShutDown() throws Exception {
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder()
+                .withCuratorFrameworkBuilder(frameworkBuilder())
+                .withRootPath("/factory/pool")
+                .withIoThreads(2);
+        ExecutorService pool = (ExecutorService) builder.getExecutor();
+        ZookeeperNodeFactory factory = builder.buildFactory();
+        ZookeeperNode node = factory.newNode();
+        assertThat(node.getExecutor()).isSameAs(pool);
+        node.getCapability(ZookeeperNodeAnnouncement.class).get().announce().get(10, TimeUnit.SECONDS);
+        factory.close();
+        assertThat(pool.isShutdown()).isFalse();
+        factory.release(node).get(10, TimeUnit.SECONDS);
+        assertThat(factory.isTerminated()).isTrue();
+        assertThat(pool.isShutdown()).isTrue();
+    }
+
+    /**
+     * Method: buildFactory() - capabilities are per node, so they may not be added to the builder
+     */
+    @Test(expected = Exception.class)
+    public void testBuildFactoryRejectsCapabilities() throws Exception {
+        ZookeeperNodeBuilder builder = new ZookeeperNodeBuilder().withCuratorFrameworkBuilder(frameworkBuilder());
+        builder.add(new ZookeeperNodeAnnouncement());
+        builder.buildFactory();
+    }
+}
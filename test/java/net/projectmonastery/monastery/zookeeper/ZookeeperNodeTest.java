@@ -20,6 +20,7 @@ package net.projectmonastery.monastery.zookeeper;
 import net.projectmonastery.monastery.api.core.Capability;
 import net.projectmonastery.monastery.api.core.Node;
 import net.projectmonastery.monastery.cando.NodeAnnouncement;
+import net.projectmonastery.monastery.zookeeper.capabilities.ZookeeperNodeAnnouncement;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.RetryOneTime;
@@ -119,6 +120,32 @@ public class ZookeeperNodeTest implements IntegrationTestClassMarker {
         assertThat(result).isNotNull();
     } 
 
+    /**
+     *
+     * Method: getCapability(Class<T> aClass) - hits are answered with the same completed future
+     *
+     */
+    @Test
+    public void testGetCapabilityIsCached() throws Exception {
+        CompletableFuture<ZookeeperNodeAnnouncement> byClass = node.getCapability(ZookeeperNodeAnnouncement.class);
+        CompletableFuture<Capability> byInterface = node.getCapability(Capability.class);
+        assertThat(byClass.isDone()).isTrue();
+        assertThat(node.getCapability(ZookeeperNodeAnnouncement.class)).isSameAs(byClass);
+        assertThat(byInterface.get()).isNotNull();
+    }
+
+    /**
+     *
+     * Method: getCapability(Class<T> aClass) - misses fail, and are cached too
+     *
+     */
+    @Test
+    public void testGetMissingCapability() throws Exception {
+        CompletableFuture<MissingCapability> future = node.getCapability(MissingCapability.class);
+        assertThat(future.isCompletedExceptionally()).isTrue();
+        assertThat(node.getCapability(MissingCapability.class)).isSameAs(future);
+    }
+
     /** 
      * 
      * Method: getCapabilities() 
@@ -168,6 +195,7 @@ public class ZookeeperNodeTest implements IntegrationTestClassMarker {
         node.prependCapability(nullCapability);
         Capability firstCapability = node.getCapabilities().get(0);
         assertThat(firstCapability).isEqualTo(nullCapability);
+        assertThat(node.getCapability(Capability.class).get()).isSameAs(nullCapability); // the index follows
     }
 
     @Test
@@ -208,4 +236,10 @@ public class ZookeeperNodeTest implements IntegrationTestClassMarker {
         verify(cap1, times(1)).onAllCapabilitiesBound();
         verify(cap1, times(1)).isReady();
     }
+
+    /**
+     * A capability that no node has
+     */
+    public interface MissingCapability extends Capability {
+    }
 }
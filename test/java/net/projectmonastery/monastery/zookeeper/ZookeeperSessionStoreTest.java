@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Optional;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperSessionStore Tester.
+ */
+public class ZookeeperSessionStoreTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /**
+     * Method: save(), load()
+     */
+    @Test
+    public void testSaveAndLoad() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("session.properties");
+        ZookeeperSessionStore store = new ZookeeperSessionStore(file);
+        assertThat(store.load().isPresent()).isFalse();
+
+        byte[] password = {1, 2, 3, -4};
+        store.save(new ZookeeperSessionStore.SavedSession(0xfedcba9876543210L, password, "node-0000000007", "/root"));
+        Optional<ZookeeperSessionStore.SavedSession> loaded = store.load();
+        assertThat(loaded.isPresent()).isTrue();
+        assertThat(loaded.get().getSessionId()).isEqualTo(0xfedcba9876543210L);
+        assertThat(loaded.get().getPassword()).isEqualTo(password);
+        assertThat(loaded.get().getNodeId()).isEqualTo("node-0000000007");
+        assertThat(loaded.get().getRootPath()).isEqualTo("/root");
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            assertThat(PosixFilePermissions.toString(Files.getPosixFilePermissions(file))).isEqualTo("rw-------");
+        }
+
+        store.clear();
+        assertThat(store.load().isPresent()).isFalse();
+    }
+
+    /**
+     * Method: load() - a corrupt file is ignored rather than failing the build
+     */
+    @Test
+    public void testLoadCorruptFile() throws Exception {
+        Path file = temporaryFolder.getRoot().toPath().resolve("corrupt.properties");
+        Files.write(file, "sessionId=not-a-number\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertThat(new ZookeeperSessionStore(file).load().isPresent()).isFalse();
+    }
+}
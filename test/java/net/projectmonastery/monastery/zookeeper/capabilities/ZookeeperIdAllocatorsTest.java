@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.ValueCodecs;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperIdAllocators Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperIdAllocatorsTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        cf.close();
+    }
+
+    /**
+     * Each address is a sequence of its own, kept at its hashed data path
+     */
+    @Test
+    public void testNextId() throws Exception {
+        ZookeeperIdAllocators allocators = new ZookeeperIdAllocators().withBlockSizeLimits(10, 10);
+        new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withRootPath("/allocating")
+                .add(allocators)
+                .build();
+        DataAddress orders = DataAddress.of("app", "orders");
+        DataAddress invoices = DataAddress.of("app", "invoices");
+        assertThat(allocators.nextId(orders).get(10, TimeUnit.SECONDS)).isEqualTo(0L);
+        assertThat(allocators.nextId(orders).get(10, TimeUnit.SECONDS)).isEqualTo(1L);
+        assertThat(allocators.nextId(invoices).get(10, TimeUnit.SECONDS)).isEqualTo(0L);
+        assertThat(allocators.getAllocatorCount()).isEqualTo(2);
+
+        String path = "/allocating/data/" + HashedDataPaths.hash(orders.toJson());
+        assertThat(ValueCodecs.decode(cf.getData().forPath(path))).isEqualTo(10L);
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.data.NodeRegistry;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperMembershipChanges Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperMembershipChangesTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        cf.close();
+    }
+
+    /**
+     * Peers joining and leaving are reported as ordered events
+     */
+    @Test
+    public void testJoinAndLeaveEvents() throws Exception {
+        ZookeeperMembershipChanges changes = new ZookeeperMembershipChanges();
+        ZookeeperNode node = build("/events", changes);
+        node.getRegistry().getMembershipCache().get().start().get(10, TimeUnit.SECONDS);
+        List<MembershipEvent> events = new CopyOnWriteArrayList<>();
+        changes.addMembershipListener(events::add);
+
+        NodeRegistry peers = new NodeRegistry(cf, "/events");
+        String id = peers.makeNewNode().get(10, TimeUnit.SECONDS);
+        awaitSize(events, 1);
+        assertThat(events.get(0)).isInstanceOf(NodeJoined.class);
+        assertThat(events.get(0).getNodeId()).isEqualTo(id);
+
+        cf.delete().forPath("/events/nodes/" + id);
+        awaitSize(events, 2);
+        assertThat(events.get(1)).isInstanceOf(NodeLeft.class);
+        assertThat(events.get(1).getNodeId()).isEqualTo(id);
+        assertThat(events.get(1).getCversion()).isGreaterThan(events.get(0).getCversion());
+    }
+
+    /**
+     * A burst of changes within the coalescing window is reported as one delta
+     */
+    @Test
+    public void testCoalescing() throws Exception {
+        ZookeeperMembershipChanges changes = new ZookeeperMembershipChanges(2000);
+        ZookeeperNode node = build("/coalescing", changes);
+        node.getRegistry().getMembershipCache().get().start().get(10, TimeUnit.SECONDS);
+        List<MembershipEvent> events = new CopyOnWriteArrayList<>();
+        changes.addMembershipListener(events::add);
+
+        NodeRegistry peers = new NodeRegistry(cf, "/coalescing");
+        for (int i = 0; i < 5; i++) {
+            peers.makeNewNode().get(10, TimeUnit.SECONDS);
+        }
+        awaitSize(events, 5);
+        // one delta for all five, so all events carry the same cversion
+        assertThat(events.get(0).getCversion()).isEqualTo(events.get(4).getCversion());
+        assertThat(changes.getMembers()).hasSize(5);
+    }
+
+    /**
+     * The nodes registered before the view was loaded are not reported, even to a capability bound before the load
+     */
+    @Test
+    public void testInitialLoadNotReported() throws Exception {
+        NodeRegistry peers = new NodeRegistry(cf, "/initial");
+        peers.makeNewNode().get(10, TimeUnit.SECONDS);
+        peers.makeNewNode().get(10, TimeUnit.SECONDS);
+        ZookeeperMembershipChanges changes = new ZookeeperMembershipChanges();
+        List<MembershipEvent> events = new CopyOnWriteArrayList<>();
+        changes.addMembershipListener(events::add);
+        ZookeeperNode node = build("/initial", changes);
+        node.getRegistry().getMembershipCache().get().start().get(10, TimeUnit.SECONDS);
+        assertThat(changes.getMembers()).hasSize(2);
+
+        String id = peers.makeNewNode().get(10, TimeUnit.SECONDS);
+        awaitSize(events, 1);
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).getNodeId()).isEqualTo(id);
+    }
+
+    private ZookeeperNode build(String rootPath, ZookeeperMembershipChanges changes) throws Exception {
+        return (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withRootPath(rootPath)
+                .add(changes)
+                .build();
+    }
+
+    private static void awaitSize(List<?> list, int size) throws InterruptedException {
+        while (list.size() < size) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
@@ -32,8 +32,11 @@ import org.mockito.InOrder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 
@@ -186,6 +189,59 @@ public class ZookeeperNodeAnnouncementTest {
         verify(listener, times(1)).accept(any(ZookeeperNode.class));
     }
 
+    /**
+     * Method: addJoinListener() - a failing listener must neither fail the announcement nor starve other listeners
+     */
+    @Test
+    public void testFailingJoinListenerIsIsolated() throws Exception {
+        ZookeeperNodeAnnouncement announcement = spy(new ZookeeperNodeAnnouncement());
+        @SuppressWarnings("unchecked")
+        Consumer<Node<String>> listener = mock(Consumer.class);
+        announcement.addJoinListener(joined -> { throw new IllegalStateException("failing on purpose"); });
+        announcement.addJoinListener(listener);
+        doReturn(registry)
+                .when(announcement)
+                .makeRegistry();
+        when(node.getState()).thenReturn(NodeState.DISCONNECTED); // the node is a mock...
+
+        announcement.bind(node);
+
+        ZookeeperNodeAnnouncement retval = (ZookeeperNodeAnnouncement) announcement.announce().get(1, TimeUnit.SECONDS);
+        assertThat(retval).isEqualTo(announcement);
+        verify(listener, times(1)).accept(any(ZookeeperNode.class));
+    }
+
+    /**
+     * Method: withCompletion(BEFORE_LISTENERS) - the announcement does not wait for the join listeners
+     */
+    @Test
+    public void testCompleteBeforeListeners() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        ZookeeperNodeAnnouncement announcement = spy(new ZookeeperNodeAnnouncement()
+                .withCompletion(ZookeeperNodeAnnouncement.Completion.BEFORE_LISTENERS));
+        announcement.addJoinListener(joined -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        doReturn(registry)
+                .when(announcement)
+                .makeRegistry();
+        when(node.getState()).thenReturn(NodeState.DISCONNECTED); // the node is a mock...
+
+        announcement.bind(node);
+
+        try {
+            ZookeeperNodeAnnouncement retval = (ZookeeperNodeAnnouncement) announcement.announce().get(1, TimeUnit.SECONDS);
+            assertThat(retval).isEqualTo(announcement);
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
     /**
      * Method: addJoinListener(Consumer<Node<String>> consumer)
      */
@@ -202,5 +258,56 @@ public class ZookeeperNodeAnnouncementTest {
         assertThat(announcement.getBoundNode().get()).isSameAs(node);
     }
 
+    /**
+     * Method: announceAll(List nodes)
+     */
+    @Test
+    public void testAnnounceAll() throws Exception {
+        ZookeeperNode node2 = mock(ZookeeperNode.class);
+        when(node2.getCuratorFramework()).thenReturn(cf);
+        when(node2.getId()).thenReturn(Optional.ofNullable(null));
+        when(node2.getRootPath()).thenReturn("/net.projectmonastery");
+        when(registry.getCuratorFramework()).thenReturn(cf);
+        when(registry.getRootPath()).thenReturn("/net.projectmonastery");
+        when(registry.makeNewNodes(2)).thenReturn(CompletableFuture.completedFuture(Arrays.asList(ID1, ID2)));
+
+        @SuppressWarnings("unchecked")
+        Consumer<Node<String>> listener1 = mock(Consumer.class);
+        @SuppressWarnings("unchecked")
+        Consumer<Node<String>> listener2 = mock(Consumer.class);
+        for (ZookeeperNode n: Arrays.asList(node, node2)) {
+            ZookeeperNodeAnnouncement announcement = spy(new ZookeeperNodeAnnouncement());
+            doReturn(registry).when(announcement).makeRegistry();
+            announcement.addJoinListener(n == node ? listener1 : listener2);
+            when(n.getState()).thenReturn(NodeState.DISCONNECTED);
+            announcement.bind(n);
+            when(n.getCapability(ZookeeperNodeAnnouncement.class)).thenReturn(CompletableFuture.completedFuture(announcement));
+        }
+
+        List<String> ids = ZookeeperNodeAnnouncement.announceAll(Arrays.asList(node, node2)).get(1, TimeUnit.SECONDS);
+
+        assertThat(ids).containsExactly(ID1, ID2);
+        verify(registry, times(1)).makeNewNodes(2);
+        verify(registry, never()).makeNewNode();
+        verify(node, times(1)).setId(ID1);
+        verify(node2, times(1)).setId(ID2);
+        verify(node2, times(1)).setState(NodeState.JOINED);
+        verify(listener1, times(1)).accept(node);
+        verify(listener2, times(1)).accept(node2);
+    }
+
+    /**
+     * Method: announceAll(List nodes) - a node without the capability fails the future rather than throw
+     */
+    @Test
+    public void testAnnounceAllWithoutCapability() throws Exception {
+        CompletableFuture<ZookeeperNodeAnnouncement> missing = new CompletableFuture<>();
+        missing.completeExceptionally(new Exception("cannot find a capability"));
+        when(node.getCapability(ZookeeperNodeAnnouncement.class)).thenReturn(missing);
 
-} 
+        CompletableFuture<List<String>> ids = ZookeeperNodeAnnouncement.announceAll(Arrays.asList(node));
+
+        assertThat(ids.isCompletedExceptionally()).isTrue();
+        verify(registry, never()).makeNewNodes(anyInt());
+    }
+}
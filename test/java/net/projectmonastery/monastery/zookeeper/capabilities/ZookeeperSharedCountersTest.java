@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperSharedCounters Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperSharedCountersTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        cf.close();
+    }
+
+    /**
+     * Counters are striped over shards under their hashed data path
+     */
+    @Test
+    public void testCount() throws Exception {
+        ZookeeperSharedCounters counters = new ZookeeperSharedCounters().withShards(8).withFlushIntervalMillis(60_000);
+        new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withRootPath("/counted")
+                .add(counters)
+                .build();
+        DataAddress requests = DataAddress.of("app", "requests");
+        DataAddress errors = DataAddress.of("app", "errors");
+        for (int i = 0; i < 100; i++) {
+            counters.increment(requests);
+        }
+        counters.add(errors, 3);
+        assertThat(counters.getCounterCount()).isEqualTo(2);
+        assertThat(counters.getCounter(requests).getShards()).isEqualTo(8);
+        counters.flush().get(10, TimeUnit.SECONDS);
+
+        assertThat(counters.get(requests).get(10, TimeUnit.SECONDS)).isEqualTo(100L);
+        assertThat(counters.getCached(errors).get(10, TimeUnit.SECONDS)).isEqualTo(3L);
+        String path = "/counted/data/" + HashedDataPaths.hash(requests.toJson());
+        assertThat(cf.getChildren().forPath(path)).hasSize(1); // one writer, one shard
+        counters.close();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNode;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import net.projectmonastery.monastery.zookeeper.data.HashedDataPaths;
+import net.projectmonastery.monastery.zookeeper.data.Versioned;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperSharedData Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperSharedDataTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        cf.close();
+    }
+
+    /**
+     * Values are kept as JSON at the hashed path of their address
+     */
+    @Test
+    public void testSetAndGet() throws Exception {
+        ZookeeperSharedData data = new ZookeeperSharedData();
+        ZookeeperNode node = build("/shared", data);
+        assertThat(node.getCapability(ZookeeperSharedData.class).get()).isSameAs(data);
+
+        DataAddress address = DataAddress.of("app", "threshold");
+        assertThat(data.get(address, Integer.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.empty());
+        assertThat(data.set(address, 3).get(10, TimeUnit.SECONDS)).isEqualTo(0);
+        assertThat(data.get(address, Integer.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.of(3));
+        assertThat(new String(cf.getData().forPath("/shared/data/" + HashedDataPaths.hash(address.toJson())), "UTF-8"))
+                .isEqualTo("{\"type\":\"Integer\",\"value\":\"3\"}");
+
+        try {
+            data.get(address, String.class).join();
+            fail("expected a ClassCastException");
+        } catch (CompletionException e) {
+            assertThat(e.getCause()).isInstanceOf(ClassCastException.class);
+        }
+
+        Versioned versioned = data.getVersioned(address).get(10, TimeUnit.SECONDS);
+        assertThat(data.compareAndSet(address, 4, versioned.getVersion()).get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(data.compareAndSet(address, 5, versioned.getVersion()).get(10, TimeUnit.SECONDS)).isFalse();
+        assertThat(data.get(address, Integer.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.of(4));
+
+        data.remove(address).get(10, TimeUnit.SECONDS);
+        assertThat(data.get(address, Integer.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.empty());
+        data.close();
+    }
+
+    /**
+     * Ephemeral values go away with the session that wrote them
+     */
+    @Test
+    public void testEphemeralLifespan() throws Exception {
+        CuratorFramework writerCf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        writerCf.start();
+        writerCf.blockUntilConnected();
+        ZookeeperSharedData writer = new ZookeeperSharedData();
+        build(writerCf, "/ephemeral", writer);
+        ZookeeperSharedData reader = new ZookeeperSharedData();
+        build(cf, "/ephemeral", reader);
+
+        DataAddress address = DataAddress.of("app", "leader").withLifespan(DataAddress.Lifespan.EPHEMERAL);
+        writer.set(address, "me").get(10, TimeUnit.SECONDS);
+        assertThat(reader.get(address, String.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.of("me"));
+
+        writer.close();
+        writerCf.close();
+        while (reader.get(address, String.class).join().isPresent()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+        reader.close();
+    }
+
+    /**
+     * Method: withWriteCoalescingMillis(), flush()
+     */
+    @Test
+    public void testWriteCoalescing() throws Exception {
+        ZookeeperSharedData data = new ZookeeperSharedData().withWriteCoalescingMillis(60_000);
+        build("/coalescing", data);
+        DataAddress address = DataAddress.of("app", "status");
+        for (int i = 0; i < 10; i++) {
+            data.set(address, "status " + i);
+        }
+        assertThat(data.getCoalescedWriteCount()).isEqualTo(9);
+        data.flush().get(10, TimeUnit.SECONDS);
+        assertThat(data.get(address, String.class).get(10, TimeUnit.SECONDS)).isEqualTo(Optional.of("status 9"));
+
+        // a compare and set lands after the value buffered before it
+        data.set(address, "buffered");
+        Versioned versioned = data.getVersioned(address).get(10, TimeUnit.SECONDS);
+        assertThat(data.compareAndSet(address, "swapped", versioned.getVersion()).get(10, TimeUnit.SECONDS)).isFalse();
+        versioned = data.getVersioned(address).get(10, TimeUnit.SECONDS);
+        assertThat(versioned.getValue()).isEqualTo("buffered");
+        assertThat(data.compareAndSet(address, "swapped", versioned.getVersion()).get(10, TimeUnit.SECONDS)).isTrue();
+        data.close();
+    }
+
+    private ZookeeperNode build(String rootPath, ZookeeperSharedData data) throws Exception {
+        return build(cf, rootPath, data);
+    }
+
+    private static ZookeeperNode build(CuratorFramework framework, String rootPath, ZookeeperSharedData data) throws Exception {
+        return (ZookeeperNode) new ZookeeperNodeBuilder()
+                .withCuratorFramework(framework)
+                .withRootPath(rootPath)
+                .add(data)
+                .build();
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.capabilities;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperNodeBuilder;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import net.projectmonastery.monastery.zookeeper.data.DataAddress;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ZookeeperSharedSets Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ZookeeperSharedSetsTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        cf.close();
+    }
+
+    /**
+     * Sets are replicated on first access only, and then answered from memory
+     */
+    @Test
+    public void testLazyReplicas() throws Exception {
+        InMemoryZookeeperMetrics metrics = new InMemoryZookeeperMetrics();
+        ZookeeperSharedSets sets = new ZookeeperSharedSets();
+        new ZookeeperNodeBuilder()
+                .withCuratorFramework(cf)
+                .withRootPath("/lazy")
+                .withMetrics(metrics)
+                .add(sets)
+                .build();
+        assertThat(sets.getReplicaCount()).isEqualTo(0);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount()).isEqualTo(0);
+
+        DataAddress admins = DataAddress.of("acl", "admins");
+        assertThat(sets.contains(admins, "alice").get(10, TimeUnit.SECONDS)).isFalse();
+        assertThat(sets.getReplicaCount()).isEqualTo(1);
+        assertThat(sets.add(admins, "alice").get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(sets.add(admins, "bob").get(10, TimeUnit.SECONDS)).isTrue();
+
+        long calls = metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount() +
+                metrics.getHistogram(ZookeeperOperation.EXISTS).getCount();
+        CompletableFuture<Boolean> contains = sets.contains(admins, "alice");
+        assertThat(contains.isDone()).isTrue();
+        assertThat(contains.get()).isTrue();
+        assertThat(sets.contains(admins, "alice")).isNotSameAs(contains);
+        assertThat(sets.containsNow(admins, "alice")).isTrue();
+        assertThat(sets.contains(admins, "carol").get()).isFalse();
+        assertThat(sets.containsNow(admins, "carol")).isFalse();
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount() +
+                metrics.getHistogram(ZookeeperOperation.EXISTS).getCount()).isEqualTo(calls);
+
+        assertThat(sets.size(admins).get(10, TimeUnit.SECONDS)).isEqualTo(2);
+        assertThat(sets.getElements(admins).get(10, TimeUnit.SECONDS)).isEqualTo(new HashSet<>(Arrays.asList("alice", "bob")));
+        assertThat(sets.remove(admins, "alice").get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(sets.contains(admins, "alice").get()).isFalse();
+        assertThat(sets.getReplicaCount()).isEqualTo(1);
+        sets.close();
+        assertThat(sets.getReplicaCount()).isEqualTo(0);
+    }
+}
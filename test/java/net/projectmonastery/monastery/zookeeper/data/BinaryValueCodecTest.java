@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * BinaryValueCodec and ValueCodecs Tester.
+ */
+public class BinaryValueCodecTest {
+    private final BinaryValueCodec codec = BinaryValueCodec.INSTANCE;
+
+    /**
+     * Method: encode(), decode()
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Object> values = Arrays.<Object>asList("", "abc", "\u05d0\u05d1 \u20ac \ud83d\ude00", true, false,
+                (byte) -128, (byte) 127, (short) -300, Short.MAX_VALUE, 0, -1, 63, -64, 64, Integer.MIN_VALUE,
+                Integer.MAX_VALUE, 0L, Long.MIN_VALUE, Long.MAX_VALUE, 1.5f, Float.NaN, -0.0d, Double.MAX_VALUE,
+                'x', '\uffff');
+        for (Object value: values) {
+            byte[] payload = codec.encode(value);
+            assertThat(payload[0]).isEqualTo(BinaryValueCodec.MARKER);
+            Object decoded = codec.decode(payload);
+            assertThat(decoded).as(String.valueOf(value)).isEqualTo(value);
+            assertThat((Object) decoded.getClass()).isEqualTo(value.getClass());
+            assertThat(ValueCodecs.decode(payload)).isEqualTo(value);
+        }
+    }
+
+    /**
+     * Strings are encoded as UTF-8, exactly as String.getBytes() would
+     */
+    @Test
+    public void testUtf8() throws Exception {
+        String value = "a\u00e9\u05d0\u20ac\ud83d\ude00\ud800z";
+        byte[] utf8 = value.getBytes(java.nio.charset.StandardCharsets.UTF_8);
+        assertThat(BinaryValueCodec.utf8Length(value)).isEqualTo(utf8.length);
+        byte[] payload = codec.encode(value);
+        assertThat(Arrays.copyOfRange(payload, payload.length - utf8.length, payload.length)).isEqualTo(utf8);
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        assertThat(codec.encode(3).length).isEqualTo(3);
+        assertThat(codec.encode(true).length).isEqualTo(2);
+        assertThat(codec.encode(-1L).length).isEqualTo(3);
+        assertThat(codec.encode("abc").length).isEqualTo(6);
+        assertThat(codec.encode(Long.MAX_VALUE).length).isLessThan(ScalarJson.encode(Long.MAX_VALUE).length);
+    }
+
+    /**
+     * Method: ValueCodecs.decode() dispatches on the payload's marker
+     */
+    @Test
+    public void testDecodesEitherCodec() throws Exception {
+        assertThat(ValueCodecs.decode(JsonValueCodec.INSTANCE.encode(42))).isEqualTo(42);
+        assertThat(ValueCodecs.decode(BinaryValueCodec.INSTANCE.encode(42))).isEqualTo(42);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnsupportedType() throws Exception {
+        codec.encode(new Object());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTruncated() throws Exception {
+        byte[] payload = codec.encode("abc");
+        codec.decode(Arrays.copyOf(payload, payload.length - 1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOutOfRange() throws Exception {
+        byte[] payload = codec.encode(1L << 40);
+        payload[1] = 'i';
+        codec.decode(payload);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownCodec() throws Exception {
+        ValueCodecs.decode(new byte[] {0x7f, 1});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReservedMarker() throws Exception {
+        ValueCodecs.register(new ValueCodec() {
+            @Override
+            public byte getMarker() {
+                return PayloadCompression.DEFLATE_MARKER;
+            }
+
+            @Override
+            public String getName() {
+                return "bad";
+            }
+
+            @Override
+            public byte[] encode(Object value) {
+                return new byte[0];
+            }
+
+            @Override
+            public Object decode(byte[] payload) {
+                return null;
+            }
+        });
+    }
+}
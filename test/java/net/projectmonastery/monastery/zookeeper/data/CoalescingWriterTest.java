@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * CoalescingWriter Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class CoalescingWriterTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private InMemoryZookeeperMetrics metrics;
+    private ScalarStore store;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+        metrics = new InMemoryZookeeperMetrics();
+        store = new ScalarStore(cf, ZookeeperExecutors.defaultExecutor()).withMetrics(metrics);
+    }
+
+    @After
+    public void after() throws Exception {
+        store.close();
+        cf.close();
+    }
+
+    /**
+     * A burst of writes within the interval is written once, with the latest value
+     */
+    @Test
+    public void testCoalescesBursts() throws Exception {
+        CoalescingWriter writer = new CoalescingWriter(store, 200, ZookeeperExecutors.defaultExecutor());
+        List<CompletableFuture<Integer>> writes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            writes.add(writer.write("/coalesced/status", i, CreateMode.PERSISTENT));
+        }
+        assertThat(writer.getCoalescedWriteCount()).isEqualTo(99);
+        assertThat(writer.getPendingCount()).isEqualTo(1);
+        for (CompletableFuture<Integer> write: writes) {
+            assertThat(write.get(10, TimeUnit.SECONDS)).isEqualTo(0);
+        }
+        assertThat(writer.getFlushedWriteCount()).isEqualTo(1);
+        assertThat(store.read("/coalesced/status").get(10, TimeUnit.SECONDS).getValue()).isEqualTo(99);
+        awaitTrue(() -> writer.getPendingCount() == 0);
+        writer.close();
+    }
+
+    /**
+     * Method: flush()
+     */
+    @Test
+    public void testFlush() throws Exception {
+        CoalescingWriter writer = new CoalescingWriter(store, 60_000, ZookeeperExecutors.defaultExecutor());
+        CompletableFuture<Integer> first = writer.write("/flushed/a", "a1", CreateMode.PERSISTENT);
+        writer.write("/flushed/a", "a2", CreateMode.PERSISTENT);
+        writer.write("/flushed/b", "b1", CreateMode.PERSISTENT);
+        assertThat(first.isDone()).isFalse();
+        writer.flush().get(10, TimeUnit.SECONDS);
+        assertThat(first.get()).isEqualTo(0);
+        assertThat(store.read("/flushed/a").get(10, TimeUnit.SECONDS).getValue()).isEqualTo("a2");
+        assertThat(store.read("/flushed/b").get(10, TimeUnit.SECONDS).getValue()).isEqualTo("b1");
+        assertThat(writer.getFlushedWriteCount()).isEqualTo(2);
+        assertThat(writer.getCoalescedWriteCount()).isEqualTo(1);
+
+        // writes during a write in flight are written after it, so the last value wins
+        for (int i = 0; i < 50; i++) {
+            writer.write("/flushed/a", i, CreateMode.PERSISTENT);
+            writer.flush("/flushed/a");
+        }
+        writer.flush().get(10, TimeUnit.SECONDS);
+        awaitTrue(() -> writer.getPendingCount() == 0);
+        assertThat(cf.getData().forPath("/flushed/a")).isEqualTo(JsonValueCodec.INSTANCE.encode(49));
+        assertThat(writer.getFlushedWriteCount() + writer.getCoalescedWriteCount()).isEqualTo(53);
+        writer.close();
+    }
+
+    /**
+     * Method: close() writes what is buffered
+     */
+    @Test
+    public void testClose() throws Exception {
+        CoalescingWriter writer = new CoalescingWriter(store, 60_000, ZookeeperExecutors.defaultExecutor());
+        long writes = metrics.getHistogram(ZookeeperOperation.SET_DATA).getCount();
+        CompletableFuture<Integer> buffered = writer.write("/closed/a", true, CreateMode.PERSISTENT);
+        writer.close();
+        buffered.get(10, TimeUnit.SECONDS);
+        assertThat(store.read("/closed/a").get(10, TimeUnit.SECONDS).getValue()).isEqualTo(true);
+        // after closing, writes are not delayed
+        writer.write("/closed/a", false, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        assertThat(metrics.getHistogram(ZookeeperOperation.SET_DATA).getCount()).isGreaterThan(writes);
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
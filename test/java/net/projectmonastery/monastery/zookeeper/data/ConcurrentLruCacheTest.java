@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ConcurrentLruCache Tester.
+ */
+public class ConcurrentLruCacheTest {
+    /**
+     * Method: get() - the least recently used entry is the one evicted
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        ConcurrentLruCache<Integer, String> cache = new ConcurrentLruCache<>(1); // a single segment, exact LRU
+        AtomicInteger loads = new AtomicInteger();
+        assertThat(cache.get(1, key -> "v" + key + loads.incrementAndGet())).isEqualTo("v11");
+        assertThat(cache.get(1, key -> "v" + key + loads.incrementAndGet())).isEqualTo("v11");
+        assertThat(cache.get(2, key -> "v" + key + loads.incrementAndGet())).isEqualTo("v22");
+        assertThat(cache.peek(1)).isNull();
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.getEvictionCount()).isEqualTo(1);
+
+        ConcurrentLruCache<Integer, Integer> larger = new ConcurrentLruCache<>(2);
+        assertThat(larger.getCapacity()).isEqualTo(2);
+    }
+
+    /**
+     * Method: getHitRate(), getHitCount(), getMissCount()
+     */
+    @Test
+    public void testHitRate() throws Exception {
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<>(100);
+        assertThat(cache.getHitRate()).isEqualTo(0.0);
+        for (int round = 0; round < 4; round++) {
+            for (int i = 0; i < 10; i++) {
+                assertThat(cache.get(i, key -> key * 2)).isEqualTo(i * 2);
+            }
+        }
+        assertThat(cache.getMissCount()).isEqualTo(10);
+        assertThat(cache.getHitCount()).isEqualTo(30);
+        assertThat(cache.getHitRate()).isEqualTo(0.75);
+        cache.clear();
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    /**
+     * Concurrent use never exceeds the capacity and always returns the right value
+     */
+    @Test
+    public void testConcurrentUse() throws Exception {
+        ConcurrentLruCache<Integer, Integer> cache = new ConcurrentLruCache<>(64);
+        List<Thread> threads = new ArrayList<>();
+        AtomicInteger errors = new AtomicInteger();
+        for (int t = 0; t < 8; t++) {
+            int seed = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 20_000; i++) {
+                    int key = (i * 31 + seed) % 200;
+                    if (cache.get(key, k -> -k) != -key) {
+                        errors.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread: threads) {
+            thread.join();
+        }
+        assertThat(errors.get()).isEqualTo(0);
+        assertThat(cache.size()).isLessThanOrEqualTo(cache.getCapacity());
+        assertThat(cache.getHitCount() + cache.getMissCount()).isEqualTo(8 * 20_000);
+    }
+}
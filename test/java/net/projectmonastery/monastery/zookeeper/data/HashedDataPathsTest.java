@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * HashedDataPaths and DataAddress Tester.
+ */
+public class HashedDataPathsTest {
+    @Test
+    public void testHash() throws Exception {
+        assertThat(HashedDataPaths.hash("abc"))
+                .isEqualTo("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+        // the reused buffers give the same results as a fresh digest, for any text
+        StringBuilder longText = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            longText.append((char) ('a' + i % 26));
+        }
+        for (String text: new String[] {"", "abc", "\u05d0\u05d1", longText.toString(), "abc"}) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            StringBuilder expected = new StringBuilder();
+            for (byte b: digest.digest(text.getBytes(StandardCharsets.UTF_8))) {
+                expected.append(String.format("%02x", b));
+            }
+            assertThat(HashedDataPaths.hash(text)).isEqualTo(expected.toString());
+        }
+    }
+
+    /**
+     * Method: pathOf(), childNameOf() - resolved once, then served from the caches
+     */
+    @Test
+    public void testMemoized() throws Exception {
+        HashedDataPaths paths = new HashedDataPaths("/cluster", 16);
+        DataAddress address = DataAddress.of("app", "name");
+        String path = paths.pathOf(address);
+        assertThat(paths.pathOf(DataAddress.of("app", "name"))).isSameAs(path);
+        assertThat(paths.getAddressCache().getMissCount()).isEqualTo(1);
+        assertThat(paths.getAddressCache().getHitCount()).isEqualTo(1);
+
+        String name = paths.childNameOf("{\"a\":1}");
+        assertThat(paths.childNameOf("{\"a\":1}")).isSameAs(name);
+        assertThat(paths.getElementCache().getHitRate()).isEqualTo(0.5);
+
+        for (int i = 0; i < 100; i++) {
+            assertThat(paths.pathOf(DataAddress.of("app", "name" + i)))
+                    .isEqualTo("/cluster/data/" + HashedDataPaths.hash(DataAddress.of("app", "name" + i).toJson()));
+        }
+        assertThat(paths.getAddressCache().size()).isLessThanOrEqualTo(16);
+        assertThat(paths.getAddressCache().getEvictionCount()).isGreaterThan(0);
+    }
+
+    /**
+     * Method: pathOf() - the path is the hash of the normalized address, whatever the hints
+     */
+    @Test
+    public void testPathOf() throws Exception {
+        HashedDataPaths paths = new HashedDataPaths("/cluster");
+        DataAddress address = DataAddress.of("app", "config \"x\"");
+        assertThat(address.toJson()).isEqualTo("{\"name\":\"config \\\"x\\\"\",\"scope\":\"app\"}");
+        assertThat(paths.getDataRoot()).isEqualTo("/cluster/data");
+        assertThat(paths.pathOf(address)).isEqualTo("/cluster/data/" + HashedDataPaths.hash(address.toJson()));
+
+        DataAddress hinted = address.withLifespan(DataAddress.Lifespan.EPHEMERAL).withSizeHint(DataAddress.SizeHint.LARGE);
+        assertThat(hinted).isEqualTo(address);
+        assertThat(hinted.hashCode()).isEqualTo(address.hashCode());
+        assertThat(paths.pathOf(hinted)).isEqualTo(paths.pathOf(address));
+        assertThat(paths.pathOf(DataAddress.of("app2", "config \"x\""))).isNotEqualTo(paths.pathOf(address));
+        assertThat(paths.childNameOf("{}")).isEqualTo(HashedDataPaths.hash("{}"));
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * IdBlockAllocator Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class IdBlockAllocatorTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private CuratorFramework otherCf;
+    private InMemoryZookeeperMetrics metrics;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+        otherCf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        otherCf.start();
+        otherCf.blockUntilConnected();
+        metrics = new InMemoryZookeeperMetrics();
+    }
+
+    @After
+    public void after() throws Exception {
+        otherCf.close();
+        cf.close();
+    }
+
+    /**
+     * IDs are handed out locally, in increasing order, from leased blocks
+     */
+    @Test
+    public void testLocalIds() throws Exception {
+        IdBlockAllocator allocator = new IdBlockAllocator(cf, "/ids/local", ZookeeperExecutors.defaultExecutor())
+                .withBlockSizeLimits(100, 100)
+                .withMetrics(metrics);
+        assertThat(allocator.nextId().get(10, TimeUnit.SECONDS)).isEqualTo(0L);
+        long last = 0;
+        for (int i = 1; i < 1000; i++) {
+            long id = allocator.nextId().get(10, TimeUnit.SECONDS);
+            assertThat(id).isGreaterThan(last);
+            last = id;
+        }
+        assertThat(allocator.getLeaseCount()).isGreaterThanOrEqualTo(10).isLessThanOrEqualTo(11); // maybe one prefetched
+        long writes = metrics.getHistogram(ZookeeperOperation.SET_DATA).getCount() +
+                metrics.getHistogram(ZookeeperOperation.CREATE).getCount();
+        assertThat(writes).isEqualTo(allocator.getLeaseCount());
+    }
+
+    /**
+     * Many threads on two nodes never get the same ID
+     */
+    @Test
+    public void testUniqueAcrossNodes() throws Exception {
+        IdBlockAllocator first = new IdBlockAllocator(cf, "/ids/shared", ZookeeperExecutors.defaultExecutor());
+        IdBlockAllocator second = new IdBlockAllocator(otherCf, "/ids/shared", ZookeeperExecutors.defaultExecutor());
+        Set<Long> ids = ConcurrentHashMap.newKeySet();
+        List<CompletableFuture<Void>> workers = new ArrayList<>();
+        ExecutorService pool = ZookeeperExecutors.newIoPool(8);
+        for (int i = 0; i < 8; i++) {
+            IdBlockAllocator allocator = i % 2 == 0 ? first : second;
+            workers.add(CompletableFuture.runAsync(() -> {
+                for (int j = 0; j < 5000; j++) {
+                    assertThat(ids.add(allocator.nextId().join())).isTrue();
+                }
+            }, pool));
+        }
+        CompletableFuture.allOf(workers.toArray(new CompletableFuture<?>[workers.size()])).get(20, TimeUnit.SECONDS);
+        pool.shutdown();
+        assertThat(ids).hasSize(40_000);
+        assertThat(first.getLeaseCount() + second.getLeaseCount()).isLessThan(40_000 / IdBlockAllocator.DEFAULT_MIN_BLOCK_SIZE);
+    }
+
+    /**
+     * A busy node leases bigger blocks, and an idle one keeps them small
+     */
+    @Test
+    public void testAdaptiveBlockSize() throws Exception {
+        IdBlockAllocator busy = new IdBlockAllocator(cf, "/ids/adaptive", ZookeeperExecutors.defaultExecutor());
+        for (int i = 0; i < 50_000; i++) {
+            busy.nextId().get(10, TimeUnit.SECONDS);
+        }
+        assertThat(busy.getBlockSize()).isGreaterThan(IdBlockAllocator.DEFAULT_MIN_BLOCK_SIZE * 16);
+
+        IdBlockAllocator idle = new IdBlockAllocator(otherCf, "/ids/adaptive", ZookeeperExecutors.defaultExecutor())
+                .withTargetLeaseIntervalMillis(100);
+        for (int i = 0; i < 40; i++) {
+            idle.nextId().get(10, TimeUnit.SECONDS);
+            Thread.sleep(20);
+        }
+        assertThat(idle.getBlockSize()).isEqualTo(IdBlockAllocator.DEFAULT_MIN_BLOCK_SIZE);
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * MembershipDelta Tester.
+ */
+public class MembershipDeltaTest {
+    /**
+     * Method: between(String[] before, String[] after, int cversion)
+     */
+    @Test
+    public void testBetween() throws Exception {
+        String[] before = {"node-0000000001", "node-0000000002", "node-0000000004"};
+        String[] after = {"node-0000000002", "node-0000000003", "node-0000000004", "node-0000000005"};
+        MembershipDelta delta = MembershipDelta.between(before, after, 7);
+        assertThat(delta.getLeft()).containsExactly("node-0000000001");
+        assertThat(delta.getJoined()).containsExactly("node-0000000003", "node-0000000005");
+        assertThat(delta.getCversion()).isEqualTo(7);
+        assertThat(delta.isEmpty()).isFalse();
+    }
+
+    @Test
+    public void testBetweenEmptyViews() throws Exception {
+        String[] some = {"node-0000000001", "node-0000000002"};
+        assertThat(MembershipDelta.between(new String[0], some, 1).getJoined()).containsExactly(some);
+        assertThat(MembershipDelta.between(some, new String[0], 2).getLeft()).containsExactly(some);
+        assertThat(MembershipDelta.between(some, some, 3).isEmpty()).isTrue();
+    }
+}
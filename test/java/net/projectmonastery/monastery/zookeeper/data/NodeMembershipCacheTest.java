@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * NodeMembershipCache Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class NodeMembershipCacheTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private NodeRegistry registry;
+    private NodeMembershipCache cache;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (cache != null) {
+            cache.close();
+        }
+        cf.close();
+    }
+
+    /**
+     * The cache starts before any node is announced, and picks up nodes as they come and go
+     */
+    @Test
+    public void testTracksMembership() throws Exception {
+        registry = new NodeRegistry(cf, "/tracking");
+        cache = new NodeMembershipCache(cf, "/tracking/nodes", ZookeeperExecutors.defaultExecutor());
+        cache.start().get(10, TimeUnit.SECONDS);
+        assertThat(cache.isSynced()).isTrue();
+        assertThat(cache.getMembers()).isEmpty();
+        assertThat(cache.getLastSeenCversion()).isEqualTo(-1);
+
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        awaitTrue(() -> cache.contains(id));
+        assertThat(cache.getLastSeenCversion()).isGreaterThanOrEqualTo(0);
+        assertThat(cache.getMillisSinceLastSync()).isLessThan(10_000);
+
+        String id2 = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        awaitTrue(() -> cache.contains(id2));
+        assertThat(cache.getMembers()).containsExactly(id, id2);
+
+        cf.delete().forPath("/tracking/nodes/" + id);
+        awaitTrue(() -> !cache.contains(id));
+        assertThat(cache.getMembers()).containsExactly(id2);
+    }
+
+    /**
+     * Method: NodeRegistry.nodeExists() and NodeRegistry.listNodes() with the membership cache
+     */
+    @Test
+    public void testRegistryUsesCache() throws Exception {
+        registry = new NodeRegistry(cf, "/cached").withMembershipCache();
+        cache = registry.getMembershipCache().get();
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        awaitTrue(() -> cache.contains(id));
+
+        assertThat(registry.nodeExists(id).get()).isTrue();
+        assertThat(registry.nodeExists(id + "0").get()).isFalse();
+        assertThat(registry.listNodes().get()).containsExactly(id);
+
+        registry.close();
+        assertThat(registry.getMembershipCache().isPresent()).isFalse();
+        assertThat(registry.listNodes().get(10, TimeUnit.SECONDS)).containsExactly(id); // now straight from Zookeeper
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
@@ -19,6 +19,9 @@ package net.projectmonastery.monastery.zookeeper.data;
 
 import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
 import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.LatencyHistogram;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
 import org.apache.curator.framework.CuratorFramework;
 import org.apache.curator.framework.CuratorFrameworkFactory;
 import org.apache.curator.retry.RetryNTimes;
@@ -29,6 +32,9 @@ import org.junit.rules.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
@@ -122,5 +128,171 @@ public class NodeRegistryTest implements IntegrationTestClassMarker {
         assertFalse(registry.nodeExists(id+"0").get());
     }
 
+    /**
+     *
+     * Method: makeNewNode() in non-blocking mode
+     *
+     */
+    @Test
+    public void testMakeNewNodeNonBlocking() throws Exception {
+        registry = new NodeRegistry(cf, "/non-blocking-root").withMode(NodeRegistry.Mode.NON_BLOCKING);
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id).isEqualTo("node-0000000000");
+
+        String id2 = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id2).isEqualTo("node-0000000001");
+    }
+
+    /**
+     *
+     * Method: nodeExists(String nodeId) in non-blocking mode
+     *
+     */
+    @Test
+    public void testNodeExistsNonBlocking() throws Exception {
+        registry = new NodeRegistry(cf, rootPath).withMode(NodeRegistry.Mode.NON_BLOCKING);
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+
+        assertTrue(registry.nodeExists(id).get());
+        assertFalse(registry.nodeExists(id+"0").get());
+    }
 
-} 
+    /**
+     * Announcing into a cluster root that does not exist yet creates the whole path
+     */
+    @Test
+    public void testMakeNewNodeWithoutRoot() throws Exception {
+        registry = new NodeRegistry(cf, "/missing/root");
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id).isEqualTo("node-0000000000");
+        assertThat(cf.checkExists().forPath("/missing/root/nodes/" + id)).isNotNull();
+
+        String id2 = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id2).isEqualTo("node-0000000001");
+    }
+
+    /**
+     * Announcing into a cluster root that does not exist yet creates the whole path (non-blocking mode)
+     */
+    @Test
+    public void testMakeNewNodeWithoutRootNonBlocking() throws Exception {
+        registry = new NodeRegistry(cf, "/missing/non-blocking/root").withMode(NodeRegistry.Mode.NON_BLOCKING);
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id).isEqualTo("node-0000000000");
+        assertThat(cf.checkExists().forPath("/missing/non-blocking/root/nodes/" + id)).isNotNull();
+
+        String id2 = registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        assertThat(id2).isEqualTo("node-0000000001");
+    }
+
+    /**
+     *
+     * Method: makeNewNodes(int count) - more nodes than fit in one transaction
+     *
+     */
+    @Test
+    public void testMakeNewNodes() throws Exception {
+        registry = new NodeRegistry(cf, "/batch/root");
+        int count = NodeRegistry.MAX_BATCH_CHUNK + 10;
+        List<String> ids = registry.makeNewNodes(count).get(20, TimeUnit.SECONDS);
+        assertThat(ids).hasSize(count);
+        assertThat(ids.get(0)).isEqualTo("node-0000000000");
+        assertThat(ids.get(count - 1)).isEqualTo(String.format("node-%010d", count - 1));
+        assertThat(cf.getChildren().forPath("/batch/root/nodes")).hasSize(count);
+    }
+
+    /**
+     *
+     * Method: makeNewNodes(int count) - no nodes
+     *
+     */
+    @Test
+    public void testMakeNoNewNodes() throws Exception {
+        assertThat(registry.makeNewNodes(0).get(10, TimeUnit.SECONDS)).isEmpty();
+    }
+
+    /**
+     * The batch chunk size must respect the jute.maxbuffer setting
+     */
+    @Test
+    public void testBatchChunkSize() throws Exception {
+        assertThat(registry.getBatchChunkSize()).isEqualTo(NodeRegistry.MAX_BATCH_CHUNK);
+        String previous = System.getProperty("jute.maxbuffer");
+        System.setProperty("jute.maxbuffer", "4096");
+        try {
+            assertThat(registry.getBatchChunkSize()).isGreaterThan(0).isLessThan(NodeRegistry.MAX_BATCH_CHUNK);
+        }
+        finally {
+            if (previous == null) {
+                System.clearProperty("jute.maxbuffer");
+            } else {
+                System.setProperty("jute.maxbuffer", previous);
+            }
+        }
+    }
+
+    /**
+     *
+     * Method: nodeExists(Collection<String> nodeIds) - few IDs, checked individually
+     *
+     */
+    @Test
+    public void testBulkNodeExists() throws Exception {
+        registry = new NodeRegistry(cf, "/bulk/root").withMaxInFlightChecks(2);
+        List<String> ids = registry.makeNewNodes(5).get(10, TimeUnit.SECONDS);
+        List<String> query = new ArrayList<>(ids);
+        query.add("node-9999999999");
+        assertThat(registry.isListingCheaper(query.size())).isFalse();
+
+        Map<String, Boolean> result = registry.nodeExists(query).get(10, TimeUnit.SECONDS);
+        assertThat(result.keySet()).containsExactly(query.toArray(new String[query.size()]));
+        ids.forEach(id -> assertTrue(result.get(id)));
+        assertFalse(result.get("node-9999999999"));
+    }
+
+    /**
+     *
+     * Method: nodeExists(Collection<String> nodeIds) - many IDs, answered by listing the nodes
+     *
+     */
+    @Test
+    public void testBulkNodeExistsByListing() throws Exception {
+        registry = new NodeRegistry(cf, "/bulk/listing/root");
+        List<String> ids = registry.makeNewNodes(NodeRegistry.BULK_LISTING_THRESHOLD).get(10, TimeUnit.SECONDS);
+        List<String> query = new ArrayList<>(ids);
+        query.add("node-9999999999");
+        assertThat(registry.isListingCheaper(query.size())).isTrue();
+
+        Map<String, Boolean> result = registry.nodeExists(query).get(10, TimeUnit.SECONDS);
+        assertThat(result).hasSize(query.size());
+        ids.forEach(id -> assertTrue(result.get(id)));
+        assertFalse(result.get("node-9999999999"));
+    }
+
+    /**
+     * Method: withMetrics() - every Zookeeper round trip is measured, in both modes
+     */
+    @Test
+    public void testMetrics() throws Exception {
+        InMemoryZookeeperMetrics metrics = new InMemoryZookeeperMetrics();
+        registry = new NodeRegistry(cf, "/metrics/root").withMetrics(metrics);
+        String id = registry.makeNewNode().get(10, TimeUnit.SECONDS); // creates the root: CREATE, MULTI, CREATE, MULTI
+        assertTrue(registry.nodeExists(id).get(10, TimeUnit.SECONDS));
+        registry.withMode(NodeRegistry.Mode.NON_BLOCKING);
+        assertFalse(registry.nodeExists("node-9999999999").get(10, TimeUnit.SECONDS));
+        registry.makeNewNode().get(10, TimeUnit.SECONDS);
+        registry.listNodes().get(10, TimeUnit.SECONDS);
+
+        LatencyHistogram exists = metrics.getHistogram(ZookeeperOperation.EXISTS);
+        assertThat(exists.getSuccessCount()).isEqualTo(2); // a missing node is an answer, not a failure
+        assertThat(exists.getFailureCount()).isEqualTo(0);
+        LatencyHistogram create = metrics.getHistogram(ZookeeperOperation.CREATE);
+        assertThat(create.getSuccessCount()).isEqualTo(2); // the cluster root and the second node
+        assertThat(create.getFailureCount()).isEqualTo(1); // the optimistic first attempt
+        LatencyHistogram multi = metrics.getHistogram(ZookeeperOperation.MULTI);
+        assertThat(multi.getSuccessCount()).isEqualTo(1);
+        assertThat(multi.getFailureCount()).isEqualTo(1); // the cluster root was missing too
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getSuccessCount()).isEqualTo(1);
+        assertThat(create.getPercentileNanos(50)).isGreaterThan(0);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * PayloadCompression Tester.
+ */
+public class PayloadCompressionTest {
+    /**
+     * Method: compress(), decompress()
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        PayloadCompression compression = new PayloadCompression(100, Deflater.BEST_SPEED);
+        byte[] payload = ScalarJson.encode(repeat("model metadata ", 1000));
+        byte[] compressed = compression.compress(payload);
+        assertThat(compressed[0]).isEqualTo(PayloadCompression.DEFLATE_MARKER);
+        assertThat(compressed.length).isLessThan(payload.length / 10);
+        assertThat(PayloadCompression.isCompressed(compressed)).isTrue();
+        assertThat(PayloadCompression.decompress(compressed)).isEqualTo(payload);
+        // and again, on the reused codecs
+        assertThat(PayloadCompression.decompress(compression.compress(payload))).isEqualTo(payload);
+    }
+
+    /**
+     * Small and incompressible payloads are written as they are, and uncompressed payloads read as they are
+     */
+    @Test
+    public void testUncompressed() throws Exception {
+        PayloadCompression compression = new PayloadCompression();
+        byte[] small = ScalarJson.encode(3);
+        assertThat(compression.compress(small)).isSameAs(small);
+        assertThat(PayloadCompression.decompress(small)).isSameAs(small);
+
+        byte[] random = new byte[4096];
+        new Random(17).nextBytes(random);
+        random[0] = '{';
+        assertThat(compression.compress(random)).isSameAs(random);
+
+        byte[] large = ScalarJson.encode(repeat("x", 10_000));
+        assertThat(PayloadCompression.NONE.compress(large)).isSameAs(large);
+        assertThat(PayloadCompression.decompress(compression.compress(large))).isEqualTo(large);
+    }
+
+    @Test
+    public void testRejectsCorrupt() throws Exception {
+        byte[] compressed = new PayloadCompression(0, Deflater.DEFAULT_COMPRESSION)
+                .compress(repeat("abc", 1000).getBytes(StandardCharsets.UTF_8));
+        try {
+            PayloadCompression.decompress(Arrays.copyOf(compressed, compressed.length - 4));
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        compressed[compressed.length / 2] ^= 0x55;
+        try {
+            PayloadCompression.decompress(compressed);
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A corrupt header is rejected before its length is allocated
+     */
+    @Test
+    public void testRejectsInvalidLength() throws Exception {
+        byte[] compressed = new PayloadCompression(0, Deflater.DEFAULT_COMPRESSION)
+                .compress(repeat("abc", 1000).getBytes(StandardCharsets.UTF_8));
+        for (int length : new int[]{-1, Integer.MAX_VALUE, PayloadCompression.MAX_PAYLOAD_BYTES + 1, compressed.length * 2000}) {
+            byte[] corrupt = compressed.clone();
+            ByteBuffer.wrap(corrupt, 1, 4).putInt(length);
+            try {
+                PayloadCompression.decompress(corrupt);
+                fail("expected an IllegalArgumentException for length " + length);
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage()).contains("length");
+            }
+        }
+    }
+
+    private static String repeat(String text, int times) {
+        StringBuilder repeated = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            repeated.append(text);
+        }
+        return repeated.toString();
+    }
+}
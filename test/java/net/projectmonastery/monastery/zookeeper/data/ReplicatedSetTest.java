@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.framework.api.transaction.CuratorTransactionFinal;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ReplicatedSet Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ReplicatedSetTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private HashedDataPaths paths;
+    private InMemoryZookeeperMetrics metrics;
+    private ReplicatedSet set;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+        paths = new HashedDataPaths("/sets");
+        metrics = new InMemoryZookeeperMetrics();
+    }
+
+    @After
+    public void after() throws Exception {
+        if (set != null) {
+            set.close();
+        }
+        cf.close();
+    }
+
+    /**
+     * Loaded once, then contains() is answered from memory
+     */
+    @Test
+    public void testContainsFromMemory() throws Exception {
+        DataAddress address = DataAddress.of("acl", "large");
+        String setPath = paths.pathOf(address);
+        cf.create().creatingParentsIfNeeded().forPath(setPath);
+        CuratorTransactionFinal transaction = cf.inTransaction().check().forPath(setPath).and();
+        for (int i = 0; i < 1000; i++) {
+            transaction = transaction.create().forPath(setPath + "/" + paths.childNameOf(ScalarJson.toJson("user" + i)),
+                    ScalarJson.encode("user" + i)).and();
+        }
+        transaction.commit();
+
+        set = newSet(address);
+        set.start().get(10, TimeUnit.SECONDS);
+        assertThat(set.isSynced()).isTrue();
+        assertThat(set.size()).isEqualTo(1000);
+        long calls = totalCalls();
+        for (int i = 0; i < 1000; i++) {
+            assertThat(set.contains("user" + i)).isTrue();
+            assertThat(set.contains("other" + i)).isFalse();
+        }
+        assertThat(totalCalls()).isEqualTo(calls);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount()).isEqualTo(1);
+    }
+
+    /**
+     * Changes by other clients are applied as they happen, starting from a set that does not exist yet
+     */
+    @Test
+    public void testSyncsRemoteChanges() throws Exception {
+        DataAddress address = DataAddress.of("acl", "remote");
+        set = newSet(address);
+        set.start().get(10, TimeUnit.SECONDS);
+        assertThat(set.size()).isEqualTo(0);
+
+        ReplicatedSet other = newSet(address);
+        try {
+            other.start().get(10, TimeUnit.SECONDS);
+            assertThat(other.add("a").get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(other.contains("a")).isTrue(); // its own write, right away
+            awaitTrue(() -> set.contains("a"));
+
+            assertThat(other.add(2).get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(other.add(2).get(10, TimeUnit.SECONDS)).isFalse();
+            awaitTrue(() -> set.contains(2));
+            assertThat(set.contains("2")).isFalse(); // typed elements
+
+            assertThat(other.remove("a").get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(other.remove("a").get(10, TimeUnit.SECONDS)).isFalse();
+            awaitTrue(() -> !set.contains("a"));
+            assertThat(set.size()).isEqualTo(1);
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Method: getElements() - reads the values not known yet, once
+     */
+    @Test
+    public void testGetElements() throws Exception {
+        DataAddress address = DataAddress.of("acl", "elements");
+        set = newSet(address);
+        set.start().get(10, TimeUnit.SECONDS);
+        set.add("local").get(10, TimeUnit.SECONDS);
+        Set<Object> expected = new HashSet<>();
+        expected.add("local");
+        String setPath = paths.pathOf(address);
+        for (int i = 0; i < 100; i++) {
+            cf.create().forPath(setPath + "/" + paths.childNameOf(ScalarJson.toJson((long) i)), ScalarJson.encode((long) i));
+            expected.add((long) i);
+        }
+        awaitTrue(() -> set.size() == 101);
+
+        long reads = metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount();
+        assertThat(set.getElements().get(10, TimeUnit.SECONDS)).isEqualTo(expected);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount()).isEqualTo(reads + 100);
+        assertThat(set.getElements().get(10, TimeUnit.SECONDS)).isEqualTo(expected);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount()).isEqualTo(reads + 100);
+    }
+
+    /**
+     * The sharded layout spreads the elements over buckets, and a change re-reads only its bucket
+     */
+    @Test
+    public void testShardedLayout() throws Exception {
+        DataAddress address = DataAddress.of("acl", "sharded").withSizeHint(DataAddress.SizeHint.LARGE);
+        set = newSet(address);
+        assertThat(set.getLayout()).isEqualTo(ReplicatedSet.Layout.SHARDED);
+        set.start().get(10, TimeUnit.SECONDS);
+
+        ReplicatedSet other = newSet(address);
+        try {
+            other.start().get(10, TimeUnit.SECONDS);
+            for (int i = 0; i < 300; i++) {
+                other.add("user" + i).get(10, TimeUnit.SECONDS);
+            }
+            awaitTrue(() -> set.size() == 300);
+            for (int i = 0; i < 300; i++) {
+                assertThat(set.contains("user" + i)).isTrue();
+            }
+            String setPath = paths.pathOf(address);
+            for (String bucket: cf.getChildren().forPath(setPath)) {
+                assertThat(bucket).matches("[0-9a-f]{2}");
+                for (String name: cf.getChildren().forPath(setPath + "/" + bucket)) {
+                    assertThat(name).startsWith(bucket);
+                }
+            }
+
+            Thread.sleep(200); // let the last watches fire
+            long reads = metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount();
+            other.remove("user7").get(10, TimeUnit.SECONDS);
+            awaitTrue(() -> !set.contains("user7"));
+            Thread.sleep(200);
+            // one bucket, re-read by each of the two replicas
+            assertThat(metrics.getHistogram(ZookeeperOperation.GET_CHILDREN).getCount()).isEqualTo(reads + 2);
+            assertThat(set.getElements().get(10, TimeUnit.SECONDS)).hasSize(299);
+        } finally {
+            other.close();
+        }
+    }
+
+    /**
+     * Method: bucketIndex()
+     */
+    @Test
+    public void testBucketIndex() throws Exception {
+        assertThat(ReplicatedSet.bucketIndex("ab12", 1)).isEqualTo(0);
+        assertThat(ReplicatedSet.bucketIndex("ab12", 256)).isEqualTo(0xab);
+        assertThat(ReplicatedSet.bucketIndex("00ff", 256)).isEqualTo(0);
+        assertThat(ReplicatedSet.bucketIndex("ff", 256)).isEqualTo(255);
+        assertThat(ReplicatedSet.bucketIndex("not hex", 256)).isGreaterThanOrEqualTo(0).isLessThan(256);
+        assertThat(ReplicatedSet.bucketIndex("x", 256)).isGreaterThanOrEqualTo(0).isLessThan(256);
+    }
+
+    private ReplicatedSet newSet(DataAddress address) {
+        return new ReplicatedSet(cf, paths.pathOf(address), paths, CreateMode.PERSISTENT,
+                ReplicatedSet.Layout.of(address.getSizeHint()), ZookeeperExecutors.defaultExecutor()).withMetrics(metrics);
+    }
+
+    private long totalCalls() {
+        long calls = 0;
+        for (ZookeeperOperation operation: ZookeeperOperation.values()) {
+            calls += metrics.getHistogram(operation).getCount();
+        }
+        return calls;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
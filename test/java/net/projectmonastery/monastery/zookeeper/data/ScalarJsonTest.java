@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ScalarJson and Json Tester.
+ */
+public class ScalarJsonTest {
+    /**
+     * Method: encode(), decode() - every supported type round-trips exactly
+     */
+    @Test
+    public void testRoundTrip() throws Exception {
+        List<Object> values = Arrays.asList("plain", "quote \" backslash \\ newline \n tab \t bell \u0007 unicode \u05d0",
+                "", true, false, (byte) -3, (short) 300, 3, Integer.MIN_VALUE, Long.MAX_VALUE, 0.1f, 0.1 + 0.2,
+                Double.NaN, Double.NEGATIVE_INFINITY, 'x');
+        for (Object value: values) {
+            Object decoded = ScalarJson.decode(ScalarJson.encode(value));
+            assertThat(decoded).isEqualTo(value);
+            assertThat((Object) decoded.getClass()).isEqualTo(value.getClass());
+        }
+    }
+
+    /**
+     * Method: toJson() - the documented representation
+     */
+    @Test
+    public void testRepresentation() throws Exception {
+        assertThat(ScalarJson.toJson(3)).isEqualTo("{\"type\":\"Integer\",\"value\":\"3\"}");
+        assertThat(ScalarJson.decode("{ \"value\" : \"7\", \"type\" : \"Long\" }".getBytes(StandardCharsets.UTF_8)))
+                .isEqualTo(7L);
+    }
+
+    @Test
+    public void testRejectsUnsupported() throws Exception {
+        assertThat(ScalarJson.isSupported(Integer.class)).isTrue();
+        assertThat(ScalarJson.isSupported(Object.class)).isFalse();
+        assertRejected(() -> ScalarJson.toJson(new Object()));
+        assertRejected(() -> ScalarJson.toJson(null));
+        assertRejected(() -> ScalarJson.decode(new byte[0]));
+        assertRejected(() -> ScalarJson.decode("{\"type\":\"Object\",\"value\":\"x\"}".getBytes(StandardCharsets.UTF_8)));
+        assertRejected(() -> ScalarJson.decode("{\"type\":\"Integer\",\"value\":\"x\"}".getBytes(StandardCharsets.UTF_8)));
+        assertRejected(() -> ScalarJson.decode("[1,2]".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Method: Json.parse()
+     */
+    @Test
+    public void testParse() throws Exception {
+        Object parsed = Json.parse(" {\"a\": [1, -2.5e3, \"\\u0041\\n\", true, null], \"b\": {}} ");
+        assertThat(parsed).isInstanceOf(Map.class);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> object = (Map<String, Object>) parsed;
+        assertThat(object.keySet()).containsExactly("a", "b");
+        assertThat(object.get("a")).isEqualTo(Arrays.<Object>asList(1L, -2500.0, "A\n", true, null));
+        assertThat(object.get("b")).isEqualTo(Collections.emptyMap());
+
+        assertRejected(() -> Json.parse("{\"a\":1"));
+        assertRejected(() -> Json.parse("{\"a\":1} x"));
+        assertRejected(() -> Json.parse("\"unterminated"));
+        assertRejected(() -> Json.parse("nope"));
+    }
+
+    private static void assertRejected(Runnable runnable) {
+        try {
+            runnable.run();
+            fail("expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.test.TestingServer;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.Deflater;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ScalarStore Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ScalarStoreTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private CuratorFramework otherCf;
+    private InMemoryZookeeperMetrics metrics;
+    private ScalarStore store;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+        otherCf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        otherCf.start();
+        otherCf.blockUntilConnected();
+        metrics = new InMemoryZookeeperMetrics();
+        store = new ScalarStore(cf, ZookeeperExecutors.defaultExecutor()).withMetrics(metrics);
+    }
+
+    @After
+    public void after() throws Exception {
+        store.close();
+        otherCf.close();
+        cf.close();
+    }
+
+    /**
+     * Once read, a value is served from memory: no Zookeeper calls, and the same future for every reader
+     */
+    @Test
+    public void testCachedReads() throws Exception {
+        assertThat(store.write("/cached/a", 3, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isEqualTo(0);
+        Versioned first = store.read("/cached/a").get(10, TimeUnit.SECONDS);
+        assertThat(first.getValue()).isEqualTo(3);
+        assertThat(first.getVersion()).isEqualTo(0);
+        long reads = metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount();
+
+        CompletableFuture<Versioned> cached = store.read("/cached/a");
+        for (int i = 0; i < 1000; i++) {
+            assertThat(store.read("/cached/a")).isSameAs(cached);
+        }
+        assertThat(cached.get()).isSameAs(first);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount()).isEqualTo(reads);
+        assertThat(store.getCachedCount()).isEqualTo(1);
+    }
+
+    /**
+     * A write by another client fires the watch, so the next read sees it
+     */
+    @Test
+    public void testInvalidatedByRemoteWrite() throws Exception {
+        store.write("/remote/a", "before", CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        assertThat(store.read("/remote/a").get(10, TimeUnit.SECONDS).getValue()).isEqualTo("before");
+
+        otherCf.setData().forPath("/remote/a", ScalarJson.encode("after"));
+        awaitTrue(() -> "after".equals(store.read("/remote/a").join().getValue()));
+        assertThat(store.read("/remote/a").get().getVersion()).isEqualTo(1);
+
+        otherCf.delete().forPath("/remote/a");
+        awaitTrue(() -> !store.read("/remote/a").join().isPresent());
+    }
+
+    /**
+     * An absent value is cached too, until it is created
+     */
+    @Test
+    public void testAbsentUntilCreated() throws Exception {
+        assertThat(store.read("/absent/a").get(10, TimeUnit.SECONDS)).isSameAs(Versioned.ABSENT);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getFailureCount()).isEqualTo(1); // no node to read
+        assertThat(metrics.getHistogram(ZookeeperOperation.EXISTS).getFailureCount()).isEqualTo(0); // an answer
+        long checks = metrics.getHistogram(ZookeeperOperation.EXISTS).getCount();
+        assertThat(store.read("/absent/a").get()).isSameAs(Versioned.ABSENT);
+        assertThat(metrics.getHistogram(ZookeeperOperation.EXISTS).getCount()).isEqualTo(checks);
+
+        otherCf.create().creatingParentsIfNeeded().forPath("/absent/a", ScalarJson.encode(42L));
+        awaitTrue(() -> store.read("/absent/a").join().isPresent());
+        assertThat(store.read("/absent/a").get().getValue()).isEqualTo(42L);
+    }
+
+    /**
+     * Method: compareAndSet()
+     */
+    @Test
+    public void testCompareAndSet() throws Exception {
+        String path = "/cas/a";
+        assertThat(store.compareAndSet(path, 1, Versioned.ABSENT_VERSION, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(store.compareAndSet(path, 1, Versioned.ABSENT_VERSION, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isFalse();
+
+        Versioned read = store.read(path).get(10, TimeUnit.SECONDS);
+        assertThat(store.compareAndSet(path, 2, read.getVersion(), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isTrue();
+        assertThat(store.compareAndSet(path, 3, read.getVersion(), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isFalse();
+        assertThat(store.read(path).get(10, TimeUnit.SECONDS).getValue()).isEqualTo(2);
+
+        store.remove(path).get(10, TimeUnit.SECONDS);
+        store.remove(path).get(10, TimeUnit.SECONDS); // not an error
+        assertThat(store.read(path).get(10, TimeUnit.SECONDS).isPresent()).isFalse();
+        assertThat(store.compareAndSet(path, 4, 1, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isFalse();
+    }
+
+    /**
+     * Concurrent read-modify-write loops do not lose updates
+     */
+    @Test
+    public void testConcurrentIncrements() throws Exception {
+        String path = "/increments/a";
+        store.write(path, 0, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        ScalarStore otherStore = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        try {
+            Thread other = new Thread(() -> increment(otherStore, path, 20));
+            other.start();
+            increment(store, path, 20);
+            other.join();
+        } finally {
+            otherStore.close();
+        }
+        awaitTrue(() -> Integer.valueOf(40).equals(store.read(path).join().getValue()));
+    }
+
+    /**
+     * Values larger than the chunk size are chunked, and read back whole
+     */
+    @Test
+    public void testChunkedValues() throws Exception {
+        String path = "/chunked/a";
+        store.withChunkSize(1000);
+        String large = repeat('x', 10_000);
+        assertThat(store.write(path, large, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(store.read(path).get(10, TimeUnit.SECONDS).getValue()).isEqualTo(large);
+        assertThat(cf.getChildren().forPath(path)).hasSize(1); // one generation
+        ScalarStore otherStore = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        try {
+            assertThat(otherStore.read(path).get(10, TimeUnit.SECONDS).getValue()).isEqualTo(large);
+
+            String larger = repeat('y', 20_000);
+            store.write(path, larger, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+            awaitTrue(() -> larger.equals(otherStore.read(path).join().getValue()));
+            awaitTrue(() -> childCount(path) == 1); // the previous generation is deleted
+
+            Versioned read = store.read(path).get(10, TimeUnit.SECONDS);
+            assertThat(store.compareAndSet(path, large, read.getVersion() - 1, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isFalse();
+            assertThat(store.compareAndSet(path, large, read.getVersion(), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS)).isTrue();
+            assertThat(store.read(path).get(10, TimeUnit.SECONDS).getValue()).isEqualTo(large);
+
+            store.write(path, "small", CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+            awaitTrue(() -> "small".equals(otherStore.read(path).join().getValue()));
+            awaitTrue(() -> childCount(path) == 0);
+
+            store.write(path, large, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+            store.remove(path).get(10, TimeUnit.SECONDS);
+            assertThat(cf.checkExists().forPath(path)).isNull();
+        } finally {
+            otherStore.close();
+        }
+    }
+
+    /**
+     * A value written whole deletes the chunks it replaced, but not those of a chunked write still in progress, nor
+     * those of one published after it (here, by cleaning up late after a plain write)
+     */
+    @Test
+    public void testPlainWriteKeepsLaterChunks() throws Exception {
+        String path = "/chunked/mixed";
+        store.withChunkSize(1000);
+        store.write(path, repeat('a', 10_000), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        String inProgress = cf.create().withMode(CreateMode.PERSISTENT_SEQUENTIAL)
+                .forPath(path + "/" + ChunkedValues.GENERATION_PREFIX, new byte[0]);
+
+        store.write(path, "small", CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        long plainWriteZxid = cf.checkExists().forPath(path).getMzxid();
+        awaitTrue(() -> childCount(path) == 1); // the replaced generation is deleted
+        assertThat(cf.checkExists().forPath(inProgress)).isNotNull();
+
+        String later = repeat('b', 10_000);
+        store.write(path, later, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        new ChunkedValues(cf, ZookeeperExecutors.defaultExecutor()).deleteGenerationsReplacedBy(path, plainWriteZxid);
+        Thread.sleep(500); // give a wrong cleanup time to happen
+        store.invalidate(path);
+        assertThat(store.read(path).get(10, TimeUnit.SECONDS).getValue()).isEqualTo(later);
+    }
+
+    /**
+     * A manifest pointing at missing chunks fails the read after a bounded number of attempts, rather than spin
+     */
+    @Test
+    public void testMissingChunksFailRead() throws Exception {
+        String path = "/chunked/dangling";
+        byte[] generation = "g-9999999999".getBytes(StandardCharsets.UTF_8);
+        byte[] manifest = ByteBuffer.allocate(1 + 4 + 4 + generation.length)
+                .put(ChunkedValues.MANIFEST_MARKER)
+                .putInt(10)
+                .putInt(5)
+                .put(generation)
+                .array();
+        cf.create().creatingParentsIfNeeded().forPath(path, manifest);
+        long reads = metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount();
+        try {
+            store.read(path).get(10, TimeUnit.SECONDS);
+            fail("the chunks are missing");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(KeeperException.NoNodeException.class);
+        }
+        // each attempt reads the manifest and the two chunks
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount() - reads)
+                .isLessThanOrEqualTo(3 * ScalarStore.MAX_OVERTAKEN_READS);
+    }
+
+    /**
+     * Values over the 1 MB znode limit, with the default chunk size
+     */
+    @Test
+    public void testBeyondZnodeLimit() throws Exception {
+        String path = "/chunked/large";
+        String value = repeat('z', 3 * 1024 * 1024);
+        store.write(path, value, CreateMode.PERSISTENT).get(20, TimeUnit.SECONDS);
+        ScalarStore otherStore = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        try {
+            assertThat(otherStore.read(path).get(20, TimeUnit.SECONDS).getValue()).isEqualTo(value);
+        } finally {
+            otherStore.close();
+        }
+        try {
+            store.write("/chunked/ephemeral", value, CreateMode.EPHEMERAL).get(20, TimeUnit.SECONDS);
+            fail("ephemeral values may not be chunked");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    /**
+     * Readers see whole values only, while a writer keeps replacing them
+     */
+    @Test
+    public void testNoTornReads() throws Exception {
+        String path = "/chunked/torn";
+        store.withChunkSize(100);
+        store.write(path, repeat('a', 2000), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        ScalarStore reader = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        AtomicBoolean done = new AtomicBoolean();
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 20; i++) {
+                store.write(path, repeat((char) ('a' + i % 26), 2000), CreateMode.PERSISTENT).join();
+            }
+            done.set(true);
+        });
+        try {
+            writer.start();
+            int reads = 0;
+            while (!done.get() || reads < 10) {
+                reader.invalidate(path);
+                String value = (String) reader.read(path).get(10, TimeUnit.SECONDS).getValue();
+                assertThat(value).isEqualTo(repeat(value.charAt(0), 2000));
+                reads++;
+            }
+        } finally {
+            writer.join();
+            reader.close();
+        }
+    }
+
+    /**
+     * Compressed values are read by stores that do not compress, and compression applies before chunking
+     */
+    @Test
+    public void testCompressedValues() throws Exception {
+        store.withCompression(new PayloadCompression(100, Deflater.DEFAULT_COMPRESSION)).withChunkSize(1000);
+        String value = repeat('c', 50_000);
+        store.write("/compressed/a", value, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        byte[] raw = cf.getData().forPath("/compressed/a");
+        assertThat(raw[0]).isEqualTo(PayloadCompression.DEFLATE_MARKER);
+        assertThat(raw.length).isLessThan(1000); // compressed below the chunk size, so not chunked
+
+        StringBuilder mixed = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            mixed.append(i).append(',');
+        }
+        store.write("/compressed/b", mixed.toString(), CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        assertThat(cf.getData().forPath("/compressed/b")[0]).isEqualTo(ChunkedValues.MANIFEST_MARKER);
+
+        ScalarStore otherStore = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        try {
+            assertThat(otherStore.getCompression()).isSameAs(PayloadCompression.NONE);
+            assertThat(otherStore.read("/compressed/a").get(10, TimeUnit.SECONDS).getValue()).isEqualTo(value);
+            assertThat(otherStore.read("/compressed/b").get(10, TimeUnit.SECONDS).getValue()).isEqualTo(mixed.toString());
+        } finally {
+            otherStore.close();
+        }
+    }
+
+    /**
+     * Method: withCodec()
+     */
+    @Test
+    public void testMixedCodecs() throws Exception {
+        store.withCodec(BinaryValueCodec.INSTANCE);
+        store.write("/codecs/binary", 1234567L, CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+        byte[] raw = cf.getData().forPath("/codecs/binary");
+        assertThat(raw[0]).isEqualTo(BinaryValueCodec.MARKER);
+        assertThat(raw.length).isLessThan(ScalarJson.encode(1234567L).length);
+
+        ScalarStore otherStore = new ScalarStore(otherCf, ZookeeperExecutors.defaultExecutor());
+        try {
+            assertThat(otherStore.getCodec()).isSameAs(JsonValueCodec.INSTANCE);
+            assertThat(otherStore.read("/codecs/binary").get(10, TimeUnit.SECONDS).getValue()).isEqualTo(1234567L);
+            otherStore.write("/codecs/json", "json", CreateMode.PERSISTENT).get(10, TimeUnit.SECONDS);
+            assertThat(store.read("/codecs/json").get(10, TimeUnit.SECONDS).getValue()).isEqualTo("json");
+        } finally {
+            otherStore.close();
+        }
+    }
+
+    private int childCount(String path) {
+        try {
+            return cf.getChildren().forPath(path).size();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String repeat(char c, int times) {
+        char[] chars = new char[times];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static void increment(ScalarStore store, String path, int times) {
+        for (int i = 0; i < times; i++) {
+            while (true) {
+                Versioned current = store.read(path).join();
+                if (store.compareAndSet(path, (Integer) current.getValue() + 1, current.getVersion(), CreateMode.PERSISTENT).join()) {
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2015. Arnon Moscona
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU Lesser General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package net.projectmonastery.monastery.zookeeper.data;
+
+import net.projectmonastery.monastery.zookeeper.InMemoryZookeeperMetrics;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestCategory;
+import net.projectmonastery.monastery.zookeeper.IntegrationTestClassMarker;
+import net.projectmonastery.monastery.zookeeper.ZookeeperExecutors;
+import net.projectmonastery.monastery.zookeeper.ZookeeperOperation;
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.CuratorFrameworkFactory;
+import org.apache.curator.retry.RetryNTimes;
+import org.apache.curator.retry.RetryOneTime;
+import org.apache.curator.test.TestingServer;
+import org.junit.*;
+import org.junit.experimental.categories.Category;
+import org.junit.rules.Timeout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.fest.assertions.api.Assertions.*;
+
+/**
+ * ShardedCounter Tester.
+ */
+@Category(IntegrationTestCategory.class)
+public class ShardedCounterTest implements IntegrationTestClassMarker {
+    private static TestingServer server;
+    private CuratorFramework cf;
+    private CuratorFramework otherCf;
+    private InMemoryZookeeperMetrics metrics;
+
+    @Rule
+    public Timeout globalTimeout = new Timeout(30_000); // 30 sec
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        server = new TestingServer(true);
+    }
+
+    @AfterClass
+    public static void afterAll() throws Exception {
+        server.stop();
+    }
+
+    @Before
+    public void before() throws Exception {
+        cf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        cf.start();
+        cf.blockUntilConnected();
+        otherCf = CuratorFrameworkFactory.newClient(server.getConnectString(), new RetryNTimes(3, 500));
+        otherCf.start();
+        otherCf.blockUntilConnected();
+        metrics = new InMemoryZookeeperMetrics();
+    }
+
+    @After
+    public void after() throws Exception {
+        otherCf.close();
+        cf.close();
+    }
+
+    /**
+     * Local additions are batched into a single write
+     */
+    @Test
+    public void testBatchesAdditions() throws Exception {
+        ShardedCounter counter = new ShardedCounter(cf, "/counters/batched", 4, ZookeeperExecutors.defaultExecutor())
+                .withFlushIntervalMillis(60_000)
+                .withMetrics(metrics);
+        for (int i = 0; i < 1000; i++) {
+            counter.increment();
+        }
+        counter.add(-10);
+        assertThat(counter.getPending()).isEqualTo(990);
+        assertThat(counter.get().get(10, TimeUnit.SECONDS)).isEqualTo(0L);
+
+        counter.flush().get(10, TimeUnit.SECONDS);
+        assertThat(counter.getPending()).isEqualTo(0);
+        assertThat(counter.getFlushCount()).isEqualTo(1);
+        assertThat(counter.get().get(10, TimeUnit.SECONDS)).isEqualTo(990L);
+
+        // the version is remembered, so the next flush is a single write
+        long writes = metrics.getHistogram(ZookeeperOperation.SET_DATA).getCount();
+        long reads = metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount();
+        counter.add(10);
+        counter.flush().get(10, TimeUnit.SECONDS);
+        assertThat(metrics.getHistogram(ZookeeperOperation.SET_DATA).getCount()).isEqualTo(writes + 1);
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount()).isEqualTo(reads);
+        assertThat(counter.get().get(10, TimeUnit.SECONDS)).isEqualTo(1000L);
+        counter.close();
+    }
+
+    /**
+     * Additions are written once the flush interval passes
+     */
+    @Test
+    public void testFlushInterval() throws Exception {
+        ShardedCounter counter = new ShardedCounter(cf, "/counters/interval", 4, ZookeeperExecutors.defaultExecutor())
+                .withFlushIntervalMillis(50);
+        counter.add(7);
+        awaitTrue(() -> counter.get().join() == 7L);
+        assertThat(counter.getPending()).isEqualTo(0);
+        counter.close();
+    }
+
+    /**
+     * Many writers on few shards lose races, retry on other shards, and lose no additions
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        List<ShardedCounter> counters = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            counters.add(new ShardedCounter(i % 2 == 0 ? cf : otherCf, "/counters/contended", 2,
+                    ZookeeperExecutors.defaultExecutor()).withFlushIntervalMillis(0));
+        }
+        List<CompletableFuture<Void>> flushed = new ArrayList<>();
+        for (int round = 0; round < 50; round++) {
+            for (ShardedCounter counter: counters) {
+                counter.add(round);
+            }
+        }
+        for (ShardedCounter counter: counters) {
+            flushed.add(counter.flush());
+        }
+        CompletableFuture.allOf(flushed.toArray(new CompletableFuture<?>[flushed.size()])).get(20, TimeUnit.SECONDS);
+        long expected = 8L * (49 * 50 / 2);
+        assertThat(counters.get(0).get().get(10, TimeUnit.SECONDS)).isEqualTo(expected);
+        assertThat(cf.getChildren().forPath("/counters/contended")).hasSize(2);
+        counters.forEach(ShardedCounter::close);
+    }
+
+    /**
+     * Method: getCached()
+     */
+    @Test
+    public void testCachedView() throws Exception {
+        ShardedCounter writer = new ShardedCounter(cf, "/counters/cached", 4, ZookeeperExecutors.defaultExecutor())
+                .withFlushIntervalMillis(0);
+        ShardedCounter reader = new ShardedCounter(otherCf, "/counters/cached", 4, ZookeeperExecutors.defaultExecutor())
+                .withMetrics(metrics);
+        assertThat(reader.getCached().get(10, TimeUnit.SECONDS)).isEqualTo(0L);
+        writer.add(5);
+        writer.flush().get(10, TimeUnit.SECONDS);
+        awaitTrue(() -> reader.getCached().join() == 5L);
+
+        long reads = metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount();
+        for (int i = 0; i < 100; i++) {
+            assertThat(reader.getCached().get(10, TimeUnit.SECONDS)).isEqualTo(5L);
+        }
+        assertThat(metrics.getHistogram(ZookeeperOperation.GET_DATA).getCount()).isEqualTo(reads);
+        writer.close();
+        reader.close();
+    }
+
+    /**
+     * A flush that fails while the server is down keeps its additions, and is retried until they land
+     */
+    @Test
+    public void testRetriesFailedFlush() throws Exception {
+        CuratorFramework client = CuratorFrameworkFactory.builder()
+                .connectString(server.getConnectString())
+                .sessionTimeoutMs(20_000)
+                .connectionTimeoutMs(500)
+                .retryPolicy(new RetryOneTime(100))
+                .build();
+        client.start();
+        client.blockUntilConnected();
+        try {
+            ShardedCounter counter = new ShardedCounter(client, "/counters/retried", 2, ZookeeperExecutors.defaultExecutor())
+                    .withFlushIntervalMillis(0);
+            counter.add(5);
+            counter.flush().get(10, TimeUnit.SECONDS);
+
+            server.stop();
+            counter.add(7); // flushed right away, and fails
+            awaitTrue(() -> counter.getPending() == 7);
+            server.restart();
+
+            awaitTrue(() -> counter.getPending() == 0);
+            assertThat(counter.get().get(10, TimeUnit.SECONDS)).isEqualTo(12L);
+            counter.close();
+        }
+        finally {
+            client.close();
+        }
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        while (!condition.getAsBoolean()) {
+            Thread.sleep(10); // the global timeout rule limits the wait
+        }
+    }
+}